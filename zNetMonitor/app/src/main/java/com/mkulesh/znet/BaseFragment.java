@@ -40,6 +40,7 @@ abstract public class BaseFragment extends Fragment
     static final String SERVER_NAME = "server_name";
     static final String SERVER_PORT = "server_port";
     static final String SERVER_PASSWORD = "server_password";
+    static final String SERVER_FILTER = "server_filter";
 
     MainActivity activity;
     SharedPreferences preferences;
@@ -22,7 +22,9 @@ import android.util.Base64;
 import android.widget.Toast;
 
 import com.mkulesh.znet.common.AdvancedEncryptionStandard;
+import com.mkulesh.znet.common.BinaryCodec;
 import com.mkulesh.znet.common.Message;
+import com.mkulesh.znet.common.MessageFramer;
 import com.mkulesh.znet.common.Message.Type;
 import com.mkulesh.znet.common.Utils;
 
@@ -42,13 +44,24 @@ class CommunicationTask extends AsyncTask<Void, Message, Void>
 {
     private static final long CONNECTION_TIMEOUT = 5000;
     private static final int BASE64_OPTIONS = Base64.NO_WRAP | Base64.NO_PADDING;
+    private static final byte[] HEARTBIT_MSG =
+            new Message(Message.Type.HEARTBIT).encode().getBytes(Charset.forName("UTF-8"));
 
     private final MainActivity activity;
     private final AtomicBoolean connected = new AtomicBoolean(false);
     private Boolean reportIfStopped = false;
     private SocketChannel socket = null;
+    private InetSocketAddress serverAddress = null;
+    private String serverName = "";
     private String password = "";
-    private String inputStream = "";
+    private String filter = "";
+    private String sessionToken = "", configVersion = "";
+    private long stateVersion = 0;
+    private volatile boolean binaryProtocol = false;
+    // the optional login parameters are omitted if an older server has rejected them once
+    private volatile boolean extendedLogin = true;
+    private boolean answered = false;
+    private final MessageFramer inputFramer = new MessageFramer(Message.SOCKET_BUFFER, Message.MAX_INPUT_BUFFER);
     private final AdvancedEncryptionStandard initialEncryptor = new AdvancedEncryptionStandard(Message.AES_KEY);
     private AdvancedEncryptionStandard sessionEncryptor = null;
 
@@ -59,15 +72,23 @@ class CommunicationTask extends AsyncTask<Void, Message, Void>
         StrictMode.setThreadPolicy(policy);
     }
 
-    boolean connectToServer(String server, int port, String password)
+    boolean connectToServer(String server, int port, String password, String filter)
     {
         final String addr = server + ":" + port;
         this.password = password;
+        this.filter = filter;
+        serverName = addr;
+        extendedLogin = !activity.getStateManager().isPlainLoginServer(addr);
+        // the session of the previous connection is resumed if the server still knows it
+        sessionToken = activity.getStateManager().getSessionToken();
+        configVersion = activity.getStateManager().getConfigVersion();
+        stateVersion = activity.getStateManager().getStateVersion();
         try
         {
+            serverAddress = new InetSocketAddress(server, port);
             socket = SocketChannel.open();
             socket.configureBlocking(true);
-            socket.connect(new InetSocketAddress(server, port));
+            socket.connect(serverAddress);
             final long startTime = Calendar.getInstance().getTimeInMillis();
             while (!socket.finishConnect())
             {
@@ -124,6 +145,10 @@ class CommunicationTask extends AsyncTask<Void, Message, Void>
 
                     buffer.clear();
                     int readedSize = socket.read(buffer);
+                    if (readedSize < 0 && retryPlainLogin())
+                    {
+                        continue;
+                    }
                     if (readedSize < 0)
                     {
                         Logging.info(this, "server disconnected");
@@ -137,6 +162,10 @@ class CommunicationTask extends AsyncTask<Void, Message, Void>
                 }
                 catch (Exception e)
                 {
+                    if (retryPlainLogin())
+                    {
+                        continue;
+                    }
                     Logging.info(this, "interrupted: " + e.getLocalizedMessage());
                     reportIfStopped = true;
                     break;
@@ -177,6 +206,14 @@ class CommunicationTask extends AsyncTask<Void, Message, Void>
         {
             sessionEncryptor = null;
         }
+        if (extendedLogin)
+        {
+            clientLogin.addParameter(Integer.toString(Message.PROTOCOL_BINARY));
+            clientLogin.addParameter(filter);
+            clientLogin.addParameter(sessionToken);
+            clientLogin.addParameter(configVersion);
+            clientLogin.addParameter(Long.toString(stateVersion));
+        }
 
         Logging.info(this, "sending login message: " + clientLogin.toString());
 
@@ -198,6 +235,65 @@ class CommunicationTask extends AsyncTask<Void, Message, Void>
         return false;
     }
 
+    /**
+     * An older server only accepts the login message with three parameters: it does not answer
+     * any other login and closes the connection after its login waiting time. In this case, the
+     * login is repeated once on a new connection without the optional parameters. The server
+     * is remembered, so that the next connection to it uses the plain login message at once
+     */
+    private boolean retryPlainLogin()
+    {
+        if (!extendedLogin || answered || !connected.get() || isCancelled())
+        {
+            return false;
+        }
+        Logging.info(this, "extended login rejected, retrying with the plain login message");
+        extendedLogin = false;
+        activity.getStateManager().setPlainLoginServer(serverName);
+        try
+        {
+            socket.close();
+            socket = SocketChannel.open();
+            socket.configureBlocking(true);
+            socket.connect(serverAddress);
+        }
+        catch (IOException e)
+        {
+            Logging.info(this, "failed to reconnect: " + e.getLocalizedMessage());
+            return false;
+        }
+        return performLogin();
+    }
+
+    /**
+     * Changes the subscription filter of the existing session
+     */
+    boolean subscribe(String filter)
+    {
+        if (sessionEncryptor == null || !extendedLogin)
+        {
+            return false;
+        }
+        this.filter = filter;
+        final Message subscribe = new Message(Type.SUBSCRIBE);
+        subscribe.addParameter(filter);
+        Logging.info(this, "sending subscribe message: " + subscribe.toString());
+        try
+        {
+            final byte[] data = binaryProtocol ? BinaryCodec.encodeFrame(subscribe, sessionEncryptor) :
+                    (Message.START_TAG
+                            + Base64.encodeToString(sessionEncryptor.encrypt(subscribe.encode()), BASE64_OPTIONS)
+                            + Message.END_TAG).getBytes(Charset.forName("UTF-8"));
+            socket.write(ByteBuffer.wrap(data));
+            return true;
+        }
+        catch (Exception e)
+        {
+            Logging.info(this, "failed to send subscribe message: " + e.getLocalizedMessage());
+        }
+        return false;
+    }
+
     @Override
     protected void onPostExecute(Void result)
     {
@@ -210,37 +306,51 @@ class CommunicationTask extends AsyncTask<Void, Message, Void>
     private void processInputData(ByteBuffer buffer)
     {
         buffer.flip();
-        byte[] bytes = new byte[buffer.remaining()];
-        buffer.get(bytes);
-        String s = new String(bytes, Charset.forName("UTF-8"));
-        final String heartbitMsg = (new Message(Message.Type.HEARTBIT)).encode();
-        inputStream += s;
+        inputFramer.append(buffer);
         while (true)
         {
-            final int startIndex = inputStream.indexOf(Message.START_TAG);
-            final int endIndex = inputStream.indexOf(Message.END_TAG);
-            if (startIndex < 0 || endIndex < 0)
-            {
-                break;
-            }
-            final String messageStr = inputStream.substring(startIndex + Message.START_TAG.length(), endIndex);
-            inputStream = inputStream.substring(endIndex + Message.END_TAG.length(), inputStream.length());
             try
             {
-                if (heartbitMsg.equals(messageStr))
+                if (!inputFramer.next())
+                {
+                    break;
+                }
+                answered = true;
+                final byte[] data = inputFramer.getFrameData();
+                final int offset = inputFramer.getFrameOffset();
+                final int length = inputFramer.getFrameLength();
+                // the server answers in binary protocol only if it supports it; otherwise the text protocol is used
+                if (inputFramer.isBinaryFrame())
+                {
+                    binaryProtocol = true;
+                    final Message m = BinaryCodec.decodeFrame(data, offset, length, sessionEncryptor);
+                    if (m.getType() == Message.Type.HEARTBIT)
+                    {
+                        m.recycle();
+                    }
+                    else
+                    {
+                        if (Logging.ENABLED)
+                        {
+                            Logging.info(this, "handle message: " + m.toString());
+                        }
+                        publishProgress(m);
+                    }
+                }
+                else if (inputFramer.isFrameEqual(HEARTBIT_MSG))
                 {
-                    Logging.info(this, "ignore message: " + messageStr);
+                    Logging.info(this, "ignore message: " + inputFramer.getFrameString());
                 }
                 else if (sessionEncryptor != null)
                 {
-                    Logging.info(this, "handle message: " + messageStr);
-                    final String decryptedMessage = sessionEncryptor.decrypt(Base64.decode(messageStr, BASE64_OPTIONS));
-                    publishProgress(new Message(decryptedMessage));
+                    Logging.info(this, "handle message: " + inputFramer.getFrameString());
+                    final byte[] encrypted = Base64.decode(data, offset, length, BASE64_OPTIONS);
+                    publishProgress(new Message(sessionEncryptor.decrypt(encrypted)));
                 }
             }
             catch (Exception e)
             {
-                Logging.info(this, "can not decode message " + s + ": " + e.getLocalizedMessage());
+                Logging.info(this, "can not decode message: " + e.getLocalizedMessage());
             }
         }
     }
@@ -248,7 +358,9 @@ class CommunicationTask extends AsyncTask<Void, Message, Void>
     @Override
     protected void onProgressUpdate(Message... message)
     {
+        // the decoded message returns to the message pool once it is handled
         activity.handleMessage(message[0]);
+        message[0].recycle();
     }
 
 }
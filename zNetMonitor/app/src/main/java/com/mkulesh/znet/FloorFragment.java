@@ -202,6 +202,9 @@ public class FloorFragment extends BaseFragment implements OnTouchListener
             case UNKNOWN_MESSAGE:
                 message.append(activity.getResources().getString(R.string.warning_unknown_message));
                 break;
+            case FLAPPING:
+                message.append(activity.getResources().getString(R.string.warning_flapping, d.getFlapCount()));
+                break;
             }
             firstWarning = false;
         }
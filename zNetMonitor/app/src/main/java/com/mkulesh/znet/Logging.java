@@ -18,6 +18,9 @@ package com.mkulesh.znet;
 
 final class Logging
 {
+    // callers check this flag before building log texts on frequent paths
+    static final boolean ENABLED = false;
+
     public static void info(Object o, String text)
     {
         //Log.d("znet", o.getClass().getSimpleName() + ": " + text);
@@ -89,15 +89,16 @@ public class MainActivity extends FragmentActivity implements OnPageChangeListen
         return super.onOptionsItemSelected(item);
     }
 
-    public boolean connectToServer(String server, int port, String password)
+    public boolean connectToServer(String server, int port, String password, String filter)
     {
         boolean res = false;
         if (communicationThread != null)
         {
             communicationThread.disconnect();
         }
+        stateManager.setSubscriptionFilter(filter);
         communicationThread = new CommunicationTask(this);
-        if (communicationThread.connectToServer(server, port, password))
+        if (communicationThread.connectToServer(server, port, password, filter))
         {
             communicationThread.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, (Void[]) null);
             res = true;
@@ -106,6 +107,18 @@ public class MainActivity extends FragmentActivity implements OnPageChangeListen
         return res;
     }
 
+    public boolean subscribe(String filter)
+    {
+        if (communicationThread == null || !communicationThread.isConnected())
+        {
+            return false;
+        }
+        stateManager.setSubscriptionFilter(filter);
+        final boolean res = communicationThread.subscribe(filter);
+        updateCurrentFragment();
+        return res;
+    }
+
     @Override
     protected void onResume()
     {
@@ -114,9 +127,10 @@ public class MainActivity extends FragmentActivity implements OnPageChangeListen
         final String serverName = preferences.getString(ServerFragment.SERVER_NAME, "");
         final int serverPort = preferences.getInt(ServerFragment.SERVER_PORT, 0);
         final String serverPassword = preferences.getString(ServerFragment.SERVER_PASSWORD, "");
+        final String serverFilter = preferences.getString(ServerFragment.SERVER_FILTER, "");
         if (!serverName.isEmpty() && serverPort > 0)
         {
-            connectToServer(serverName, serverPort, serverPassword);
+            connectToServer(serverName, serverPort, serverPassword, serverFilter);
         }
     }
 
@@ -169,6 +183,7 @@ public class MainActivity extends FragmentActivity implements OnPageChangeListen
             }
         }
         updateCurrentFragment();
+        stateManager.onScreenUpdated();
     }
 
     @Override
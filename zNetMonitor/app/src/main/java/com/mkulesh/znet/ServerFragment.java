@@ -24,12 +24,16 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Button;
 import android.widget.EditText;
+import android.widget.LinearLayout;
 import android.widget.TextView;
 
 import androidx.annotation.NonNull;
 
 public class ServerFragment extends BaseFragment implements View.OnClickListener
 {
+    // number of server state lines with an icon in the layout
+    private final static int FIXED_SERVER_STATE_LINES = 6;
+
     public ServerFragment()
     {
         // Empty constructor required for fragment subclasses
@@ -50,6 +54,8 @@ public class ServerFragment extends BaseFragment implements View.OnClickListener
                 ServerFragment.SERVER_PORT, 5017)));
         ((EditText) rootView.findViewById(R.id.field_server_password)).setText(preferences.getString(
                 ServerFragment.SERVER_PASSWORD, ""));
+        ((EditText) rootView.findViewById(R.id.field_server_filter)).setText(preferences.getString(
+                ServerFragment.SERVER_FILTER, ""));
 
         update();
         return rootView;
@@ -64,12 +70,21 @@ public class ServerFragment extends BaseFragment implements View.OnClickListener
             final String serverPortStr = ((EditText) rootView.findViewById(R.id.field_server_port)).getText().toString();
             final int serverPort = Integer.parseInt(serverPortStr);
             final String serverPassword = ((EditText) rootView.findViewById(R.id.field_server_password)).getText().toString();
-            if (activity.connectToServer(serverName, serverPort, serverPassword))
+            final String serverFilter = ((EditText) rootView.findViewById(R.id.field_server_filter)).getText().toString().trim();
+            final boolean filterChanged = activity.isServerConnected()
+                    && serverName.equals(preferences.getString(SERVER_NAME, ""))
+                    && serverPort == preferences.getInt(SERVER_PORT, 0)
+                    && serverPassword.equals(preferences.getString(SERVER_PASSWORD, ""))
+                    && !serverFilter.equals(preferences.getString(SERVER_FILTER, ""));
+            // if only the filter is changed, the existing connection is re-subscribed
+            if (filterChanged ? activity.subscribe(serverFilter) :
+                    activity.connectToServer(serverName, serverPort, serverPassword, serverFilter))
             {
                 SharedPreferences.Editor prefEditor = preferences.edit();
                 prefEditor.putString(SERVER_NAME, serverName);
                 prefEditor.putInt(SERVER_PORT, serverPort);
                 prefEditor.putString(SERVER_PASSWORD, serverPassword);
+                prefEditor.putString(SERVER_FILTER, serverFilter);
                 prefEditor.apply();
             }
         }
@@ -79,12 +94,35 @@ public class ServerFragment extends BaseFragment implements View.OnClickListener
     public void update()
     {
         super.update();
+        final StateManager stateManager = activity.getStateManager();
+
+        // the first values are shown in the fixed lines, all further ones in generated lines
+        final LinearLayout rows = rootView.findViewById(R.id.server_state_rows);
+        rows.removeAllViews();
         int line = 1;
-        for (Pair<String, String> e : activity.getStateManager().getServerState())
+        for (Pair<String, String> e : stateManager.getServerState())
         {
-            ((TextView) rootView.findViewWithTag("SERVER_STATE_KEY_" + line)).setText(e.first);
-            ((TextView) rootView.findViewWithTag("SERVER_STATE_VALUE_" + line)).setText(e.second);
+            if (line <= FIXED_SERVER_STATE_LINES)
+            {
+                ((TextView) rootView.findViewWithTag("SERVER_STATE_KEY_" + line)).setText(e.first);
+                ((TextView) rootView.findViewWithTag("SERVER_STATE_VALUE_" + line)).setText(e.second);
+            }
+            else
+            {
+                final View row = getLayoutInflater().inflate(R.layout.server_state_row, rows, false);
+                ((TextView) row.findViewById(R.id.server_state_key)).setText(e.first);
+                ((TextView) row.findViewById(R.id.server_state_value)).setText(e.second);
+                rows.addView(row);
+            }
             line++;
         }
+        for (; line <= FIXED_SERVER_STATE_LINES; line++)
+        {
+            ((TextView) rootView.findViewWithTag("SERVER_STATE_KEY_" + line)).setText("");
+            ((TextView) rootView.findViewWithTag("SERVER_STATE_VALUE_" + line)).setText("");
+        }
+        ((TextView) rootView.findViewById(R.id.event_latency_value)).setText(stateManager.getLastLatency() < 0 ?
+                "" : getString(R.string.event_latency_value, stateManager.getLastLatency(),
+                stateManager.getMaxLatency()));
     }
 }
@@ -21,9 +21,13 @@ import android.util.Pair;
 import com.mkulesh.znet.common.DeviceConfig;
 import com.mkulesh.znet.common.DeviceState;
 import com.mkulesh.znet.common.Message;
+import com.mkulesh.znet.common.Snapshot;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
 
 import androidx.annotation.NonNull;
 
@@ -32,6 +36,32 @@ public class StateManager
     @SuppressLint("UseSparseArrays")
     private final HashMap<Integer, DeviceState> devices = new HashMap<>();
     private final ArrayList<Pair<String, String>> serverState = new ArrayList<>();
+    private String subscriptionFilter = "";
+
+    // session resume parameters
+    private String sessionToken = "";
+    private String configVersion = "";
+    private long stateVersion = 0;
+
+    // A live state change may overtake the initial dump, which then contains an older state of the
+    // device: the state version of each device is kept (in an array, so that an update creates no
+    // garbage) and an older state is ignored. A state received before the configuration of its
+    // device waits until the device is configured
+    @SuppressLint("UseSparseArrays")
+    private final HashMap<Integer, long[]> deviceVersions = new HashMap<>();
+    @SuppressLint("UseSparseArrays")
+    private final HashMap<Integer, Message> pendingStates = new HashMap<>();
+
+    // addresses of the older servers that only accept the plain login message; the set is
+    // also used by the communication task
+    private final HashSet<String> plainLoginServers = new HashSet<>();
+
+    // Frame-to-screen latency: the server receive time of the last state change that is not yet
+    // shown, and the measured latencies in milliseconds. The latency is only valid if the clocks
+    // of the server and the device are synchronized
+    private long pendingReceiveTime = 0;
+    private long lastLatency = -1;
+    private long maxLatency = -1;
 
     StateManager()
     {
@@ -63,6 +93,79 @@ public class StateManager
         return serverState;
     }
 
+    /**
+     * If the subscription filter is changed, the known devices are dropped since the server
+     * sends the configuration of the matching devices again
+     */
+    void setSubscriptionFilter(String filter)
+    {
+        if (!subscriptionFilter.equals(filter))
+        {
+            Logging.info(this, "subscription filter: " + filter);
+            subscriptionFilter = filter;
+            devices.clear();
+            deviceVersions.clear();
+            dropPendingStates(Long.MAX_VALUE);
+            sessionToken = "";
+        }
+    }
+
+    boolean isPlainLoginServer(String address)
+    {
+        synchronized (plainLoginServers)
+        {
+            return plainLoginServers.contains(address);
+        }
+    }
+
+    void setPlainLoginServer(String address)
+    {
+        synchronized (plainLoginServers)
+        {
+            plainLoginServers.add(address);
+        }
+    }
+
+    String getSessionToken()
+    {
+        return sessionToken;
+    }
+
+    String getConfigVersion()
+    {
+        return configVersion;
+    }
+
+    long getStateVersion()
+    {
+        return stateVersion;
+    }
+
+    /**
+     * Called when the screen was updated after a message: computes the latency from the frame
+     * reception on the server until now
+     */
+    void onScreenUpdated()
+    {
+        if (pendingReceiveTime > 0)
+        {
+            lastLatency = Math.max(0, System.currentTimeMillis() - pendingReceiveTime);
+            maxLatency = Math.max(maxLatency, lastLatency);
+            pendingReceiveTime = 0;
+            Logging.info(this, "frame-to-screen latency: " + lastLatency + " ms");
+        }
+    }
+
+    long getLastLatency()
+    {
+        return lastLatency;
+    }
+
+    long getMaxLatency()
+    {
+        return maxLatency;
+    }
+
     void handleMessage(Message m)
     {
         switch (m.getType())
@@ -79,6 +182,12 @@ public class StateManager
         case SERVER_STATE:
             handleServerStateMsg(m);
             break;
+        case SESSION:
+            handleSessionMsg(m);
+            break;
+        case SNAPSHOT:
+            handleSnapshotMsg(m);
+            break;
         case HEARTBIT:
             // nothing to do
             break;
@@ -122,6 +231,12 @@ public class StateManager
                 throw new Exception("multiply configuration for device id #" + s.getId());
             }
             devices.put(s.getId(), s);
+            final Message pending = pendingStates.remove(s.getId());
+            if (pending != null)
+            {
+                handleDeviceStateMsg(pending);
+                pending.recycle();
+            }
         }
         catch (Exception e)
         {
@@ -132,7 +247,9 @@ public class StateManager
     private void handleDeviceNumberMsg(Message m)
     {
         Logging.info(this, "handle device number message: " + m.toString());
-        final int size = Integer.parseInt(m.getParameter(0));
+        // the dump is complete: a remaining pending state belongs to a device that is not configured
+        dropPendingStates(Long.MAX_VALUE);
+        final int size = m.getInt(0);
         if (devices.size() != size)
         {
             Logging.info(this, "number of devices is invalid");
@@ -147,23 +264,162 @@ public class StateManager
 
     private void handleDeviceStateMsg(Message m)
     {
-        Logging.info(this, "handle device state message: " + m.toString());
-        final int id = Integer.parseInt(m.getParameter(0));
+        // the typed parameters are read without any conversion and no log text is built
+        // unless logging is enabled, so that handling a state update creates no garbage. The
+        // decoding of the frame still allocates the decrypted body and the two short strings
+        // (alarm time and battery state)
+        if (Logging.ENABLED)
+        {
+            Logging.info(this, "handle device state message: " + m.toString());
+        }
+        final int id = m.getInt(0);
+        long version = 0;
+        try
+        {
+            version = m.getLong(Message.STATE_PAR_VERSION, 0);
+        }
+        catch (NumberFormatException e)
+        {
+            // nothing to do
+        }
+        if (!updateDeviceVersion(id, version))
+        {
+            if (Logging.ENABLED)
+            {
+                Logging.info(this, "older state of device #" + id + " is ignored");
+            }
+            return;
+        }
         DeviceState d = devices.get(id);
+        if (d == null && version > 0)
+        {
+            // a live state change that overtakes the configuration of the device
+            final Message previous = pendingStates.put(id, m.retain());
+            if (previous != null)
+            {
+                previous.recycle();
+            }
+            return;
+        }
         if (d == null)
         {
-            Logging.info(this, "devices #" + id + "is not configured");
+            if (Logging.ENABLED)
+            {
+                Logging.info(this, "devices #" + id + "is not configured");
+            }
             return;
         }
         d.updateFromMessage(m);
-        Logging.info(this, "devices state: " + toString());
+        stateVersion = Math.max(stateVersion, version);
+        try
+        {
+            pendingReceiveTime = m.getLong(Message.STATE_PAR_RECEIVE_TIME, 0);
+        }
+        catch (NumberFormatException e)
+        {
+            // nothing to do
+        }
+        if (Logging.ENABLED)
+        {
+            Logging.info(this, "devices state: " + toString());
+        }
+    }
+
+    private void handleSessionMsg(Message m)
+    {
+        Logging.info(this, "handle session message: " + m.toString());
+        if (!Message.SESSION_MODE_RESUME.equals(m.getParameter(Message.SESSION_PAR_MODE)))
+        {
+            // the server sends the full configuration and state
+            devices.clear();
+            serverState.clear();
+        }
+        sessionToken = m.getParameter(Message.SESSION_PAR_TOKEN);
+        configVersion = m.getParameter(Message.SESSION_PAR_CONFIG_VERSION);
+        try
+        {
+            stateVersion = Long.parseLong(m.getParameter(Message.SESSION_PAR_STATE_VERSION));
+        }
+        catch (NumberFormatException e)
+        {
+            stateVersion = 0;
+        }
+        if (!Message.SESSION_MODE_RESUME.equals(m.getParameter(Message.SESSION_PAR_MODE)))
+        {
+            // only the states that overtook this dump are newer than the session
+            dropPendingStates(stateVersion);
+            deviceVersions.clear();
+            for (Map.Entry<Integer, Message> e : pendingStates.entrySet())
+            {
+                updateDeviceVersion(e.getKey(), e.getValue().getLong(Message.STATE_PAR_VERSION, 0));
+            }
+        }
+    }
+
+    /**
+     * Stores the version of the received state of the device. Returns false if the device already
+     * has a newer state. A state without version, sent by an older server, is always accepted
+     */
+    private boolean updateDeviceVersion(int id, long version)
+    {
+        if (version <= 0)
+        {
+            return true;
+        }
+        final long[] applied = deviceVersions.get(id);
+        if (applied == null)
+        {
+            deviceVersions.put(id, new long[]{ version });
+            return true;
+        }
+        if (version < applied[0])
+        {
+            return false;
+        }
+        applied[0] = version;
+        return true;
+    }
+
+    /**
+     * Drops the pending states that are not newer than the given version
+     */
+    private void dropPendingStates(long version)
+    {
+        for (Iterator<Message> it = pendingStates.values().iterator(); it.hasNext(); )
+        {
+            final Message m = it.next();
+            if (m.getLong(Message.STATE_PAR_VERSION, 0) <= version)
+            {
+                m.recycle();
+                it.remove();
+            }
+        }
+    }
+
+    private void handleSnapshotMsg(Message m)
+    {
+        Logging.info(this, "handle snapshot message: " + m.getParameter(0) + " messages, "
+                + m.getPayload().length + " bytes");
+        try
+        {
+            for (Message inner : Snapshot.getMessages(m))
+            {
+                handleMessage(inner);
+                inner.recycle();
+            }
+        }
+        catch (Exception e)
+        {
+            Logging.info(this, "can not process snapshot: " + e.getLocalizedMessage());
+        }
     }
 
     private void handleServerStateMsg(Message m)
     {
         Logging.info(this, "handle server state message: " + m.toString());
         serverState.clear();
-        for (int i = 0; i < Message.Type.SERVER_STATE.getParNumber(); i += 2)
+        // the message contains a variable number of label and value pairs
+        for (int i = 0; i + 1 < m.getParameterCount(); i += 2)
         {
             serverState.add(new Pair<>(m.getParameter(i), m.getParameter(i + 1)));
         }
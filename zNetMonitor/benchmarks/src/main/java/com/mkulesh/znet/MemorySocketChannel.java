@@ -0,0 +1,198 @@
+/*
+ * stm32WindowSensor: RF window sensors: STM32L + RFM69 + Android
+ *
+ * Copyright (C) 2019. Mikhail Kulesh
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details. You should have received a copy of the GNU General
+ * Public License along with this program.
+ */
+
+package com.mkulesh.znet;
+
+import com.mkulesh.znet.common.LatencyHistogram;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory client sink in place of a client socket. The channel behaves like a non-blocking
+ * socket without input data; the login is given to the server directly. All
+ * written data is consumed immediately: the messages and bytes are counted and, while a sensor
+ * event is in progress, the time since the event was fed into the pipeline is recorded.
+ */
+class MemorySocketChannel extends SocketChannel
+{
+    private final static InetSocketAddress ADDRESS = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+
+    private final AtomicLong eventTime;
+    private final AtomicLong writtenMessages;
+    private final LatencyHistogram latency;
+    private volatile long writtenBytes = 0;
+
+    /**
+     * @param eventTime       the time (System.nanoTime) the current event was fed, or 0 if none
+     * @param writtenMessages counter of the written messages shared by all sinks
+     * @param latency         histogram of the event latencies shared by all sinks
+     */
+    MemorySocketChannel(AtomicLong eventTime, AtomicLong writtenMessages, LatencyHistogram latency)
+    {
+        super(SelectorProvider.provider());
+        this.eventTime = eventTime;
+        this.writtenMessages = writtenMessages;
+        this.latency = latency;
+    }
+
+    long getWrittenBytes()
+    {
+        return writtenBytes;
+    }
+
+    @Override
+    public int read(ByteBuffer dst)
+    {
+        return 0;
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts, int offset, int length)
+    {
+        long n = 0;
+        for (int i = offset; i < offset + length; i++)
+        {
+            n += read(dsts[i]);
+        }
+        return n;
+    }
+
+    @Override
+    public int write(ByteBuffer src)
+    {
+        final int n = src.remaining();
+        src.position(src.limit());
+        writtenBytes += n;
+        final long start = eventTime.get();
+        if (start > 0)
+        {
+            latency.record(System.nanoTime() - start);
+        }
+        writtenMessages.incrementAndGet();
+        return n;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length)
+    {
+        long n = 0;
+        for (int i = offset; i < offset + length; i++)
+        {
+            n += write(srcs[i]);
+        }
+        return n;
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress()
+    {
+        return ADDRESS;
+    }
+
+    @Override
+    public SocketAddress getLocalAddress()
+    {
+        return ADDRESS;
+    }
+
+    @Override
+    public boolean isConnected()
+    {
+        return true;
+    }
+
+    @Override
+    public boolean isConnectionPending()
+    {
+        return false;
+    }
+
+    @Override
+    public boolean connect(SocketAddress remote)
+    {
+        return true;
+    }
+
+    @Override
+    public boolean finishConnect()
+    {
+        return true;
+    }
+
+    @Override
+    public SocketChannel bind(SocketAddress local)
+    {
+        return this;
+    }
+
+    @Override
+    public <T> SocketChannel setOption(SocketOption<T> name, T value)
+    {
+        return this;
+    }
+
+    @Override
+    public <T> T getOption(SocketOption<T> name)
+    {
+        return null;
+    }
+
+    @Override
+    public Set<SocketOption<?>> supportedOptions()
+    {
+        return Collections.emptySet();
+    }
+
+    @Override
+    public SocketChannel shutdownInput()
+    {
+        return this;
+    }
+
+    @Override
+    public SocketChannel shutdownOutput()
+    {
+        return this;
+    }
+
+    @Override
+    public Socket socket()
+    {
+        throw new UnsupportedOperationException("in-memory channel");
+    }
+
+    @Override
+    protected void implCloseSelectableChannel() throws IOException
+    {
+        // nothing to do
+    }
+
+    @Override
+    protected void implConfigureBlocking(boolean block) throws IOException
+    {
+        // nothing to do
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * stm32WindowSensor: RF window sensors: STM32L + RFM69 + Android
+ *
+ * Copyright (C) 2019. Mikhail Kulesh
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details. You should have received a copy of the GNU General
+ * Public License along with this program.
+ */
+
+package com.mkulesh.znet;
+
+import com.mkulesh.znet.common.CustomLogger;
+import com.mkulesh.znet.common.LatencyHistogram;
+import com.mkulesh.znet.common.Message;
+import com.mkulesh.znet.eventlog.EventLog;
+import com.mkulesh.znet.network.ClientAppManager;
+import com.mkulesh.znet.scheduler.Scheduler;
+import com.mkulesh.znet.serial.MessageHandler;
+import com.mkulesh.znet.serial.SerialCommunication;
+
+import java.io.File;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * In-process benchmark of the complete server pipeline: sensor frames are fed into the serial
+ * reader from memory and pass the message handler, the state manager and the broadcast path
+ * including the logger, up to the client threads, which write into in-memory sinks instead of
+ * sockets. The events are fed one at a time: the next event is fed when all clients have written
+ * the previous one.
+ *
+ * The result is the cost per sensor event with K clients: the CPU time and the allocated memory of
+ * all server threads per event, and the latency from feeding the event until it is written by each
+ * client. The benchmark exits with code 1 if the allocation per event exceeds --max-bytes-per-event.
+ * The class is placed into the server package since the in-process server is configured using
+ * package-private methods.
+ *
+ * Usage: PipelineBenchmark [--clients 10] [--devices 50] [--events 20000] [--warmup 5000]
+ *        [--protocol binary|text] [--output pipeline.json] [--max-bytes-per-event 0 (no check)]
+ */
+public class PipelineBenchmark
+{
+    private final static String PASSWORD = "benchmark";
+    private final static long WAIT_TIMEOUT = TimeUnit.SECONDS.toNanos(10);
+
+    private final int clients;
+    private final int devices;
+    private final com.sun.management.ThreadMXBean threadBean;
+    private final MemorySerialSource source = new MemorySerialSource();
+    private final AtomicLong eventTime = new AtomicLong(0);
+    private final AtomicLong writtenMessages = new AtomicLong(0);
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final ArrayList<MemorySocketChannel> sinks = new ArrayList<>();
+    private final byte[][] frames;
+
+    private PipelineBenchmark(int clients, int devices)
+    {
+        this.clients = clients;
+        this.devices = devices;
+        this.threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+        threadBean.setThreadCpuTimeEnabled(true);
+
+        // Two frames per device: the first one opens the window and the second one closes it, so
+        // that each frame is a state change
+        frames = new byte[2 * devices][];
+        for (int i = 0; i < frames.length; i++)
+        {
+            final String frame = "GW;3;" + (1 + i % devices) + ";-67;" + (i < devices ? 0 : 1) + ";385;33;18.\n";
+            frames[i] = frame.getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private void startServer(int protocol, File logDir) throws Exception
+    {
+        final Logger logger = new CustomLogger(new File(logDir, Config.LOGFILE_NAME).getPath(),
+                Config.LOGFILE_SIZE).getLogger();
+        final Properties properties = new Properties();
+        properties.setProperty("password", PASSWORD);
+        // heartbits would be counted as messages
+        properties.setProperty("heartbitInterval", Integer.toString(Integer.MAX_VALUE / 2));
+        // every event toggles the alarm of a sensor, which would be suppressed as flapping
+        properties.setProperty("flapThreshold", "0");
+        for (int i = 0; i < devices; i++)
+        {
+            properties.setProperty("sensor" + (i + 1),
+                    (i + 1) + " | Window sensor | BENCHMARK | 1 | room" + (1 + i % 10) + " | " + (i + 1));
+        }
+        Config.loadConfiguration(logger, properties);
+        EventLog.open(logger, new File(logDir, Config.EVENTLOG_NAME).getPath(), Config.getEventLogSegmentSize(),
+                Config.getEventLogSegments());
+
+        final StateManager stateManager = new StateManager(logger);
+        stateManager.readConfigurationFile(Config.getSensors());
+        final Scheduler scheduler = new Scheduler(logger, Config.SCHEDULER_TICK, Config.SCHEDULER_WHEEL_SIZE);
+        scheduler.start();
+        final ClientAppManager clientAppManager = new ClientAppManager(logger, stateManager, scheduler,
+                Config.getNetworkInterface(), Config.getClientAppPort());
+        stateManager.setClientAppManager(clientAppManager);
+
+        final MessageHandler messageHandler = new MessageHandler(logger, stateManager);
+        messageHandler.start();
+        final Thread reader = new Thread(new SerialCommunication.SerialReader(logger, "memory", source,
+                messageHandler), "serial port reader");
+        reader.setDaemon(true);
+        reader.start();
+
+        for (int i = 0; i < clients; i++)
+        {
+            final MemorySocketChannel sink = new MemorySocketChannel(eventTime, writtenMessages, latency);
+            if (!clientAppManager.addClient(sink, getLoginMessage(protocol)))
+            {
+                throw new Exception("login of client " + i + " failed");
+            }
+            sinks.add(sink);
+        }
+        // the initial messages sent after the login shall be written before the measurement starts
+        long written;
+        do
+        {
+            written = writtenMessages.get();
+            TimeUnit.MILLISECONDS.sleep(500);
+        }
+        while (written != writtenMessages.get() || written < 2 * clients);
+    }
+
+    /**
+     * The login is given to the server without the initial encryption, so that the benchmark does
+     * not depend on Message.AES_KEY, which is a placeholder in the shipped sources
+     */
+    private Message getLoginMessage(int protocol)
+    {
+        final Message login = new Message(Message.Type.CLIENT_LOGIN);
+        login.addParameter("znet pipeline benchmark");
+        login.addParameter(PASSWORD);
+        login.addParameter("000102030405060708090A0B0C0D0E0F");
+        login.addParameter(Integer.toString(protocol));
+        return login;
+    }
+
+    /**
+     * Feeds the given number of events and waits for each one until all clients have written it
+     */
+    private void run(int events, int firstEvent) throws Exception
+    {
+        for (int i = 0; i < events; i++)
+        {
+            final long expected = writtenMessages.get() + clients;
+            final long start = System.nanoTime();
+            eventTime.set(start);
+            source.feed(frames[(firstEvent + i) % frames.length]);
+            while (writtenMessages.get() < expected)
+            {
+                if (System.nanoTime() - start > WAIT_TIMEOUT)
+                {
+                    throw new Exception("event " + (firstEvent + i) + " was not delivered to all clients");
+                }
+                LockSupport.parkNanos(1000);
+            }
+            eventTime.set(0);
+        }
+    }
+
+    /**
+     * Returns the sum of the CPU time (index 0) and the allocated bytes (index 1) of the given threads
+     */
+    private long[] getThreadUsage(long[] threadIds)
+    {
+        final long[] cpu = threadBean.getThreadCpuTime(threadIds);
+        final long[] allocated = threadBean.getThreadAllocatedBytes(threadIds);
+        final long[] usage = new long[2];
+        for (int i = 0; i < threadIds.length; i++)
+        {
+            usage[0] += Math.max(0, cpu[i]);
+            usage[1] += Math.max(0, allocated[i]);
+        }
+        return usage;
+    }
+
+    /**
+     * Returns all threads except the calling one, which only feeds the events
+     */
+    private long[] getServerThreads()
+    {
+        final long self = Thread.currentThread().getId();
+        final long[] all = threadBean.getAllThreadIds();
+        final long[] ids = new long[all.length - 1];
+        int n = 0;
+        for (long id : all)
+        {
+            if (id != self && n < ids.length)
+            {
+                ids[n++] = id;
+            }
+        }
+        return ids;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        final HashMap<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2)
+        {
+            options.put(args[i].replace("--", ""), args[i + 1]);
+        }
+        final int clients = Integer.parseInt(getOption(options, "clients", "10"));
+        final int devices = Integer.parseInt(getOption(options, "devices", "50"));
+        final int events = Integer.parseInt(getOption(options, "events", "20000"));
+        final int warmup = Integer.parseInt(getOption(options, "warmup", "5000"));
+        final int protocol = "text".equals(getOption(options, "protocol", "binary")) ?
+                Message.PROTOCOL_TEXT : Message.PROTOCOL_BINARY;
+        final long maxBytesPerEvent = Long.parseLong(getOption(options, "max-bytes-per-event", "0"));
+
+        final File logDir = Files.createTempDirectory("znet-benchmark").toFile();
+        final PipelineBenchmark benchmark = new PipelineBenchmark(clients, devices);
+        benchmark.startServer(protocol, logDir);
+        benchmark.run(warmup, 0);
+        benchmark.latency.reset();
+
+        final long[] threads = benchmark.getServerThreads();
+        final long[] usageBefore = benchmark.getThreadUsage(threads);
+        long bytesBefore = 0;
+        for (MemorySocketChannel sink : benchmark.sinks)
+        {
+            bytesBefore += sink.getWrittenBytes();
+        }
+        final long start = System.nanoTime();
+        benchmark.run(events, warmup);
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        final long[] usageAfter = benchmark.getThreadUsage(threads);
+        long bytesAfter = 0;
+        for (MemorySocketChannel sink : benchmark.sinks)
+        {
+            bytesAfter += sink.getWrittenBytes();
+        }
+
+        final double cpuPerEvent = (usageAfter[0] - usageBefore[0]) / 1e3 / events;
+        final double bytesPerEvent = (double) (usageAfter[1] - usageBefore[1]) / events;
+        final double outputPerEvent = (double) (bytesAfter - bytesBefore) / events;
+        final LatencyHistogram latency = benchmark.latency;
+        System.out.println(String.format(Locale.US,
+                "pipeline: %d clients, %d devices, %s protocol, %d events in %.1f s (%.1f events/s)",
+                clients, devices, protocol == Message.PROTOCOL_BINARY ? "binary" : "text", events, seconds,
+                events / seconds));
+        System.out.println(String.format(Locale.US,
+                "  cost per sensor event: cpu %.1f us, allocated %.0f bytes, output %.0f bytes",
+                cpuPerEvent, bytesPerEvent, outputPerEvent));
+        System.out.println("  latency per client [ns]: " + latency.toString());
+
+        final String output = options.get("output");
+        if (output != null)
+        {
+            final Path file = Paths.get(output);
+            if (file.getParent() != null)
+            {
+                Files.createDirectories(file.getParent());
+            }
+            try (Writer w = new OutputStreamWriter(Files.newOutputStream(file), StandardCharsets.UTF_8))
+            {
+                w.write(String.format(Locale.US, "{\"benchmark\": \"pipeline\", \"clients\": %d, \"devices\": %d, "
+                                + "\"protocol\": \"%s\", \"events\": %d, \"cpuMicrosPerEvent\": %.1f, "
+                                + "\"bytesAllocatedPerEvent\": %.0f, \"bytesWrittenPerEvent\": %.0f, "
+                                + "\"latencyNanos\": {\"p50\": %d, \"p99\": %d, \"max\": %d}}\n",
+                        clients, devices, protocol == Message.PROTOCOL_BINARY ? "binary" : "text", events,
+                        cpuPerEvent, bytesPerEvent, outputPerEvent, latency.getValueAtPercentile(50),
+                        latency.getValueAtPercentile(99), latency.getMax()));
+            }
+            System.out.println("result is written into " + output);
+        }
+
+        int exitCode = 0;
+        if (maxBytesPerEvent > 0 && bytesPerEvent > maxBytesPerEvent)
+        {
+            System.out.println(String.format(Locale.US,
+                    "FAILED: allocation per event %.0f bytes exceeds the limit of %d bytes",
+                    bytesPerEvent, maxBytesPerEvent));
+            exitCode = 1;
+        }
+        System.exit(exitCode);
+    }
+
+    private static String getOption(HashMap<String, String> options, String key, String defaultValue)
+    {
+        final String value = options.get(key);
+        return value == null ? defaultValue : value;
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * stm32WindowSensor: RF window sensors: STM32L + RFM69 + Android
+ *
+ * Copyright (C) 2019. Mikhail Kulesh
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details. You should have received a copy of the GNU General
+ * Public License along with this program.
+ */
+
+package com.mkulesh.znet.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Minimal benchmark harness: each benchmark is warmed up and then measured in several timed
+ * iterations on the calling thread. The throughput is given in operations per second together with
+ * its standard deviation over the iterations. The allocation per operation is measured using the
+ * allocated bytes counter of the current thread (HotSpot specific).
+ */
+class BenchmarkRunner
+{
+    // the operations are executed in batches of about this duration between two clock readings
+    private final static long BATCH_TIME = TimeUnit.MILLISECONDS.toNanos(1);
+
+    static class Result
+    {
+        final String name;
+        final double opsPerSecond;
+        final double error;
+        final double bytesPerOp;
+
+        Result(String name, double opsPerSecond, double error, double bytesPerOp)
+        {
+            this.name = name;
+            this.opsPerSecond = opsPerSecond;
+            this.error = error;
+            this.bytesPerOp = bytesPerOp;
+        }
+
+        public String toString()
+        {
+            return String.format(Locale.US, "%-32s %14.1f +- %10.1f ops/s %10.1f B/op",
+                    name, opsPerSecond, error, bytesPerOp);
+        }
+    }
+
+    private final long warmupTime;
+    private final long iterationTime;
+    private final int iterations;
+    private final com.sun.management.ThreadMXBean threadBean;
+    private final List<Result> results = new ArrayList<>();
+
+    // consumes the results of the benchmarked operations
+    private volatile Object sink;
+
+    /**
+     * @param warmupTime    warm-up time per benchmark in milliseconds
+     * @param iterationTime duration of a single measured iteration in milliseconds
+     * @param iterations    number of measured iterations
+     */
+    BenchmarkRunner(long warmupTime, long iterationTime, int iterations)
+    {
+        this.warmupTime = TimeUnit.MILLISECONDS.toNanos(warmupTime);
+        this.iterationTime = TimeUnit.MILLISECONDS.toNanos(iterationTime);
+        this.iterations = iterations;
+        this.threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (threadBean.isThreadAllocatedMemorySupported())
+        {
+            threadBean.setThreadAllocatedMemoryEnabled(true);
+        }
+    }
+
+    List<Result> getResults()
+    {
+        return results;
+    }
+
+    Result run(String name, Benchmark benchmark) throws Exception
+    {
+        // warm-up: also calibrates the batch size
+        long batch = 1;
+        final long warmupEnd = System.nanoTime() + warmupTime;
+        while (System.nanoTime() < warmupEnd)
+        {
+            final long start = System.nanoTime();
+            execute(benchmark, batch);
+            if (System.nanoTime() - start < BATCH_TIME)
+            {
+                batch *= 2;
+            }
+        }
+
+        final double[] throughput = new double[iterations];
+        long totalOps = 0;
+        final long threadId = Thread.currentThread().getId();
+        final long allocatedBefore = getAllocatedBytes(threadId);
+        for (int i = 0; i < iterations; i++)
+        {
+            long ops = 0;
+            final long start = System.nanoTime();
+            long now;
+            do
+            {
+                execute(benchmark, batch);
+                ops += batch;
+                now = System.nanoTime();
+            }
+            while (now - start < iterationTime);
+            throughput[i] = ops * 1e9 / (now - start);
+            totalOps += ops;
+        }
+        final long allocated = getAllocatedBytes(threadId) - allocatedBefore;
+
+        double mean = 0;
+        for (double t : throughput)
+        {
+            mean += t / iterations;
+        }
+        double variance = 0;
+        for (double t : throughput)
+        {
+            variance += (t - mean) * (t - mean) / Math.max(1, iterations - 1);
+        }
+        final Result result = new Result(name, mean, Math.sqrt(variance),
+                allocated < 0 ? Double.NaN : (double) allocated / totalOps);
+        results.add(result);
+        return result;
+    }
+
+    private void execute(Benchmark benchmark, long ops) throws Exception
+    {
+        for (long i = 0; i < ops; i++)
+        {
+            sink = benchmark.run();
+        }
+    }
+
+    private long getAllocatedBytes(long threadId)
+    {
+        return threadBean.isThreadAllocatedMemoryEnabled() ? threadBean.getThreadAllocatedBytes(threadId) : -1;
+    }
+
+    /**
+     * Writes all results as a JSON array into the given file
+     */
+    void writeJson(Path file) throws IOException
+    {
+        if (file.getParent() != null)
+        {
+            Files.createDirectories(file.getParent());
+        }
+        try (Writer w = new OutputStreamWriter(Files.newOutputStream(file), StandardCharsets.UTF_8))
+        {
+            w.write("[\n");
+            for (int i = 0; i < results.size(); i++)
+            {
+                final Result r = results.get(i);
+                w.write(String.format(Locale.US,
+                        "  {\"benchmark\": \"%s\", \"opsPerSecond\": %.1f, \"error\": %.1f, \"bytesPerOp\": %s}%s\n",
+                        r.name, r.opsPerSecond, r.error,
+                        Double.isNaN(r.bytesPerOp) ? "null" : String.format(Locale.US, "%.1f", r.bytesPerOp),
+                        i + 1 < results.size() ? "," : ""));
+            }
+            w.write("]\n");
+        }
+    }
+}
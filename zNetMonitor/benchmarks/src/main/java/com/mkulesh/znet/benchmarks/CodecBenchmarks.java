@@ -0,0 +1,130 @@
+/*
+ * stm32WindowSensor: RF window sensors: STM32L + RFM69 + Android
+ *
+ * Copyright (C) 2019. Mikhail Kulesh
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details. You should have received a copy of the GNU General
+ * Public License along with this program.
+ */
+
+package com.mkulesh.znet.benchmarks;
+
+import com.mkulesh.znet.common.AdvancedEncryptionStandard;
+import com.mkulesh.znet.common.BinaryCodec;
+import com.mkulesh.znet.common.DeviceConfig;
+import com.mkulesh.znet.common.DeviceState;
+import com.mkulesh.znet.common.Message;
+import com.mkulesh.znet.common.Utils;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Base64;
+import java.util.HashMap;
+
+/**
+ * Benchmarks of the protocol hot path in the common module: message encoding and decoding,
+ * device configuration parsing, device state conversion, encryption and the Base64 and hex
+ * conversions used by the text protocol.
+ *
+ * Usage: CodecBenchmarks [--output codecs.json] [--warmup 2000] [--time 1000] [--iterations 5]
+ *        [--filter name-part]
+ */
+public class CodecBenchmarks
+{
+    private final static String DEVICE_CONFIG = "7 | Window sensor | RFM69 | 1 | Living room | Left";
+
+    public static void main(String[] args) throws Exception
+    {
+        final HashMap<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2)
+        {
+            options.put(args[i].replace("--", ""), args[i + 1]);
+        }
+        final BenchmarkRunner runner = new BenchmarkRunner(
+                Long.parseLong(getOption(options, "warmup", "2000")),
+                Long.parseLong(getOption(options, "time", "1000")),
+                Integer.parseInt(getOption(options, "iterations", "5")));
+        final String filter = getOption(options, "filter", "");
+
+        // test data: a typical device state message and a session key as used by the clients
+        final DeviceState state = new DeviceState(new DeviceConfig(DEVICE_CONFIG));
+        state.setAlarm(true);
+        state.setBatteryState("3.3 V");
+        final Message stateMsg = state.getDeviceStateMsg();
+        final String stateText = stateMsg.encode();
+        final byte[] stateBinary = BinaryCodec.encode(stateMsg);
+        final byte[] key = new byte[16];
+        for (int i = 0; i < key.length; i++)
+        {
+            key[i] = (byte) (i * 37);
+        }
+        final AdvancedEncryptionStandard aes =
+                new AdvancedEncryptionStandard(Utils.bb2hex(key).replaceAll("\\s", ""));
+        final byte[] encrypted = aes.encrypt(stateText);
+        final String base64 = Base64.getEncoder().encodeToString(encrypted);
+        final DeviceState target = new DeviceState(new DeviceConfig(DEVICE_CONFIG));
+
+        final Object[][] benchmarks = new Object[][]{
+                { "message.encode", (Benchmark) stateMsg::encode },
+                { "message.decode", (Benchmark) () -> new Message(stateText) },
+                { "binaryCodec.encode", (Benchmark) () -> BinaryCodec.encode(stateMsg) },
+                { "binaryCodec.decode", (Benchmark) () -> BinaryCodec.decode(stateBinary, 0, stateBinary.length) },
+                { "deviceConfig.parse", (Benchmark) () -> new DeviceConfig(DEVICE_CONFIG) },
+                { "binaryCodec.decodePooled", (Benchmark) () -> // the decoded message is recycled as the app does
+                {
+                    final Message m = BinaryCodec.decode(stateBinary, 0, stateBinary.length);
+                    final boolean alarm = m.getBoolean(1);
+                    m.recycle();
+                    return alarm;
+                } },
+                { "deviceState.getDeviceStateMsg", (Benchmark) state::getDeviceStateMsg },
+                { "deviceState.stateMsgPooled", (Benchmark) () ->
+                {
+                    final Message m = state.getDeviceStateMsg();
+                    final int count = m.getParameterCount();
+                    m.recycle();
+                    return count;
+                } },
+                { "deviceState.updateFromMessage", (Benchmark) () ->
+                {
+                    target.updateFromMessage(stateMsg);
+                    return target;
+                } },
+                { "aes.encrypt", (Benchmark) () -> aes.encrypt(stateText) },
+                { "aes.decrypt", (Benchmark) () -> aes.decrypt(encrypted, 0, encrypted.length) },
+                { "base64.encode", (Benchmark) () -> Base64.getEncoder().encodeToString(encrypted) },
+                { "base64.decode", (Benchmark) () -> Base64.getDecoder().decode(base64) },
+                { "utils.bb2hex", (Benchmark) () -> Utils.bb2hex(key) },
+                { "text.send", (Benchmark) () -> // the complete text protocol path of a single message
+                        (Message.START_TAG + Base64.getEncoder().encodeToString(aes.encrypt(stateMsg.encode()))
+                                + Message.END_TAG).getBytes(StandardCharsets.UTF_8) },
+                { "binary.send", (Benchmark) () -> BinaryCodec.encodeFrame(stateMsg, aes) },
+        };
+
+        for (Object[] b : benchmarks)
+        {
+            final String name = (String) b[0];
+            if (name.contains(filter))
+            {
+                System.out.println(runner.run(name, (Benchmark) b[1]).toString());
+            }
+        }
+        if (options.containsKey("output"))
+        {
+            runner.writeJson(Paths.get(options.get("output")));
+            System.out.println("results are written into " + options.get("output"));
+        }
+    }
+
+    private static String getOption(HashMap<String, String> options, String key, String defaultValue)
+    {
+        final String value = options.get(key);
+        return value == null ? defaultValue : value;
+    }
+}
@@ -22,6 +22,10 @@ public class AdvancedEncryptionStandard
 {
     private String encryptionKey;
 
+    // Cipher initialization is expensive: the ciphers are created once and reused
+    private Cipher encryptCipher = null;
+    private Cipher decryptCipher = null;
+
     public AdvancedEncryptionStandard(String encryptionKey)
     {
         this.encryptionKey = encryptionKey;
@@ -29,17 +33,42 @@ public class AdvancedEncryptionStandard
 
     public byte[] encrypt(String plainText) throws Exception
     {
-        Cipher cipher = getCipher(Cipher.ENCRYPT_MODE);
-        return cipher.doFinal(plainText.getBytes());
+        return encrypt(plainText.getBytes());
+    }
+
+    public synchronized byte[] encrypt(byte[] plainBytes) throws Exception
+    {
+        if (encryptCipher == null)
+        {
+            encryptCipher = getCipher(Cipher.ENCRYPT_MODE);
+        }
+        return encryptCipher.doFinal(plainBytes);
     }
 
     public String decrypt(byte[] encrypted) throws Exception
     {
-        Cipher cipher = getCipher(Cipher.DECRYPT_MODE);
-        byte[] plainBytes = cipher.doFinal(encrypted);
+        byte[] plainBytes = decrypt(encrypted, 0, encrypted.length);
         return new String(plainBytes);
     }
 
+    public synchronized byte[] decrypt(byte[] encrypted, int offset, int length) throws Exception
+    {
+        if (decryptCipher == null)
+        {
+            decryptCipher = getCipher(Cipher.DECRYPT_MODE);
+        }
+        try
+        {
+            return decryptCipher.doFinal(encrypted, offset, length);
+        }
+        catch (Exception e)
+        {
+            // the cipher state is undefined after a failure
+            decryptCipher = null;
+            throw e;
+        }
+    }
+
     private Cipher getCipher(int cipherMode) throws Exception
     {
         String encryptionAlgorithm = "AES";
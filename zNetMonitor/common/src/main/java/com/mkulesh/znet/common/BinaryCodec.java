@@ -0,0 +1,403 @@
+/*
+ * stm32WindowSensor: RF window sensors: STM32L + RFM69 + Android
+ *
+ * Copyright (C) 2019. Mikhail Kulesh
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details. You should have received a copy of the GNU General
+ * Public License along with this program.
+ */
+
+package com.mkulesh.znet.common;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Binary protocol (version 2).
+ *
+ * Frame:   [FRAME_START] [flags] [varint body length] [body]
+ * Body:    [type code] [varint parameter number] [parameters]
+ *
+ * The body is AES-encrypted if the FLAG_ENCRYPTED bit is set. Parameters are short strings
+ * (varint byte length followed by UTF-8 bytes); numerical parameters are written and read as
+ * decimal strings without creating String objects. DEVICE_STATE uses typed fields instead:
+ * varint id, alarm byte, alarm time, battery state and varint warning mask. A message with
+ * payload (SNAPSHOT) is followed by the varint payload length and the payload bytes.
+ */
+public class BinaryCodec
+{
+    public final static byte FRAME_START = 0x02;
+    public final static int FLAG_ENCRYPTED = 0x01;
+    public final static int MAX_FRAME_SIZE = 512 * 1024;
+    private final static int MAX_STRING_SIZE = 0xFFFF;
+    private final static int MAX_DECIMAL_SIZE = 18;
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Growable byte array without synchronization
+     */
+    private static class ByteWriter
+    {
+        private byte[] data = new byte[64];
+        private int size = 0;
+
+        void write(int b)
+        {
+            ensureCapacity(1);
+            data[size++] = (byte) b;
+        }
+
+        void write(byte[] b)
+        {
+            ensureCapacity(b.length);
+            System.arraycopy(b, 0, data, size, b.length);
+            size += b.length;
+        }
+
+        void writeVarint(int value)
+        {
+            while ((value & ~0x7F) != 0)
+            {
+                write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            write(value);
+        }
+
+        void writeString(String s)
+        {
+            final byte[] b = s.getBytes(UTF_8);
+            writeVarint(b.length);
+            write(b);
+        }
+
+        /**
+         * Writes a number as string (length and decimal digits) without creating the String
+         */
+        void writeDecimal(long value)
+        {
+            int length = value < 0 ? 2 : 1;
+            for (long v = value / 10; v != 0; v /= 10)
+            {
+                length++;
+            }
+            writeVarint(length);
+            ensureCapacity(length);
+            int pos = size + length;
+            long v = value;
+            do
+            {
+                data[--pos] = (byte) ('0' + Math.abs(v % 10));
+                v /= 10;
+            }
+            while (v != 0);
+            if (value < 0)
+            {
+                data[--pos] = '-';
+            }
+            size += length;
+        }
+
+        /**
+         * Writes a parameter as string; a number is converted without creating the String
+         */
+        void writeParameter(Message m, int i)
+        {
+            if (m.isNumber(i))
+            {
+                writeDecimal(m.getLong(i));
+            }
+            else
+            {
+                writeString(m.getParameter(i));
+            }
+        }
+
+        byte[] toByteArray()
+        {
+            return Arrays.copyOf(data, size);
+        }
+
+        private void ensureCapacity(int n)
+        {
+            if (size + n > data.length)
+            {
+                data = Arrays.copyOf(data, Math.max(2 * data.length, size + n));
+            }
+        }
+    }
+
+    /**
+     * Sequential reader of a byte array region
+     */
+    private static class ByteReader
+    {
+        private final byte[] data;
+        private int pos;
+        private final int end;
+
+        ByteReader(byte[] data, int offset, int length)
+        {
+            this.data = data;
+            this.pos = offset;
+            this.end = offset + length;
+        }
+
+        int read() throws Exception
+        {
+            if (pos >= end)
+            {
+                throw new Exception("unexpected end of message");
+            }
+            return data[pos++] & 0xFF;
+        }
+
+        int readVarint() throws Exception
+        {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7)
+            {
+                final int b = read();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                {
+                    return value;
+                }
+            }
+            throw new Exception("malformed varint");
+        }
+
+        byte[] readBytes() throws Exception
+        {
+            final int length = readVarint();
+            if (length < 0 || pos + length > end)
+            {
+                throw new Exception("invalid payload length " + length);
+            }
+            final byte[] b = Arrays.copyOfRange(data, pos, pos + length);
+            pos += length;
+            return b;
+        }
+
+        String readString() throws Exception
+        {
+            final int length = readVarint();
+            if (length < 0 || length > MAX_STRING_SIZE || pos + length > end)
+            {
+                throw new Exception("invalid string length " + length);
+            }
+            final String s = new String(data, pos, length, UTF_8);
+            pos += length;
+            return s;
+        }
+
+        /**
+         * Reads a string parameter that is expected to be a number: it is added as number
+         * without creating the String, or as string if it is not a plain decimal number
+         */
+        void readNumber(Message m) throws Exception
+        {
+            final int start = pos;
+            final int length = readVarint();
+            if (length < 1 || length > MAX_DECIMAL_SIZE || pos + length > end)
+            {
+                pos = start;
+                m.addParameter(readString());
+                return;
+            }
+            // only the canonical form is converted so that the text of the parameter is kept
+            final boolean negative = data[pos] == '-';
+            final int first = negative ? 1 : 0;
+            boolean canonical = length > first && (data[pos + first] != '0' || length == first + 1);
+            long value = 0;
+            for (int i = first; canonical && i < length; i++)
+            {
+                final int digit = data[pos + i] - '0';
+                canonical = digit >= 0 && digit <= 9;
+                value = 10 * value + digit;
+            }
+            if (!canonical || (negative && value == 0))
+            {
+                pos = start;
+                m.addParameter(readString());
+                return;
+            }
+            pos += length;
+            m.addParameter(negative ? -value : value);
+        }
+    }
+
+    /**
+     * Encodes the message body
+     */
+    public static byte[] encode(Message m)
+    {
+        final ByteWriter w = new ByteWriter();
+        w.write(m.getType().getCode());
+        final int parNumber = m.getParameterCount();
+        w.writeVarint(parNumber);
+        int i = 0;
+        if (m.getType() == Message.Type.DEVICE_STATE && parNumber >= Message.Type.DEVICE_STATE.getParNumber())
+        {
+            w.writeVarint(m.getInt(0));
+            w.write(m.getBoolean(1) ? 1 : 0);
+            w.writeString(m.getParameter(2));
+            w.writeString(m.getParameter(3));
+            w.writeVarint(DeviceState.getWarningsMask(m.getParameter(4)));
+            i = Message.Type.DEVICE_STATE.getParNumber();
+        }
+        for (; i < parNumber; i++)
+        {
+            w.writeParameter(m, i);
+        }
+        if (m.getType() == Message.Type.SNAPSHOT)
+        {
+            final byte[] payload = m.getPayload() == null ? new byte[0] : m.getPayload();
+            w.writeVarint(payload.length);
+            w.write(payload);
+        }
+        return w.toByteArray();
+    }
+
+    /**
+     * Decodes the message body into a message from the shared pool; the caller may recycle it
+     */
+    public static Message decode(byte[] data, int offset, int length) throws Exception
+    {
+        final ByteReader r = new ByteReader(data, offset, length);
+        final Message.Type type = Message.Type.fromCode(r.read());
+        if (type == null)
+        {
+            throw new Exception("unknown message code");
+        }
+        final int parNumber = r.readVarint();
+        if (parNumber < type.getParNumber())
+        {
+            throw new Exception("invalid parameter number");
+        }
+        final Message m = Message.obtain(type);
+        try
+        {
+            int i = 0;
+            if (type == Message.Type.DEVICE_STATE)
+            {
+                m.addParameter(r.readVarint());
+                m.addParameter(r.read() != 0);
+                m.addParameter(r.readString());
+                m.addParameter(r.readString());
+                m.addParameter(DeviceState.getWarningsString(r.readVarint()));
+                // the optional parameters are the state version and the receive time
+                for (i = type.getParNumber(); i < parNumber; i++)
+                {
+                    r.readNumber(m);
+                }
+            }
+            for (; i < parNumber; i++)
+            {
+                m.addParameter(r.readString());
+            }
+            if (type == Message.Type.SNAPSHOT)
+            {
+                m.setPayload(r.readBytes());
+            }
+        }
+        catch (Exception e)
+        {
+            m.recycle();
+            throw e;
+        }
+        return m;
+    }
+
+    /**
+     * Wraps the given body into a frame: start byte, flags and length prefix
+     */
+    public static byte[] frame(byte[] body, int flags)
+    {
+        final ByteWriter w = new ByteWriter();
+        w.write(FRAME_START);
+        w.write(flags);
+        w.writeVarint(body.length);
+        w.write(body);
+        return w.toByteArray();
+    }
+
+    /**
+     * Encodes the message into a complete frame; the body is encrypted if an encryptor is given
+     */
+    public static byte[] encodeFrame(Message m, AdvancedEncryptionStandard encryptor) throws Exception
+    {
+        final byte[] body = encode(m);
+        return encryptor == null ? frame(body, 0) : frame(encryptor.encrypt(body), FLAG_ENCRYPTED);
+    }
+
+    /**
+     * Returns the full size of the frame starting at the given offset, or -1 if the frame
+     * header or body is not yet complete
+     */
+    public static int getFrameSize(byte[] data, int offset, int length) throws Exception
+    {
+        if (length < 3)
+        {
+            return -1;
+        }
+        if (data[offset] != FRAME_START)
+        {
+            throw new Exception("invalid frame start");
+        }
+        int bodySize = 0;
+        int pos = offset + 2;
+        final int end = offset + length;
+        for (int shift = 0; ; shift += 7)
+        {
+            if (pos >= end)
+            {
+                return -1;
+            }
+            if (shift > 28)
+            {
+                throw new Exception("malformed frame length");
+            }
+            final int b = data[pos++] & 0xFF;
+            bodySize |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+            {
+                break;
+            }
+        }
+        if (bodySize < 0 || bodySize > MAX_FRAME_SIZE)
+        {
+            throw new Exception("invalid frame length " + bodySize);
+        }
+        final int frameSize = pos - offset + bodySize;
+        return frameSize <= length ? frameSize : -1;
+    }
+
+    /**
+     * Decodes a complete frame; an encrypted body is decrypted using the given encryptor
+     */
+    public static Message decodeFrame(byte[] data, int offset, int frameSize, AdvancedEncryptionStandard encryptor)
+            throws Exception
+    {
+        final ByteReader r = new ByteReader(data, offset + 1, frameSize - 1);
+        final int flags = r.read();
+        final int bodySize = r.readVarint();
+        final int bodyOffset = r.pos;
+        if ((flags & FLAG_ENCRYPTED) == 0)
+        {
+            return decode(data, bodyOffset, bodySize);
+        }
+        if (encryptor == null)
+        {
+            throw new Exception("encrypted frame without session key");
+        }
+        final byte[] body = encryptor.decrypt(data, bodyOffset, bodySize);
+        return decode(body, 0, body.length);
+    }
+}
@@ -15,14 +15,20 @@
 
 package com.mkulesh.znet.common;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
-import java.io.PrintWriter;
+import java.io.IOException;
+import java.io.Writer;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.ErrorManager;
 import java.util.logging.Handler;
+import java.util.logging.Level;
 import java.util.logging.LogRecord;
 import java.util.logging.Logger;
 import java.util.logging.SimpleFormatter;
@@ -48,40 +54,87 @@ public class CustomLogger
 
     private final Logger logger;
 
-    private static final SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd_HH:mm:ss_SSS");
+    /**
+     * Behaviour if the log ring is full: the record is either dropped and counted, or the
+     * logging thread waits until the writer thread has made space
+     */
+    public enum OverflowPolicy
+    {
+        DROP,
+        BLOCK
+    }
+
+    private final static int RING_SIZE = 8192;
+    private final static int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+    // only used from the writer thread; the formatted second is reused for all records within it
+    private final SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd_HH:mm:ss_SSS");
+    private final SimpleDateFormat secondFormat = new SimpleDateFormat("yyyy-MM-dd_HH:mm:ss_");
+    private long lastSecond = Long.MIN_VALUE;
+    private String lastSecondText = null;
 
     private final SimpleFormatter formatter = new SimpleFormatter()
     {
         @Override
-        public synchronized String format(final LogRecord record)
+        public String format(final LogRecord record)
         {
-            final String time = timeFormat.format(new Date(record.getMillis()));
-            final String level = record.getLevel().toString();
-            final String thread = "[" + Integer.toString(record.getThreadID()) + "]";
-            final String source = "(" + record.getSourceClassName() + ")";
-            String message = time + " " + level + thread + ": " + record.getMessage();
+            final StringBuilder message = new StringBuilder(128);
+            final long millis = record.getMillis();
+            if (millis / 1000 != lastSecond)
+            {
+                lastSecond = millis / 1000;
+                lastSecondText = secondFormat.format(new Date(lastSecond * 1000));
+            }
+            final int ms = (int) (millis % 1000);
+            message.append(lastSecondText).append(ms < 100 ? (ms < 10 ? "00" : "0") : "").append(ms);
+            message.append(' ').append(record.getLevel().toString());
+            message.append('[').append(record.getThreadID()).append("]: ");
+            message.append(record.getMessage());
             if (record.getThrown() != null)
             {
-                message += ": " + record.getThrown().getLocalizedMessage();
+                message.append(": ").append(record.getThrown().getLocalizedMessage());
             }
-            message += " " + source + "\n";
-            return message;
+            message.append(" (").append(record.getSourceClassName()).append(")\n");
+            return message.toString();
         }
     };
 
-    private class CustomHandler extends Handler
+    /**
+     * Asynchronous file handler: the logging threads only put the records into a bounded
+     * lock-free ring; a single writer thread formats them, writes them in batches and flushes
+     * the file periodically, or immediately after a severe record.
+     */
+    private class CustomHandler extends Handler implements Runnable
     {
         private final String filePattern;
         private final int pid;
         private final long maxSize;
-        private PrintWriter output = null;
+        private final RingBuffer<LogRecord> ring = new RingBuffer<>(RING_SIZE);
+        private final AtomicLong dropped = new AtomicLong(0);
+        private final Thread writer;
+        private volatile boolean writerWaiting = false;
+        private volatile boolean flushRequested = false;
+        private volatile boolean closed = false;
+
+        // settings, see configure()
+        private volatile long flushInterval = TimeUnit.SECONDS.toNanos(1);
+        private volatile OverflowPolicy overflowPolicy = OverflowPolicy.DROP;
+        private volatile int repeatLimit = 0;
+
+        // writer thread state
+        private Writer output = null;
         private long outputSize = 0;
+        private String lastMessage = null;
+        private int repeats = 0;
+        private int suppressed = 0;
 
         public CustomHandler(String filePattern, long maxSize)
         {
             this.filePattern = filePattern;
             this.pid = getPID();
             this.maxSize = maxSize;
+            writer = new Thread(this, "log writer");
+            writer.setDaemon(true);
         }
 
         private int getPID()
@@ -102,7 +155,7 @@ public class CustomLogger
             final String outputName = String.format(filePattern, Integer.toString(pid) + "_" + time);
             try
             {
-                output = new PrintWriter(new FileWriter(outputName, true));
+                output = new BufferedWriter(new FileWriter(outputName, true), OUTPUT_BUFFER_SIZE);
                 outputSize = 0;
             }
             catch (Exception e)
@@ -111,36 +164,159 @@ public class CustomLogger
                 // report the exception to any registered ErrorManager.
                 reportError("can not open " + outputName, e, ErrorManager.OPEN_FAILURE);
                 output = null;
-                return;
             }
         }
 
-        @Override
-        public void close() throws SecurityException
+        private void closeOutput()
         {
             if (output != null)
             {
-                output.close();
+                try
+                {
+                    output.close();
+                }
+                catch (IOException e)
+                {
+                    reportError(null, e, ErrorManager.CLOSE_FAILURE);
+                }
                 output = null;
             }
         }
 
-        @Override
-        public void flush()
+        private void flushOutput()
         {
             if (output != null)
             {
-                output.flush();
+                try
+                {
+                    output.flush();
+                }
+                catch (IOException e)
+                {
+                    reportError(null, e, ErrorManager.FLUSH_FAILURE);
+                }
             }
         }
 
+        /**
+         * Stops the writer thread after all queued records are written
+         */
         @Override
-        public synchronized void publish(LogRecord record)
+        public void close() throws SecurityException
         {
-            if (!isLoggable(record))
+            closed = true;
+            LockSupport.unpark(writer);
+            try
+            {
+                writer.join(TimeUnit.SECONDS.toMillis(5));
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void flush()
+        {
+            flushRequested = true;
+            LockSupport.unpark(writer);
+        }
+
+        @Override
+        public void publish(LogRecord record)
+        {
+            if (closed || !isLoggable(record))
             {
                 return;
             }
+            // the source class is inferred from the stack of the calling thread
+            record.getSourceClassName();
+            if (!ring.offer(record))
+            {
+                if (overflowPolicy == OverflowPolicy.DROP)
+                {
+                    dropped.incrementAndGet();
+                    return;
+                }
+                while (!ring.offer(record))
+                {
+                    if (closed)
+                    {
+                        return;
+                    }
+                    LockSupport.unpark(writer);
+                    Thread.yield();
+                }
+            }
+            if (writerWaiting)
+            {
+                LockSupport.unpark(writer);
+            }
+        }
+
+        @Override
+        public void run()
+        {
+            long lastFlush = System.nanoTime();
+            while (true)
+            {
+                boolean severe = false;
+                LogRecord record;
+                while ((record = ring.poll()) != null)
+                {
+                    write(record);
+                    severe |= record.getLevel().intValue() >= Level.SEVERE.intValue();
+                }
+                final long droppedRecords = dropped.getAndSet(0);
+                if (droppedRecords > 0)
+                {
+                    writeInternal(Level.WARNING, droppedRecords + " log record(s) dropped: log buffer is full");
+                }
+                final long now = System.nanoTime();
+                if (severe || flushRequested || closed || now - lastFlush >= flushInterval)
+                {
+                    writeSuppressed();
+                    repeats = 0;
+                    flushRequested = false;
+                    flushOutput();
+                    lastFlush = now;
+                }
+                if (closed && ring.isEmpty())
+                {
+                    closeOutput();
+                    return;
+                }
+                writerWaiting = true;
+                if (ring.isEmpty() && !closed && !flushRequested)
+                {
+                    LockSupport.parkNanos(this, flushInterval);
+                }
+                writerWaiting = false;
+            }
+        }
+
+        /**
+         * Writes a record; identical consecutive messages above the repeat limit are suppressed
+         * until the next flush and replaced by a summary line
+         */
+        private void write(LogRecord record)
+        {
+            final String message = record.getMessage();
+            if (repeatLimit > 0 && message != null && message.equals(lastMessage))
+            {
+                if (++repeats > repeatLimit)
+                {
+                    suppressed++;
+                    return;
+                }
+            }
+            else
+            {
+                writeSuppressed();
+                lastMessage = message;
+                repeats = 0;
+            }
             String msg;
             try
             {
@@ -163,9 +339,31 @@ public class CustomLogger
                     }
                 }
             }
+            writeOutput(msg);
+        }
+
+        private void writeSuppressed()
+        {
+            if (suppressed > 0)
+            {
+                final int n = suppressed;
+                suppressed = 0;
+                writeInternal(Level.INFO, "previous message repeated " + n + " more time(s)");
+            }
+        }
+
+        private void writeInternal(Level level, String message)
+        {
+            final LogRecord record = new LogRecord(level, message);
+            record.setSourceClassName(CustomLogger.class.getName());
+            writeOutput(getFormatter().format(record));
+        }
+
+        private void writeOutput(String msg)
+        {
             if (outputSize >= maxSize)
             {
-                close();
+                closeOutput();
             }
             if (output == null)
             {
@@ -173,9 +371,15 @@ public class CustomLogger
             }
             if (output != null)
             {
-                output.print(msg);
-                outputSize += msg.length();
-                flush();
+                try
+                {
+                    output.write(msg);
+                    outputSize += msg.length();
+                }
+                catch (IOException e)
+                {
+                    reportError(null, e, ErrorManager.WRITE_FAILURE);
+                }
             }
             else
             {
@@ -184,13 +388,39 @@ public class CustomLogger
         }
     }
 
+    private final CustomHandler handler;
+
     public CustomLogger(String filePattern, long fileSize)
     {
         logger = Logger.getLogger(filePattern);
         logger.setUseParentHandlers(false);
-        CustomHandler ch = new CustomHandler(filePattern, fileSize);
-        ch.setFormatter(formatter);
-        logger.addHandler(ch);
+        handler = new CustomHandler(filePattern, fileSize);
+        handler.setFormatter(formatter);
+        logger.addHandler(handler);
+        handler.writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread("log shutdown")
+        {
+            @Override
+            public void run()
+            {
+                handler.close();
+            }
+        });
+    }
+
+    /**
+     * Changes the settings of the log writer
+     *
+     * @param flushInterval  maximum time in milliseconds a written record stays in the file buffer
+     * @param overflowPolicy behaviour if the log ring is full
+     * @param repeatLimit    number of identical consecutive messages written per flush interval;
+     *                       further repetitions are only counted. 0 disables the limit
+     */
+    public void configure(int flushInterval, OverflowPolicy overflowPolicy, int repeatLimit)
+    {
+        handler.flushInterval = TimeUnit.MILLISECONDS.toNanos(Math.max(1, flushInterval));
+        handler.overflowPolicy = overflowPolicy;
+        handler.repeatLimit = Math.max(0, repeatLimit);
     }
 
     public Logger getLogger()
@@ -0,0 +1,86 @@
+/*
+ * stm32WindowSensor: RF window sensors: STM32L + RFM69 + Android
+ *
+ * Copyright (C) 2019. Mikhail Kulesh
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details. You should have received a copy of the GNU General
+ * Public License along with this program.
+ */
+
+package com.mkulesh.znet.common;
+
+/**
+ * Multicast datagram: one encrypted binary frame whose body contains the 8-byte sequence number
+ * followed by the binary message body. Receivers detect lost datagrams by gaps in the sequence
+ * numbers and recover using the next full-state beacon (a SNAPSHOT message).
+ */
+public class Datagram
+{
+    public final static int MAX_DATAGRAM_SIZE = 65507;
+    private final static int SEQUENCE_SIZE = 8;
+
+    private final long sequence;
+    private final Message message;
+
+    private Datagram(long sequence, Message message)
+    {
+        this.sequence = sequence;
+        this.message = message;
+    }
+
+    public long getSequence()
+    {
+        return sequence;
+    }
+
+    public Message getMessage()
+    {
+        return message;
+    }
+
+    public static byte[] encode(long sequence, Message m, AdvancedEncryptionStandard encryptor) throws Exception
+    {
+        final byte[] body = BinaryCodec.encode(m);
+        final byte[] plain = new byte[SEQUENCE_SIZE + body.length];
+        for (int i = 0; i < SEQUENCE_SIZE; i++)
+        {
+            plain[i] = (byte) (sequence >>> (8 * (SEQUENCE_SIZE - 1 - i)));
+        }
+        System.arraycopy(body, 0, plain, SEQUENCE_SIZE, body.length);
+        return BinaryCodec.frame(encryptor.encrypt(plain), BinaryCodec.FLAG_ENCRYPTED);
+    }
+
+    public static Datagram decode(byte[] data, int offset, int length, AdvancedEncryptionStandard encryptor)
+            throws Exception
+    {
+        final int frameSize = BinaryCodec.getFrameSize(data, offset, length);
+        if (frameSize != length || (data[offset + 1] & BinaryCodec.FLAG_ENCRYPTED) == 0)
+        {
+            throw new Exception("invalid datagram");
+        }
+        // the frame header is followed by the encrypted body
+        int bodyOffset = offset + 2;
+        while ((data[bodyOffset] & 0x80) != 0)
+        {
+            bodyOffset++;
+        }
+        bodyOffset++;
+        final byte[] plain = encryptor.decrypt(data, bodyOffset, offset + length - bodyOffset);
+        if (plain.length <= SEQUENCE_SIZE)
+        {
+            throw new Exception("invalid datagram");
+        }
+        long sequence = 0;
+        for (int i = 0; i < SEQUENCE_SIZE; i++)
+        {
+            sequence = (sequence << 8) | (plain[i] & 0xFF);
+        }
+        return new Datagram(sequence, BinaryCodec.decode(plain, SEQUENCE_SIZE, plain.length - SEQUENCE_SIZE));
+    }
+}
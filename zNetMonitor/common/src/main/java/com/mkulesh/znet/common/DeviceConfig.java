@@ -81,7 +81,7 @@ public class DeviceConfig
         return type;
     }
 
-    private String getModel()
+    public String getModel()
     {
         return model;
     }
@@ -91,12 +91,12 @@ public class DeviceConfig
         return floor;
     }
 
-    private String getRoom()
+    public String getRoom()
     {
         return room;
     }
 
-    private String getPosition()
+    public String getPosition()
     {
         return position;
     }
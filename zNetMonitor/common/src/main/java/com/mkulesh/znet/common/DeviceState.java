@@ -27,12 +27,20 @@ public class DeviceState
         NO_ACTIVITY,
         NOT_READY,
         LOW_BATTERY,
-        UNKNOWN_MESSAGE
+        UNKNOWN_MESSAGE,
+        FLAPPING
     }
 
+    private final static Warning[] WARNINGS = Warning.values();
+
+    // textual warning lists indexed by the warning mask, created on first use
+    private final static String[] WARNINGS_STRINGS = new String[1 << WARNINGS.length];
+
     private final DeviceConfig config;
     private boolean alarm = false;
     private final ArrayList<Warning> warnings = new ArrayList<>();
+    private int warningsMask = 0;
+    private int flapCount = 0;
     private String batteryState = "";
     private String alarmTime = "";
     private static final SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm", Locale.US);
@@ -121,39 +129,121 @@ public class DeviceState
         {
             changed = true;
             warnings.add(warning);
+            warningsMask |= 1 << warning.ordinal();
         }
         else if (warnings.contains(warning) && !value)
         {
             changed = true;
             warnings.remove(warning);
+            warningsMask &= ~(1 << warning.ordinal());
         }
         return changed;
     }
 
+    /**
+     * Number of alarm transitions since the sensor started flapping, or 0 if it is not flapping
+     */
+    public int getFlapCount()
+    {
+        return flapCount;
+    }
+
+    public void setFlapCount(int flapCount)
+    {
+        this.flapCount = flapCount;
+    }
+
+    /**
+     * Copies the state (but not the configuration) of the given device
+     */
+    public void copyStateFrom(DeviceState d)
+    {
+        alarm = d.alarm;
+        alarmTime = d.alarmTime;
+        batteryState = d.batteryState;
+        warnings.clear();
+        warnings.addAll(d.warnings);
+        warningsMask = d.warningsMask;
+        flapCount = d.flapCount;
+    }
+
+    /**
+     * Returns the warnings as bit mask of the warning ordinals
+     */
+    public int getWarningsMask()
+    {
+        return warningsMask;
+    }
+
+    /**
+     * Returns a DEVICE_STATE message from the shared message pool; the caller may recycle it
+     */
     public Message getDeviceStateMsg()
     {
-        Message m = new Message(Message.Type.DEVICE_STATE);
-        m.addParameter(Integer.toString(getId()));
-        m.addParameter(Boolean.toString(alarm));
+        final Message m = Message.obtain(Message.Type.DEVICE_STATE);
+        m.addParameter(getId());
+        m.addParameter(alarm);
         m.addParameter(alarmTime);
         m.addParameter(batteryState);
-        m.addParameter(warnings.toString());
+        m.addParameter(getWarningsString(warningsMask));
         return m;
     }
 
     public void updateFromMessage(Message m)
     {
-        alarm = Boolean.valueOf(m.getParameter(1));
+        alarm = m.getBoolean(1);
         alarmTime = m.getParameter(2);
         batteryState = m.getParameter(3);
+        flapCount = m.getParameterCount() > Message.STATE_PAR_FLAP_COUNT ?
+                m.getInt(Message.STATE_PAR_FLAP_COUNT) : 0;
         warnings.clear();
-        final String warningsStr = m.getParameter(4);
-        for (Warning w : Warning.values())
+        warningsMask = getWarningsMask(m.getParameter(4));
+        for (Warning w : WARNINGS)
         {
-            if (warningsStr.contains(w.toString()))
+            if ((warningsMask & (1 << w.ordinal())) != 0)
             {
                 warnings.add(w);
             }
         }
     }
+
+    /**
+     * Converts the textual warning list of a DEVICE_STATE message into a bit mask
+     */
+    public static int getWarningsMask(String warningsStr)
+    {
+        int mask = 0;
+        for (Warning w : WARNINGS)
+        {
+            if (warningsStr.contains(w.name()))
+            {
+                mask |= 1 << w.ordinal();
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Converts a warning bit mask into the textual warning list of a DEVICE_STATE message. The
+     * lists are created once per mask, so that the same String object is returned each time
+     */
+    public static String getWarningsString(int mask)
+    {
+        mask &= WARNINGS_STRINGS.length - 1;
+        String s = WARNINGS_STRINGS[mask];
+        if (s == null)
+        {
+            final ArrayList<Warning> list = new ArrayList<>();
+            for (Warning w : WARNINGS)
+            {
+                if ((mask & (1 << w.ordinal())) != 0)
+                {
+                    list.add(w);
+                }
+            }
+            s = list.toString();
+            WARNINGS_STRINGS[mask] = s;
+        }
+        return s;
+    }
 }
@@ -15,11 +15,14 @@
 
 package com.mkulesh.znet.common;
 
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Message
 {
     public final static int SOCKET_BUFFER = 1024 * 4;
+    public final static int MAX_INPUT_BUFFER = 1024 * 1024;
     public final static String START_TAG = "<message>";
     public final static String END_TAG = "</message>";
     private final static String START_NAME = "<name>";
@@ -28,54 +31,266 @@ public class Message
     private final static String END_PAR = "</p>";
     public final static String AES_KEY = "my_aeg_key";
 
+    /**
+     * Protocol versions: the text protocol is always used for the login message. The client
+     * requests the binary protocol by an optional login parameter; the server answers in the
+     * protocol it has accepted
+     */
+    public final static int PROTOCOL_TEXT = 1;
+    public final static int PROTOCOL_BINARY = 2;
+
+    /**
+     * Optional parameters of the login message
+     */
+    public final static int LOGIN_PAR_PROTOCOL = 3;
+    public final static int LOGIN_PAR_FILTER = 4;
+    public final static int LOGIN_PAR_SESSION_TOKEN = 5;
+    public final static int LOGIN_PAR_CONFIG_VERSION = 6;
+    public final static int LOGIN_PAR_STATE_VERSION = 7;
+
+    /**
+     * Optional parameters of the device state message
+     */
+    public final static int STATE_PAR_VERSION = 5;
+    // time the gateway frame was received by the server in milliseconds since the epoch; only
+    // given in a state change caused by a sensor frame
+    public final static int STATE_PAR_RECEIVE_TIME = 6;
+    // number of alarm transitions of a flapping sensor; only given while the sensor is flapping,
+    // the receive time is 0 if the state change is not caused by a sensor frame
+    public final static int STATE_PAR_FLAP_COUNT = 7;
+
+    /**
+     * Parameters of the session message
+     */
+    public final static int SESSION_PAR_TOKEN = 0;
+    public final static int SESSION_PAR_CONFIG_VERSION = 1;
+    public final static int SESSION_PAR_STATE_VERSION = 2;
+    public final static int SESSION_PAR_MODE = 3;
+    public final static String SESSION_MODE_FULL = "full";
+    public final static String SESSION_MODE_RESUME = "resume";
+
     public enum Type
     {
-        HEARTBIT(0),
-        CLIENT_LOGIN(3),
-        DEVICE_CONFIG(6),
-        DEVICE_NUMBER(1),
-        DEVICE_STATE(5),
-        SERVER_STATE(12);
+        HEARTBIT(0, 0),
+        CLIENT_LOGIN(1, 3),
+        DEVICE_CONFIG(2, 6),
+        DEVICE_NUMBER(3, 1),
+        DEVICE_STATE(4, 5),
+        // a variable number of label and value pairs
+        SERVER_STATE(5, 0),
+        SUBSCRIBE(6, 1),
+        SESSION(7, 4),
+        SNAPSHOT(8, 1);
 
+        private final int code;
         private final int parNumber;
 
-        Type(int parNumber)
+        Type(int code, int parNumber)
         {
+            this.code = code;
             this.parNumber = parNumber;
         }
 
+        /**
+         * Type code used by the binary protocol
+         */
+        public int getCode()
+        {
+            return code;
+        }
+
+        /**
+         * Number of mandatory parameters. A message can contain additional optional parameters
+         */
         public int getParNumber()
         {
             return parNumber;
         }
+
+        /**
+         * Returns the type with the given binary code, or null
+         */
+        public static Type fromCode(int code)
+        {
+            return code >= 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+        }
+
+        /**
+         * Returns the type with the given name, or null
+         */
+        public static Type fromName(String name)
+        {
+            return BY_NAME.get(name);
+        }
+
+        private static final Type[] BY_CODE;
+        private static final HashMap<String, Type> BY_NAME = new HashMap<>();
+
+        static
+        {
+            int maxCode = 0;
+            for (Type t : values())
+            {
+                maxCode = Math.max(maxCode, t.code);
+            }
+            BY_CODE = new Type[maxCode + 1];
+            for (Type t : values())
+            {
+                BY_CODE[t.code] = t;
+                BY_NAME.put(t.toString(), t);
+            }
+        }
     }
 
+    /**
+     * Kinds of the stored parameters: numbers and flags are kept unboxed and only converted
+     * into text when the text protocol needs it
+     */
+    private final static byte KIND_STRING = 0;
+    private final static byte KIND_NUMBER = 1;
+    private final static byte KIND_BOOLEAN = 2;
+    private final static int INITIAL_CAPACITY = 8;
+
+    // shared pool of the messages created by obtain()
+    private final static MessagePool POOL = new MessagePool(256);
+
     private Type type;
-    private final ArrayList<String> parameters = new ArrayList<>();
+    private int parCount = 0;
+    private byte[] kinds = new byte[INITIAL_CAPACITY];
+    private String[] strings = new String[INITIAL_CAPACITY];
+    private long[] numbers = new long[INITIAL_CAPACITY];
+
+    // binary payload, only supported by the binary protocol
+    private byte[] payload = null;
+
+    // the pool this message returns to when the last reference is recycled, or null
+    private final MessagePool pool;
+    private final AtomicInteger refCount = new AtomicInteger(1);
 
     public Message(Type type)
+    {
+        this(type, null);
+    }
+
+    Message(Type type, MessagePool pool)
     {
         this.type = type;
+        this.pool = pool;
     }
 
     public Message(String data) throws Exception
     {
+        this.pool = null;
         decode(data);
     }
 
+    /**
+     * Returns an empty message of the given type from the shared pool. The caller holds one
+     * reference; each further holder calls retain(), and each holder calls recycle() when done
+     */
+    public static Message obtain(Type type)
+    {
+        return POOL.obtain(type);
+    }
+
+    /**
+     * Adds a reference to a pooled message. Has no effect for a message that is not pooled
+     */
+    public Message retain()
+    {
+        if (pool != null)
+        {
+            refCount.incrementAndGet();
+        }
+        return this;
+    }
+
+    /**
+     * Drops a reference; the message returns to its pool when the last reference is dropped and
+     * must not be used any more by this holder. Has no effect for a message that is not pooled
+     */
+    public void recycle()
+    {
+        if (pool != null && refCount.decrementAndGet() == 0)
+        {
+            clear();
+            pool.release(this);
+        }
+    }
+
+    /**
+     * Empties a message obtained from the pool and gives it the new type
+     */
+    void reset(Type type)
+    {
+        this.type = type;
+        clear();
+        refCount.set(1);
+    }
+
+    private void clear()
+    {
+        for (int i = 0; i < parCount; i++)
+        {
+            strings[i] = null;
+        }
+        parCount = 0;
+        payload = null;
+    }
+
+    /**
+     * Appends a parameter slot of the given kind and returns its index. The arrays may be
+     * replaced, so the index must be obtained before an array is accessed
+     */
+    private int add(byte kind)
+    {
+        if (parCount == kinds.length)
+        {
+            final int capacity = 2 * kinds.length;
+            kinds = Arrays.copyOf(kinds, capacity);
+            strings = Arrays.copyOf(strings, capacity);
+            numbers = Arrays.copyOf(numbers, capacity);
+        }
+        kinds[parCount] = kind;
+        return parCount++;
+    }
+
     public void addParameter(String parameter)
     {
-        parameters.add(parameter);
+        final int i = add(KIND_STRING);
+        strings[i] = parameter;
+    }
+
+    public void addParameter(int parameter)
+    {
+        final int i = add(KIND_NUMBER);
+        numbers[i] = parameter;
+    }
+
+    public void addParameter(long parameter)
+    {
+        final int i = add(KIND_NUMBER);
+        numbers[i] = parameter;
+    }
+
+    public void addParameter(boolean parameter)
+    {
+        final int i = add(KIND_BOOLEAN);
+        numbers[i] = parameter ? 1 : 0;
     }
 
     public String toString()
     {
-        String res = type.toString();
-        if (!parameters.isEmpty())
+        if (parCount == 0)
         {
-            res += parameters.toString();
+            return type.toString();
         }
-        return res;
+        final StringBuilder res = new StringBuilder(type.toString()).append('[');
+        for (int i = 0; i < parCount; i++)
+        {
+            appendParameter(i > 0 ? res.append(", ") : res, i);
+        }
+        return res.append(']').toString();
     }
 
     public Type getType()
@@ -83,72 +298,152 @@ public class Message
         return type;
     }
 
+    /**
+     * Returns the text representation of a parameter
+     */
     public String getParameter(int i)
     {
-        return parameters.get(i);
+        checkIndex(i);
+        switch (kinds[i])
+        {
+        case KIND_NUMBER:
+            return Long.toString(numbers[i]);
+        case KIND_BOOLEAN:
+            return Boolean.toString(numbers[i] != 0);
+        default:
+            return strings[i];
+        }
+    }
+
+    /**
+     * Returns an optional parameter or the default value if the parameter is not given
+     */
+    public String getParameter(int i, String defaultValue)
+    {
+        return i < parCount ? getParameter(i) : defaultValue;
+    }
+
+    /**
+     * Returns a numerical parameter that has to be within the int range
+     */
+    public int getInt(int i) throws NumberFormatException
+    {
+        final long value = getLong(i);
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE)
+        {
+            throw new NumberFormatException("parameter " + i + " is out of int range: " + value);
+        }
+        return (int) value;
+    }
+
+    public long getLong(int i) throws NumberFormatException
+    {
+        checkIndex(i);
+        return kinds[i] == KIND_STRING ? Long.parseLong(strings[i]) : numbers[i];
+    }
+
+    /**
+     * Returns an optional numerical parameter or the default value if the parameter is not given
+     */
+    public long getLong(int i, long defaultValue) throws NumberFormatException
+    {
+        return i < parCount ? getLong(i) : defaultValue;
+    }
+
+    public boolean getBoolean(int i)
+    {
+        checkIndex(i);
+        return kinds[i] == KIND_STRING ? Boolean.parseBoolean(strings[i]) : numbers[i] != 0;
+    }
+
+    /**
+     * Checks whether the parameter is stored as a number, which is written without conversion
+     * into a String
+     */
+    boolean isNumber(int i)
+    {
+        checkIndex(i);
+        return kinds[i] == KIND_NUMBER;
+    }
+
+    public byte[] getPayload()
+    {
+        return payload;
+    }
+
+    public void setPayload(byte[] payload)
+    {
+        this.payload = payload;
+    }
+
+    public int getParameterCount()
+    {
+        return parCount;
     }
 
     public String encode()
     {
-        String str = START_NAME + type.toString() + END_NAME;
-        switch (type)
+        final StringBuilder str = new StringBuilder(64).append(START_NAME).append(type.toString()).append(END_NAME);
+        for (int i = 0; i < parCount; i++)
         {
-        case CLIENT_LOGIN:
-        case DEVICE_CONFIG:
-        case DEVICE_NUMBER:
-        case DEVICE_STATE:
-        case SERVER_STATE:
-            for (String p : parameters)
-            {
-                str += START_PAR + p + END_PAR;
-            }
-            break;
-        case HEARTBIT:
-            // nothing to do
-            break;
+            appendParameter(str.append(START_PAR), i).append(END_PAR);
+        }
+        return str.toString();
+    }
+
+    private StringBuilder appendParameter(StringBuilder str, int i)
+    {
+        switch (kinds[i])
+        {
+        case KIND_NUMBER:
+            return str.append(numbers[i]);
+        case KIND_BOOLEAN:
+            return str.append(numbers[i] != 0);
+        default:
+            return str.append(strings[i]);
+        }
+    }
+
+    private void checkIndex(int i)
+    {
+        if (i < 0 || i >= parCount)
+        {
+            throw new IndexOutOfBoundsException("parameter " + i + " of " + parCount);
         }
-        return str;
     }
 
     private void decode(String data) throws Exception
     {
         int startIndex = data.indexOf(START_NAME);
-        int endIndex = data.indexOf(END_NAME);
+        int endIndex = startIndex < 0 ? -1 : data.indexOf(END_NAME, startIndex);
         if (startIndex < 0 || endIndex < 0)
         {
             throw new Exception("name tag not found");
         }
 
         // name
-        type = null;
         String str = data.substring(startIndex + Message.START_NAME.length(), endIndex).trim();
-        for (Type t : Type.values())
-        {
-            if (str.equals(t.toString()))
-            {
-                type = t;
-            }
-        }
+        type = Type.fromName(str);
         if (type == null)
         {
             throw new Exception("unknown message name");
         }
 
-        // parameters
-        data = data.substring(endIndex + Message.END_NAME.length(), data.length());
+        // parameters: the data is scanned from the current position without copying the tail
+        int pos = endIndex + Message.END_NAME.length();
         while (true)
         {
-            startIndex = data.indexOf(Message.START_PAR);
-            endIndex = data.indexOf(Message.END_PAR);
+            startIndex = data.indexOf(Message.START_PAR, pos);
+            endIndex = startIndex < 0 ? -1 : data.indexOf(Message.END_PAR, startIndex);
             if (startIndex < 0 || endIndex < 0)
             {
                 break;
             }
             str = data.substring(startIndex + Message.START_PAR.length(), endIndex);
-            parameters.add(str.trim());
-            data = data.substring(endIndex + Message.END_PAR.length(), data.length());
+            addParameter(str.trim());
+            pos = endIndex + Message.END_PAR.length();
         }
-        if (parameters.size() != type.getParNumber())
+        if (parCount < type.getParNumber())
         {
             throw new Exception("invalid parameter number");
         }
@@ -0,0 +1,258 @@
+/*
+ * stm32WindowSensor: RF window sensors: STM32L + RFM69 + Android
+ *
+ * Copyright (C) 2019. Mikhail Kulesh
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details. You should have received a copy of the GNU General
+ * Public License along with this program.
+ */
+
+package com.mkulesh.znet.common;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Incremental byte-level framer for both text frames (START_TAG ... END_TAG) and binary
+ * frames (see BinaryCodec). Received bytes are appended to an internal buffer; only newly
+ * arrived bytes are scanned. A found frame is given out as a region of the internal buffer
+ * that remains valid until the next call of append() or next().
+ */
+public class MessageFramer
+{
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+    private final static byte[] START_TAG = Message.START_TAG.getBytes(UTF_8);
+    private final static byte[] END_TAG = Message.END_TAG.getBytes(UTF_8);
+
+    private final int maxBufferSize;
+    private byte[] buffer;
+    private int readPos = 0, writePos = 0;
+
+    // scan state of a text frame whose start tag is already found
+    private int textStart = -1;
+    private int scanPos = 0;
+
+    // current frame
+    private boolean binaryFrame = false;
+    private int frameOffset = 0, frameLength = 0;
+
+    // statistics
+    private long overflowCount = 0;
+    private long skippedBytes = 0;
+
+    public MessageFramer(int initialBufferSize, int maxBufferSize)
+    {
+        this.buffer = new byte[initialBufferSize];
+        this.maxBufferSize = maxBufferSize;
+    }
+
+    /**
+     * Appends the remaining bytes of the given buffer
+     */
+    public void append(ByteBuffer data)
+    {
+        final int length = data.remaining();
+        if (!ensureCapacity(length))
+        {
+            data.position(data.limit());
+            return;
+        }
+        data.get(buffer, writePos, length);
+        writePos += length;
+    }
+
+    /**
+     * Appends the given bytes
+     */
+    public void append(byte[] data, int offset, int length)
+    {
+        if (!ensureCapacity(length))
+        {
+            return;
+        }
+        System.arraycopy(data, offset, buffer, writePos, length);
+        writePos += length;
+    }
+
+    /**
+     * Searches the next complete frame. Returns true if a frame is found
+     */
+    public boolean next() throws Exception
+    {
+        while (readPos < writePos)
+        {
+            if (textStart >= 0)
+            {
+                return findTextEnd();
+            }
+            final byte b = buffer[readPos];
+            if (b == BinaryCodec.FRAME_START)
+            {
+                final int frameSize;
+                try
+                {
+                    frameSize = BinaryCodec.getFrameSize(buffer, readPos, writePos - readPos);
+                }
+                catch (Exception e)
+                {
+                    // skip the invalid start byte and synchronize to the next frame
+                    readPos++;
+                    skippedBytes++;
+                    throw e;
+                }
+                if (frameSize < 0)
+                {
+                    return false;
+                }
+                binaryFrame = true;
+                frameOffset = readPos;
+                frameLength = frameSize;
+                readPos += frameSize;
+                return true;
+            }
+            if (b == START_TAG[0])
+            {
+                if (writePos - readPos < START_TAG.length)
+                {
+                    return false;
+                }
+                if (matches(readPos, START_TAG))
+                {
+                    textStart = readPos + START_TAG.length;
+                    scanPos = textStart;
+                    continue;
+                }
+            }
+            readPos++;
+            skippedBytes++;
+        }
+        return false;
+    }
+
+    public boolean isBinaryFrame()
+    {
+        return binaryFrame;
+    }
+
+    public byte[] getFrameData()
+    {
+        return buffer;
+    }
+
+    /**
+     * For a text frame, the content between tags; for a binary frame, the complete frame
+     */
+    public int getFrameOffset()
+    {
+        return frameOffset;
+    }
+
+    public int getFrameLength()
+    {
+        return frameLength;
+    }
+
+    public String getFrameString()
+    {
+        return new String(buffer, frameOffset, frameLength, UTF_8);
+    }
+
+    /**
+     * Checks whether the current frame equals the given byte pattern
+     */
+    public boolean isFrameEqual(byte[] pattern)
+    {
+        return frameLength == pattern.length && matches(frameOffset, pattern);
+    }
+
+    public long getOverflowCount()
+    {
+        return overflowCount;
+    }
+
+    public long getSkippedBytes()
+    {
+        return skippedBytes;
+    }
+
+    private boolean findTextEnd()
+    {
+        final int last = writePos - END_TAG.length;
+        for (int i = scanPos; i <= last; i++)
+        {
+            if (buffer[i] == END_TAG[0] && matches(i, END_TAG))
+            {
+                binaryFrame = false;
+                frameOffset = textStart;
+                frameLength = i - textStart;
+                readPos = i + END_TAG.length;
+                textStart = -1;
+                return true;
+            }
+        }
+        // continue after the already scanned bytes next time
+        scanPos = Math.max(scanPos, last + 1);
+        return false;
+    }
+
+    private boolean matches(int pos, byte[] pattern)
+    {
+        for (int i = 0; i < pattern.length; i++)
+        {
+            if (buffer[pos + i] != pattern[i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Makes room for the given number of bytes: the consumed part is dropped and the buffer
+     * grows up to its maximum size. If the maximum is exceeded, all buffered data is discarded
+     */
+    private boolean ensureCapacity(int length)
+    {
+        if (readPos == writePos && textStart < 0)
+        {
+            readPos = writePos = 0;
+        }
+        if (writePos + length <= buffer.length)
+        {
+            return true;
+        }
+        if (readPos > 0)
+        {
+            final int remaining = writePos - readPos;
+            System.arraycopy(buffer, readPos, buffer, 0, remaining);
+            if (textStart >= 0)
+            {
+                textStart -= readPos;
+                scanPos -= readPos;
+            }
+            writePos = remaining;
+            readPos = 0;
+        }
+        if (writePos + length <= buffer.length)
+        {
+            return true;
+        }
+        if (writePos + length > maxBufferSize)
+        {
+            overflowCount++;
+            skippedBytes += writePos + length;
+            readPos = writePos = 0;
+            textStart = -1;
+            return false;
+        }
+        buffer = Arrays.copyOf(buffer, Math.min(maxBufferSize, Math.max(2 * buffer.length, writePos + length)));
+        return true;
+    }
+}
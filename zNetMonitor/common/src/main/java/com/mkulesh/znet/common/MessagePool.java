@@ -0,0 +1,62 @@
+/*
+ * stm32WindowSensor: RF window sensors: STM32L + RFM69 + Android
+ *
+ * Copyright (C) 2019. Mikhail Kulesh
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details. You should have received a copy of the GNU General
+ * Public License along with this program.
+ */
+
+package com.mkulesh.znet.common;
+
+/**
+ * Bounded stack of recycled messages. The stack is a plain array guarded by the pool monitor,
+ * so that neither obtaining nor releasing a message allocates anything. If the pool is empty,
+ * a new message is created; if it is full, the released message is left to the garbage collector.
+ */
+class MessagePool
+{
+    private final Message[] free;
+    private int size = 0;
+
+    MessagePool(int capacity)
+    {
+        free = new Message[capacity];
+    }
+
+    Message obtain(Message.Type type)
+    {
+        Message m = null;
+        synchronized (this)
+        {
+            if (size > 0)
+            {
+                m = free[--size];
+                free[size] = null;
+            }
+        }
+        if (m == null)
+        {
+            return new Message(type, this);
+        }
+        m.reset(type);
+        return m;
+    }
+
+    void release(Message m)
+    {
+        synchronized (this)
+        {
+            if (size < free.length)
+            {
+                free[size++] = m;
+            }
+        }
+    }
+}
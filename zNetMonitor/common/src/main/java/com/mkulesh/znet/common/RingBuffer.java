@@ -0,0 +1,122 @@
+/*
+ * stm32WindowSensor: RF window sensors: STM32L + RFM69 + Android
+ *
+ * Copyright (C) 2019. Mikhail Kulesh
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details. You should have received a copy of the GNU General
+ * Public License along with this program.
+ */
+
+package com.mkulesh.znet.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free ring for many producer threads and a single consumer thread. Each slot has a
+ * sequence number: a producer claims the slot at the tail position by a compare-and-set of the
+ * tail and publishes the element by advancing the slot sequence; the consumer takes the element
+ * once the sequence shows that it is published. Neither side allocates or blocks.
+ */
+public final class RingBuffer<E>
+{
+    private final int mask;
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong(0);
+    private volatile long head = 0;
+
+    /**
+     * @param capacity the number of slots, rounded up to a power of two
+     */
+    public RingBuffer(int capacity)
+    {
+        int size = 1;
+        while (size < capacity)
+        {
+            size <<= 1;
+        }
+        mask = size - 1;
+        elements = new AtomicReferenceArray<>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+        {
+            sequences.set(i, i);
+        }
+    }
+
+    public int getCapacity()
+    {
+        return mask + 1;
+    }
+
+    /**
+     * Adds the element at the tail; may be called from any thread
+     *
+     * @return false if the ring is full
+     */
+    public boolean offer(E element)
+    {
+        while (true)
+        {
+            final long t = tail.get();
+            final int index = (int) t & mask;
+            final long sequence = sequences.get(index);
+            if (sequence == t)
+            {
+                if (tail.compareAndSet(t, t + 1))
+                {
+                    elements.lazySet(index, element);
+                    sequences.set(index, t + 1);
+                    return true;
+                }
+            }
+            else if (sequence < t)
+            {
+                // the slot still holds an element of the previous round
+                return false;
+            }
+            // otherwise the slot was claimed by another producer in the meantime: retry
+        }
+    }
+
+    /**
+     * Removes the element at the head; shall only be called from the consumer thread
+     *
+     * @return the element or null if the ring is empty
+     */
+    public E poll()
+    {
+        final long h = head;
+        final int index = (int) h & mask;
+        if (sequences.get(index) != h + 1)
+        {
+            return null;
+        }
+        final E element = elements.get(index);
+        elements.lazySet(index, null);
+        sequences.set(index, h + mask + 1);
+        head = h + 1;
+        return element;
+    }
+
+    public boolean isEmpty()
+    {
+        return sequences.get((int) head & mask) != head + 1;
+    }
+
+    /**
+     * Returns the number of elements; the value is approximate while producers are active
+     */
+    public int size()
+    {
+        return (int) Math.max(0, Math.min(tail.get() - head, mask + 1));
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * stm32WindowSensor: RF window sensors: STM32L + RFM69 + Android
+ *
+ * Copyright (C) 2019. Mikhail Kulesh
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details. You should have received a copy of the GNU General
+ * Public License along with this program.
+ */
+
+package com.mkulesh.znet.common;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Bulk snapshot: a list of messages (device configuration, device number and device state)
+ * packed into one SNAPSHOT message. The payload contains the binary bodies of the messages,
+ * each with a varint length prefix, and is deflate-compressed. The only parameter is the
+ * number of contained messages.
+ */
+public class Snapshot
+{
+    private final static int MAX_SNAPSHOT_SIZE = 16 * 1024 * 1024;
+
+    public static Message createMessage(List<Message> messages)
+    {
+        final ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        for (Message m : messages)
+        {
+            final byte[] body = BinaryCodec.encode(m);
+            writeVarint(raw, body.length);
+            raw.write(body, 0, body.length);
+        }
+        final Message snapshot = new Message(Message.Type.SNAPSHOT);
+        snapshot.addParameter(Integer.toString(messages.size()));
+        snapshot.setPayload(deflate(raw.toByteArray()));
+        return snapshot;
+    }
+
+    public static List<Message> getMessages(Message snapshot) throws Exception
+    {
+        if (snapshot.getType() != Message.Type.SNAPSHOT || snapshot.getPayload() == null)
+        {
+            throw new Exception("invalid snapshot message");
+        }
+        final int number = Integer.parseInt(snapshot.getParameter(0));
+        final byte[] raw = inflate(snapshot.getPayload());
+        final ArrayList<Message> messages = new ArrayList<>(number);
+        int pos = 0;
+        for (int i = 0; i < number; i++)
+        {
+            int length = 0;
+            for (int shift = 0; ; shift += 7)
+            {
+                if (pos >= raw.length || shift > 28)
+                {
+                    throw new Exception("malformed snapshot");
+                }
+                final int b = raw[pos++] & 0xFF;
+                length |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                {
+                    break;
+                }
+            }
+            if (length < 0 || pos + length > raw.length)
+            {
+                throw new Exception("malformed snapshot");
+            }
+            messages.add(BinaryCodec.decode(raw, pos, length));
+            pos += length;
+        }
+        return messages;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value)
+    {
+        while ((value & ~0x7F) != 0)
+        {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static byte[] deflate(byte[] data)
+    {
+        final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try
+        {
+            deflater.setInput(data);
+            deflater.finish();
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4 + 64);
+            final byte[] buffer = new byte[4096];
+            while (!deflater.finished())
+            {
+                final int n = deflater.deflate(buffer);
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        }
+        finally
+        {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] data) throws Exception
+    {
+        final Inflater inflater = new Inflater();
+        try
+        {
+            inflater.setInput(data);
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(4 * data.length);
+            final byte[] buffer = new byte[4096];
+            while (!inflater.finished())
+            {
+                final int n = inflater.inflate(buffer);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                {
+                    throw new Exception("truncated snapshot");
+                }
+                out.write(buffer, 0, n);
+                if (out.size() > MAX_SNAPSHOT_SIZE)
+                {
+                    throw new Exception("snapshot is too large");
+                }
+            }
+            return out.toByteArray();
+        }
+        finally
+        {
+            inflater.end();
+        }
+    }
+}
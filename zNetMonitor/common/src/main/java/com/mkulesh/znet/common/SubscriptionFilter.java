@@ -0,0 +1,115 @@
+/*
+ * stm32WindowSensor: RF window sensors: STM32L + RFM69 + Android
+ *
+ * Copyright (C) 2019. Mikhail Kulesh
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details. You should have received a copy of the GNU General
+ * Public License along with this program.
+ */
+
+package com.mkulesh.znet.common;
+
+import java.util.HashSet;
+import java.util.Locale;
+
+/**
+ * Subscription filter of a client, for example "floor=2;room=room1,room2;type=Window sensor;id=3,4".
+ * A device matches if its id is explicitly listed, or if it matches all given floor, room and type
+ * criteria. An empty filter matches all devices.
+ */
+public class SubscriptionFilter
+{
+    private final static String CRITERIA_SEPARATOR = ";";
+    private final static String VALUE_SEPARATOR = ",";
+    private final static String KEY_SEPARATOR = "=";
+
+    public final static SubscriptionFilter ALL = new SubscriptionFilter();
+
+    private final String spec;
+    private final HashSet<String> floors = new HashSet<>();
+    private final HashSet<String> rooms = new HashSet<>();
+    private final HashSet<String> types = new HashSet<>();
+    private final HashSet<Integer> ids = new HashSet<>();
+
+    private SubscriptionFilter()
+    {
+        spec = "";
+    }
+
+    public SubscriptionFilter(String spec) throws Exception
+    {
+        this.spec = spec.trim();
+        for (String criterion : this.spec.split(CRITERIA_SEPARATOR))
+        {
+            if (criterion.trim().isEmpty())
+            {
+                continue;
+            }
+            final String[] tokens = criterion.split(KEY_SEPARATOR);
+            if (tokens.length != 2)
+            {
+                throw new Exception("invalid filter criterion: " + criterion);
+            }
+            final String key = tokens[0].trim().toLowerCase(Locale.US);
+            for (String value : tokens[1].split(VALUE_SEPARATOR))
+            {
+                value = value.trim();
+                if (value.isEmpty())
+                {
+                    continue;
+                }
+                if ("floor".equals(key))
+                {
+                    floors.add(value);
+                }
+                else if ("room".equals(key))
+                {
+                    rooms.add(value);
+                }
+                else if ("type".equals(key))
+                {
+                    types.add(value);
+                }
+                else if ("id".equals(key))
+                {
+                    ids.add(Integer.parseInt(value));
+                }
+                else
+                {
+                    throw new Exception("unknown filter key: " + key);
+                }
+            }
+        }
+    }
+
+    public boolean isAll()
+    {
+        return floors.isEmpty() && rooms.isEmpty() && types.isEmpty() && ids.isEmpty();
+    }
+
+    public boolean matches(DeviceConfig config)
+    {
+        if (isAll() || ids.contains(config.getId()))
+        {
+            return true;
+        }
+        if (floors.isEmpty() && rooms.isEmpty() && types.isEmpty())
+        {
+            return false;
+        }
+        return (floors.isEmpty() || floors.contains(config.getFloor()))
+                && (rooms.isEmpty() || rooms.contains(config.getRoom()))
+                && (types.isEmpty() || types.contains(config.getType()));
+    }
+
+    public String toString()
+    {
+        return spec;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * stm32WindowSensor: RF window sensors: STM32L + RFM69 + Android
+ *
+ * Copyright (C) 2019. Mikhail Kulesh
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details. You should have received a copy of the GNU General
+ * Public License along with this program.
+ */
+
+package com.mkulesh.znet.common;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BinaryCodecTest
+{
+    private final static String KEY = "0123456789abcdef";
+
+    private static Message decode(byte[] body) throws Exception
+    {
+        return BinaryCodec.decode(body, 0, body.length);
+    }
+
+    private static Message createDeviceState()
+    {
+        final Message m = new Message(Message.Type.DEVICE_STATE);
+        m.addParameter(300);
+        m.addParameter(true);
+        m.addParameter("12:34");
+        m.addParameter("3.3 V");
+        m.addParameter("[NO_ACTIVITY, NOT_READY]");
+        m.addParameter(4711L);
+        m.addParameter(1571234567890L);
+        return m;
+    }
+
+    @Test
+    public void deviceStateRoundTrip() throws Exception
+    {
+        final Message m = createDeviceState();
+        final Message decoded = decode(BinaryCodec.encode(m));
+        assertEquals(m.encode(), decoded.encode());
+        assertEquals(300, decoded.getInt(0));
+        assertTrue(decoded.getBoolean(1));
+        // the optional numbers are decoded without a String
+        assertTrue(decoded.isNumber(Message.STATE_PAR_VERSION));
+        assertEquals(1571234567890L, decoded.getLong(Message.STATE_PAR_RECEIVE_TIME));
+        decoded.recycle();
+    }
+
+    @Test
+    public void nonCanonicalNumberKeepsItsText() throws Exception
+    {
+        final Message m = new Message(Message.Type.DEVICE_STATE);
+        m.addParameter(1);
+        m.addParameter(false);
+        m.addParameter("");
+        m.addParameter("");
+        m.addParameter("[]");
+        m.addParameter("007");
+        m.addParameter("-0");
+        m.addParameter("12a");
+        final Message decoded = decode(BinaryCodec.encode(m));
+        assertEquals(m.encode(), decoded.encode());
+        assertFalse(decoded.isNumber(5));
+        assertFalse(decoded.isNumber(6));
+        assertFalse(decoded.isNumber(7));
+        decoded.recycle();
+    }
+
+    @Test
+    public void variableLengthRoundTrip() throws Exception
+    {
+        final Message m = new Message(Message.Type.SERVER_STATE);
+        m.addParameter("CPU SoC Temp");
+        m.addParameter("42°C");
+        m.addParameter("root");
+        m.addParameter("68%");
+        final Message decoded = decode(BinaryCodec.encode(m));
+        assertEquals(Message.Type.SERVER_STATE, decoded.getType());
+        assertEquals(m.encode(), decoded.encode());
+        decoded.recycle();
+    }
+
+    @Test
+    public void payloadRoundTrip() throws Exception
+    {
+        final Message m = new Message(Message.Type.SNAPSHOT);
+        m.addParameter("2");
+        m.setPayload(new byte[]{ 1, 2, 3, (byte) 0xFF });
+        final Message decoded = decode(BinaryCodec.encode(m));
+        assertEquals("2", decoded.getParameter(0));
+        assertArrayEquals(m.getPayload(), decoded.getPayload());
+        decoded.recycle();
+    }
+
+    @Test
+    public void encryptedFrameRoundTrip() throws Exception
+    {
+        final Message m = createDeviceState();
+        final byte[] frame = BinaryCodec.encodeFrame(m, new AdvancedEncryptionStandard(KEY));
+        assertEquals(BinaryCodec.FRAME_START, frame[0]);
+        assertEquals(BinaryCodec.FLAG_ENCRYPTED, frame[1]);
+
+        // the frame is embedded into a larger buffer
+        final byte[] buffer = new byte[frame.length + 10];
+        System.arraycopy(frame, 0, buffer, 5, frame.length);
+        final int size = BinaryCodec.getFrameSize(buffer, 5, frame.length);
+        assertEquals(frame.length, size);
+        final Message decoded = BinaryCodec.decodeFrame(buffer, 5, size, new AdvancedEncryptionStandard(KEY));
+        assertEquals(m.encode(), decoded.encode());
+        decoded.recycle();
+    }
+
+    @Test
+    public void incompleteFrameHasNoSize() throws Exception
+    {
+        final byte[] frame = BinaryCodec.encodeFrame(createDeviceState(), null);
+        assertEquals(-1, BinaryCodec.getFrameSize(frame, 0, 2));
+        assertEquals(-1, BinaryCodec.getFrameSize(frame, 0, frame.length - 1));
+        assertEquals(frame.length, BinaryCodec.getFrameSize(frame, 0, frame.length));
+    }
+
+    @Test(expected = Exception.class)
+    public void truncatedBodyIsRejected() throws Exception
+    {
+        final byte[] body = BinaryCodec.encode(createDeviceState());
+        decode(Arrays.copyOf(body, body.length - 3));
+    }
+
+    @Test(expected = Exception.class)
+    public void unknownTypeIsRejected() throws Exception
+    {
+        decode(new byte[]{ 100, 0 });
+    }
+}
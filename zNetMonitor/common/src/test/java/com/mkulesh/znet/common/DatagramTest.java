@@ -0,0 +1,79 @@
+/*
+ * stm32WindowSensor: RF window sensors: STM32L + RFM69 + Android
+ *
+ * Copyright (C) 2019. Mikhail Kulesh
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details. You should have received a copy of the GNU General
+ * Public License along with this program.
+ */
+
+package com.mkulesh.znet.common;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class DatagramTest
+{
+    private final static AdvancedEncryptionStandard ENCRYPTOR = new AdvancedEncryptionStandard("0123456789abcdef");
+
+    private static Message state(int id, boolean alarm)
+    {
+        final Message m = new Message(Message.Type.DEVICE_STATE);
+        m.addParameter(id);
+        m.addParameter(alarm);
+        m.addParameter("");
+        m.addParameter("3.3 V");
+        m.addParameter("[]");
+        m.addParameter(12345L);
+        return m;
+    }
+
+    @Test
+    public void datagramRoundTrip() throws Exception
+    {
+        final Message m = state(7, true);
+        final long sequence = 0x0102030405060708L;
+        final byte[] data = Datagram.encode(sequence, m, ENCRYPTOR);
+
+        // the datagram may be received at any offset of the receive buffer
+        final byte[] buffer = new byte[data.length + 10];
+        System.arraycopy(data, 0, buffer, 5, data.length);
+        final Datagram d = Datagram.decode(buffer, 5, data.length, ENCRYPTOR);
+        assertEquals(sequence, d.getSequence());
+        assertEquals(m.getType(), d.getMessage().getType());
+        assertEquals(m.encode(), d.getMessage().encode());
+    }
+
+    @Test
+    public void sequenceNumbersAreKept() throws Exception
+    {
+        for (long sequence = 1; sequence < 1000; sequence += 99)
+        {
+            final byte[] data = Datagram.encode(sequence, state(1, false), ENCRYPTOR);
+            assertEquals(sequence, Datagram.decode(data, 0, data.length, ENCRYPTOR).getSequence());
+        }
+    }
+
+    @Test(expected = Exception.class)
+    public void truncatedDatagramIsRejected() throws Exception
+    {
+        final byte[] data = Datagram.encode(1, state(1, false), ENCRYPTOR);
+        Datagram.decode(Arrays.copyOf(data, data.length - 1), 0, data.length - 1, ENCRYPTOR);
+    }
+
+    @Test(expected = Exception.class)
+    public void plainFrameIsRejected() throws Exception
+    {
+        final byte[] data = BinaryCodec.encodeFrame(state(1, false), null);
+        Datagram.decode(data, 0, data.length, ENCRYPTOR);
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * stm32WindowSensor: RF window sensors: STM32L + RFM69 + Android
+ *
+ * Copyright (C) 2019. Mikhail Kulesh
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details. You should have received a copy of the GNU General
+ * Public License along with this program.
+ */
+
+package com.mkulesh.znet.common;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MessageFramerTest
+{
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static byte[] textFrame(String content)
+    {
+        return (Message.START_TAG + content + Message.END_TAG).getBytes(UTF_8);
+    }
+
+    private static byte[] binaryFrame(int nodeId) throws Exception
+    {
+        final Message m = new Message(Message.Type.DEVICE_NUMBER);
+        m.addParameter(nodeId);
+        return BinaryCodec.encodeFrame(m, null);
+    }
+
+    private static Message decodeBinary(MessageFramer framer) throws Exception
+    {
+        return BinaryCodec.decodeFrame(framer.getFrameData(), framer.getFrameOffset(), framer.getFrameLength(), null);
+    }
+
+    @Test
+    public void textFramesSplitAtEveryByte() throws Exception
+    {
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(textFrame("first"));
+        stream.write(textFrame("second"));
+        final byte[] data = stream.toByteArray();
+
+        final MessageFramer framer = new MessageFramer(8, 1024);
+        final StringBuilder frames = new StringBuilder();
+        for (byte b : data)
+        {
+            framer.append(new byte[]{ b }, 0, 1);
+            while (framer.next())
+            {
+                assertFalse(framer.isBinaryFrame());
+                frames.append(framer.getFrameString()).append(';');
+            }
+        }
+        assertEquals("first;second;", frames.toString());
+        assertEquals(0, framer.getSkippedBytes());
+    }
+
+    @Test
+    public void binaryAndTextFramesAreMixed() throws Exception
+    {
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(binaryFrame(1));
+        stream.write(textFrame("text"));
+        stream.write(binaryFrame(300));
+        final MessageFramer framer = new MessageFramer(16, 1024);
+        framer.append(ByteBuffer.wrap(stream.toByteArray()));
+
+        assertTrue(framer.next());
+        assertTrue(framer.isBinaryFrame());
+        assertEquals(1, decodeBinary(framer).getInt(0));
+        assertTrue(framer.next());
+        assertFalse(framer.isBinaryFrame());
+        assertEquals("text", framer.getFrameString());
+        assertTrue(framer.next());
+        assertEquals(300, decodeBinary(framer).getInt(0));
+        assertFalse(framer.next());
+    }
+
+    @Test
+    public void incompleteBinaryFrameWaitsForData() throws Exception
+    {
+        final byte[] frame = binaryFrame(7);
+        final MessageFramer framer = new MessageFramer(16, 1024);
+        framer.append(frame, 0, frame.length - 1);
+        assertFalse(framer.next());
+        framer.append(frame, frame.length - 1, 1);
+        assertTrue(framer.next());
+        assertEquals(7, decodeBinary(framer).getInt(0));
+    }
+
+    @Test
+    public void bytesBetweenFramesAreSkipped() throws Exception
+    {
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write("noise".getBytes(UTF_8));
+        stream.write(textFrame("frame"));
+        final MessageFramer framer = new MessageFramer(16, 1024);
+        framer.append(ByteBuffer.wrap(stream.toByteArray()));
+        assertTrue(framer.next());
+        assertEquals("frame", framer.getFrameString());
+        assertEquals(5, framer.getSkippedBytes());
+    }
+
+    @Test
+    public void frameEqualsPattern() throws Exception
+    {
+        final byte[] heartbit = new Message(Message.Type.HEARTBIT).encode().getBytes(UTF_8);
+        final MessageFramer framer = new MessageFramer(16, 1024);
+        framer.append(ByteBuffer.wrap(textFrame(new Message(Message.Type.HEARTBIT).encode())));
+        assertTrue(framer.next());
+        assertTrue(framer.isFrameEqual(heartbit));
+    }
+
+    @Test
+    public void oversizedFrameIsDiscarded() throws Exception
+    {
+        final StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 100; i++)
+        {
+            content.append("0123456789");
+        }
+        final MessageFramer framer = new MessageFramer(16, 256);
+        final byte[] large = textFrame(content.toString());
+        framer.append(large, 0, large.length);
+        assertFalse(framer.next());
+        assertEquals(1, framer.getOverflowCount());
+
+        // the framer is usable again afterwards
+        final byte[] small = textFrame("next");
+        framer.append(small, 0, small.length);
+        assertTrue(framer.next());
+        assertEquals("next", framer.getFrameString());
+    }
+}
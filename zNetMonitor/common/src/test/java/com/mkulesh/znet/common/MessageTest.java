@@ -0,0 +1,118 @@
+/*
+ * stm32WindowSensor: RF window sensors: STM32L + RFM69 + Android
+ *
+ * Copyright (C) 2019. Mikhail Kulesh
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details. You should have received a copy of the GNU General
+ * Public License along with this program.
+ */
+
+package com.mkulesh.znet.common;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MessageTest
+{
+    @Test
+    public void typedParametersAreConvertedOnlyForText() throws Exception
+    {
+        final Message m = new Message(Message.Type.DEVICE_STATE);
+        m.addParameter(11);
+        m.addParameter(true);
+        m.addParameter("12:00");
+        m.addParameter("3.3 V");
+        m.addParameter("[]");
+        m.addParameter(1234567890123L);
+
+        assertTrue(m.isNumber(0));
+        assertFalse(m.isNumber(1));
+        assertEquals(11, m.getInt(0));
+        assertTrue(m.getBoolean(1));
+        assertEquals(1234567890123L, m.getLong(Message.STATE_PAR_VERSION));
+        assertEquals("1234567890123", m.getParameter(Message.STATE_PAR_VERSION));
+
+        final Message decoded = new Message(m.encode());
+        assertEquals(m.encode(), decoded.encode());
+        assertEquals(11, decoded.getInt(0));
+        assertTrue(decoded.getBoolean(1));
+        assertEquals(1234567890123L, decoded.getLong(Message.STATE_PAR_VERSION));
+    }
+
+    @Test
+    public void optionalParameterHasDefaultValue()
+    {
+        final Message m = new Message(Message.Type.DEVICE_NUMBER);
+        m.addParameter(3);
+        assertEquals(7L, m.getLong(Message.STATE_PAR_VERSION, 7));
+        assertEquals("none", m.getParameter(1, "none"));
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void getIntRejectsLargeNumber()
+    {
+        final Message m = new Message(Message.Type.DEVICE_NUMBER);
+        m.addParameter(Integer.MAX_VALUE + 1L);
+        m.getInt(0);
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void getIntRejectsLargeText()
+    {
+        final Message m = new Message(Message.Type.DEVICE_NUMBER);
+        m.addParameter("-3000000000");
+        m.getInt(0);
+    }
+
+    @Test
+    public void getIntAcceptsRangeLimits()
+    {
+        final Message m = new Message(Message.Type.DEVICE_NUMBER);
+        m.addParameter(Integer.MIN_VALUE);
+        m.addParameter(Integer.toString(Integer.MAX_VALUE));
+        assertEquals(Integer.MIN_VALUE, m.getInt(0));
+        assertEquals(Integer.MAX_VALUE, m.getInt(1));
+    }
+
+    @Test
+    public void pooledMessageReturnsAfterLastReference()
+    {
+        final MessagePool pool = new MessagePool(4);
+        final Message m = pool.obtain(Message.Type.DEVICE_STATE);
+        m.addParameter("a");
+        m.retain();
+
+        m.recycle();
+        final Message other = pool.obtain(Message.Type.HEARTBIT);
+        assertNotSame(m, other);
+
+        m.recycle();
+        final Message reused = pool.obtain(Message.Type.SERVER_STATE);
+        assertSame(m, reused);
+        assertEquals(Message.Type.SERVER_STATE, reused.getType());
+        assertEquals(0, reused.getParameterCount());
+    }
+
+    @Test
+    public void messageWithoutPoolIsNotRecycled()
+    {
+        final Message m = new Message(Message.Type.DEVICE_NUMBER);
+        m.addParameter(5);
+        m.retain();
+        m.recycle();
+        m.recycle();
+        assertEquals(1, m.getParameterCount());
+        assertEquals(5, m.getInt(0));
+    }
+}
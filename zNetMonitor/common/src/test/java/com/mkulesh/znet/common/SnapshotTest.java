@@ -0,0 +1,105 @@
+/*
+ * stm32WindowSensor: RF window sensors: STM32L + RFM69 + Android
+ *
+ * Copyright (C) 2019. Mikhail Kulesh
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details. You should have received a copy of the GNU General
+ * Public License along with this program.
+ */
+
+package com.mkulesh.znet.common;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SnapshotTest
+{
+    private final static int DEVICES = 200;
+
+    private static List<Message> createDump() throws Exception
+    {
+        final ArrayList<Message> messages = new ArrayList<>();
+        final ArrayList<DeviceState> states = new ArrayList<>();
+        for (int i = 1; i <= DEVICES; i++)
+        {
+            final DeviceState d = new DeviceState(new DeviceConfig(
+                    i + " | Window sensor | KMA-WS-1.1 | " + (i % 3) + " | room" + (i % 10) + " | " + i));
+            d.setAlarm(i % 7 == 0);
+            d.setBatteryState("3.3 V");
+            states.add(d);
+            messages.add(d.getConfig().getDeviceConfigMsg());
+        }
+        final Message number = new Message(Message.Type.DEVICE_NUMBER);
+        number.addParameter(DEVICES);
+        messages.add(number);
+        for (DeviceState d : states)
+        {
+            final Message m = d.getDeviceStateMsg();
+            m.addParameter(1000L + d.getId());
+            messages.add(m);
+        }
+        return messages;
+    }
+
+    @Test
+    public void snapshotRoundTrip() throws Exception
+    {
+        final List<Message> dump = createDump();
+        final Message snapshot = Snapshot.createMessage(dump);
+        assertEquals(Integer.toString(dump.size()), snapshot.getParameter(0));
+
+        // the snapshot is sent as binary message
+        final byte[] body = BinaryCodec.encode(snapshot);
+        final Message received = BinaryCodec.decode(body, 0, body.length);
+        final List<Message> messages = Snapshot.getMessages(received);
+        received.recycle();
+
+        assertEquals(dump.size(), messages.size());
+        for (int i = 0; i < dump.size(); i++)
+        {
+            assertEquals(dump.get(i).getType(), messages.get(i).getType());
+            assertEquals(dump.get(i).encode(), messages.get(i).encode());
+            messages.get(i).recycle();
+        }
+    }
+
+    @Test
+    public void snapshotIsCompressed() throws Exception
+    {
+        final List<Message> dump = createDump();
+        int raw = 0;
+        for (Message m : dump)
+        {
+            raw += BinaryCodec.encode(m).length;
+        }
+        final Message snapshot = Snapshot.createMessage(dump);
+        assertTrue(snapshot.getPayload().length < raw / 2);
+    }
+
+    @Test(expected = Exception.class)
+    public void corruptedPayloadIsRejected() throws Exception
+    {
+        final Message snapshot = Snapshot.createMessage(createDump());
+        final byte[] payload = snapshot.getPayload();
+        snapshot.setPayload(Arrays.copyOf(payload, payload.length / 2));
+        Snapshot.getMessages(snapshot);
+    }
+
+    @Test(expected = Exception.class)
+    public void otherMessageIsRejected() throws Exception
+    {
+        Snapshot.getMessages(new Message(Message.Type.DEVICE_NUMBER));
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * stm32WindowSensor: RF window sensors: STM32L + RFM69 + Android
+ *
+ * Copyright (C) 2019. Mikhail Kulesh
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details. You should have received a copy of the GNU General
+ * Public License along with this program.
+ */
+
+package com.mkulesh.znet.common;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SubscriptionFilterTest
+{
+    private static DeviceConfig device(int id, String type, String floor, String room) throws Exception
+    {
+        return new DeviceConfig(id + " | " + type + " | KMA-WS-1.1 | " + floor + " | " + room + " | 1");
+    }
+
+    @Test
+    public void emptyFilterMatchesAll() throws Exception
+    {
+        final SubscriptionFilter f = new SubscriptionFilter("  ");
+        assertTrue(f.isAll());
+        assertTrue(f.matches(device(1, "Window sensor", "1", "room1")));
+        assertTrue(SubscriptionFilter.ALL.matches(device(2, "Door sensor", "2", "room2")));
+    }
+
+    @Test
+    public void allCriteriaMustMatch() throws Exception
+    {
+        final SubscriptionFilter f = new SubscriptionFilter("floor=2; room=room1,room2; type=Window sensor");
+        assertFalse(f.isAll());
+        assertTrue(f.matches(device(1, "Window sensor", "2", "room2")));
+        assertFalse(f.matches(device(2, "Window sensor", "1", "room2")));
+        assertFalse(f.matches(device(3, "Window sensor", "2", "room3")));
+        assertFalse(f.matches(device(4, "Door sensor", "2", "room1")));
+    }
+
+    @Test
+    public void listedIdAlwaysMatches() throws Exception
+    {
+        final SubscriptionFilter f = new SubscriptionFilter("floor=2;id=3,4");
+        assertTrue(f.matches(device(3, "Window sensor", "1", "room1")));
+        assertTrue(f.matches(device(5, "Window sensor", "2", "room1")));
+        assertFalse(f.matches(device(5, "Window sensor", "1", "room1")));
+
+        final SubscriptionFilter ids = new SubscriptionFilter("id=3");
+        assertTrue(ids.matches(device(3, "Window sensor", "1", "room1")));
+        assertFalse(ids.matches(device(4, "Window sensor", "1", "room1")));
+    }
+
+    @Test
+    public void specIsKept() throws Exception
+    {
+        assertEquals("floor=2;id=3", new SubscriptionFilter(" floor=2;id=3 ").toString());
+    }
+
+    @Test(expected = Exception.class)
+    public void unknownKeyIsRejected() throws Exception
+    {
+        new SubscriptionFilter("building=1");
+    }
+
+    @Test(expected = Exception.class)
+    public void criterionWithoutValueIsRejected() throws Exception
+    {
+        new SubscriptionFilter("floor");
+    }
+}
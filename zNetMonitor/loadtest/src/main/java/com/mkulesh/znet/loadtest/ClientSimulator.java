@@ -0,0 +1,299 @@
+/*
+ * stm32WindowSensor: RF window sensors: STM32L + RFM69 + Android
+ *
+ * Copyright (C) 2019. Mikhail Kulesh
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details. You should have received a copy of the GNU General
+ * Public License along with this program.
+ */
+
+package com.mkulesh.znet.loadtest;
+
+import com.mkulesh.znet.common.AdvancedEncryptionStandard;
+import com.mkulesh.znet.common.BinaryCodec;
+import com.mkulesh.znet.common.LatencyHistogram;
+import com.mkulesh.znet.common.Message;
+import com.mkulesh.znet.common.MessageFramer;
+import com.mkulesh.znet.common.Snapshot;
+import com.mkulesh.znet.common.Utils;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Simulates a group of clients on one thread: each client logs in using the binary protocol and
+ * reads the message stream. For each received device state that matches a state written by the
+ * sensor simulator, the end-to-end latency is recorded. The number of logins in progress is
+ * limited, and a rejected or failed connection is retried after a delay.
+ */
+class ClientSimulator implements Runnable
+{
+    private final static int RETRY_DELAY = 1000;
+    private final static byte[] HEARTBIT_MSG =
+            new Message(Message.Type.HEARTBIT).encode().getBytes(StandardCharsets.UTF_8);
+
+    private static class Connection
+    {
+        SocketChannel socket;
+        AdvancedEncryptionStandard encryptor;
+        MessageFramer framer;
+        boolean loggedIn;
+        long retryTime;
+    }
+
+    private final InetSocketAddress server;
+    private final String password;
+    private final SensorSimulator sensors;
+    private final Semaphore pendingLogins;
+    private final LatencyHistogram latency;
+    private final Connection[] connections;
+    private final ArrayDeque<Connection> waiting = new ArrayDeque<>();
+    private final SecureRandom random = new SecureRandom();
+    private final AdvancedEncryptionStandard initialEncryptor = new AdvancedEncryptionStandard(Message.AES_KEY);
+    private final ByteBuffer buffer = ByteBuffer.allocate(Message.SOCKET_BUFFER);
+    private final AtomicInteger loggedInClients;
+    private final AtomicLong receivedStates = new AtomicLong(0);
+    private final AtomicLong failures = new AtomicLong(0);
+    private Selector selector = null;
+    private volatile boolean running = true;
+
+    ClientSimulator(InetSocketAddress server, String password, int clients, SensorSimulator sensors,
+                    Semaphore pendingLogins, LatencyHistogram latency, AtomicInteger loggedInClients)
+    {
+        this.server = server;
+        this.password = password;
+        this.sensors = sensors;
+        this.pendingLogins = pendingLogins;
+        this.latency = latency;
+        this.loggedInClients = loggedInClients;
+        connections = new Connection[clients];
+        for (int i = 0; i < clients; i++)
+        {
+            connections[i] = new Connection();
+            waiting.add(connections[i]);
+        }
+    }
+
+    long getReceivedStates()
+    {
+        return receivedStates.get();
+    }
+
+    long getFailures()
+    {
+        return failures.get();
+    }
+
+    void stop()
+    {
+        running = false;
+        if (selector != null)
+        {
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        try
+        {
+            selector = Selector.open();
+            while (running)
+            {
+                connectWaiting();
+                selector.select(waiting.isEmpty() ? 0 : 100);
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext())
+                {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    final Connection c = (Connection) key.attachment();
+                    try
+                    {
+                        if (key.isConnectable())
+                        {
+                            c.socket.finishConnect();
+                            c.socket.write(ByteBuffer.wrap(getLoginMessage(c)));
+                            key.interestOps(SelectionKey.OP_READ);
+                        }
+                        else if (key.isReadable())
+                        {
+                            read(c);
+                        }
+                    }
+                    catch (Exception e)
+                    {
+                        onFailure(c);
+                    }
+                }
+            }
+            for (Connection c : connections)
+            {
+                close(c);
+            }
+            selector.close();
+        }
+        catch (IOException e)
+        {
+            System.err.println("client simulator stopped: " + e.getLocalizedMessage());
+        }
+    }
+
+    private void connectWaiting()
+    {
+        final long now = System.currentTimeMillis();
+        final int size = waiting.size();
+        for (int i = 0; i < size; i++)
+        {
+            final Connection c = waiting.poll();
+            if (c.retryTime > now || !pendingLogins.tryAcquire())
+            {
+                waiting.add(c);
+                continue;
+            }
+            try
+            {
+                c.socket = SocketChannel.open();
+                c.socket.configureBlocking(false);
+                c.framer = new MessageFramer(Message.SOCKET_BUFFER, Message.MAX_INPUT_BUFFER);
+                c.loggedIn = false;
+                c.socket.connect(server);
+                c.socket.register(selector, SelectionKey.OP_CONNECT, c);
+            }
+            catch (IOException e)
+            {
+                pendingLogins.release();
+                c.retryTime = now + RETRY_DELAY;
+                failures.incrementAndGet();
+                close(c);
+                waiting.add(c);
+            }
+        }
+    }
+
+    private byte[] getLoginMessage(Connection c) throws Exception
+    {
+        final byte[] key = new byte[16];
+        random.nextBytes(key);
+        final String sessionKey = Utils.bb2hex(key).replaceAll("\\s", "");
+        c.encryptor = new AdvancedEncryptionStandard(sessionKey);
+        final Message login = new Message(Message.Type.CLIENT_LOGIN);
+        login.addParameter("znet load test");
+        login.addParameter(password);
+        login.addParameter(sessionKey);
+        login.addParameter(Integer.toString(Message.PROTOCOL_BINARY));
+        return (Message.START_TAG + Base64.getEncoder().encodeToString(initialEncryptor.encrypt(login.encode()))
+                + Message.END_TAG).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void read(Connection c) throws Exception
+    {
+        buffer.clear();
+        final int readedSize = c.socket.read(buffer);
+        if (readedSize < 0)
+        {
+            throw new IOException("connection closed");
+        }
+        final long now = System.nanoTime();
+        buffer.flip();
+        c.framer.append(buffer);
+        while (c.framer.next())
+        {
+            if (!c.loggedIn)
+            {
+                // the first received message confirms the login
+                c.loggedIn = true;
+                pendingLogins.release();
+                loggedInClients.incrementAndGet();
+            }
+            if (!c.framer.isBinaryFrame())
+            {
+                if (!c.framer.isFrameEqual(HEARTBIT_MSG))
+                {
+                    throw new IOException("server does not support the binary protocol");
+                }
+                continue;
+            }
+            final Message m = BinaryCodec.decodeFrame(c.framer.getFrameData(), c.framer.getFrameOffset(),
+                    c.framer.getFrameLength(), c.encryptor);
+            if (m.getType() == Message.Type.DEVICE_STATE)
+            {
+                handleDeviceState(m, now);
+            }
+            else if (m.getType() == Message.Type.SNAPSHOT)
+            {
+                // the snapshot is decoded as a real client would do
+                for (Message inner : Snapshot.getMessages(m))
+                {
+                    inner.recycle();
+                }
+            }
+            m.recycle();
+        }
+    }
+
+    private void handleDeviceState(Message m, long receiveTime)
+    {
+        receivedStates.incrementAndGet();
+        // the battery state contains the frame counter as a voltage, like "12.3 V"
+        final String counter = m.getParameter(3).replaceAll("[^0-9]", "");
+        final long writeTime = sensors == null || counter.isEmpty() ? 0 :
+                sensors.getWriteTime(m.getInt(0), Integer.parseInt(counter));
+        if (writeTime > 0 && receiveTime > writeTime)
+        {
+            latency.record(TimeUnit.NANOSECONDS.toMicros(receiveTime - writeTime));
+        }
+    }
+
+    private void onFailure(Connection c)
+    {
+        failures.incrementAndGet();
+        if (c.loggedIn)
+        {
+            loggedInClients.decrementAndGet();
+        }
+        else
+        {
+            pendingLogins.release();
+        }
+        close(c);
+        c.retryTime = System.currentTimeMillis() + RETRY_DELAY;
+        waiting.add(c);
+    }
+
+    private void close(Connection c)
+    {
+        if (c.socket != null)
+        {
+            try
+            {
+                c.socket.close();
+            }
+            catch (IOException e)
+            {
+                // nothing to do
+            }
+            c.socket = null;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * stm32WindowSensor: RF window sensors: STM32L + RFM69 + Android
+ *
+ * Copyright (C) 2019. Mikhail Kulesh
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details. You should have received a copy of the GNU General
+ * Public License along with this program.
+ */
+
+package com.mkulesh.znet.loadtest;
+
+import com.mkulesh.znet.common.LatencyHistogram;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load generator for capacity tests of the znet server.
+ *
+ * The server is configured to read a named pipe instead of the serial port ("serialPort = pipe:<path>")
+ * and to accept enough connections from the load generator host ("maxConnectionsPerAddress",
+ * "maxPendingLogins"). The sensor configuration for the server is printed using --print-config.
+ *
+ * Usage: java -jar znet-loadtest.jar [--server localhost] [--port 5017] [--password ""]
+ *        [--pipe /tmp/znet.fifo] [--sensors 500] [--first-id 1] [--rate 100] [--clients 2000]
+ *        [--threads 4] [--pending 16] [--duration 60] [--warmup 10] [--pid server-pid] [--print-config]
+ *
+ * --rate is the total number of sensor frames per second. Latency is measured from writing the frame
+ * into the pipe until a client receives the device state, in microseconds.
+ */
+public class LoadTest
+{
+    private final static int REPORT_INTERVAL = 5;
+
+    public static void main(String[] args) throws Exception
+    {
+        final HashMap<String, String> options = parseOptions(args);
+        final int sensors = Integer.parseInt(getOption(options, "sensors", "500"));
+        final int firstId = Integer.parseInt(getOption(options, "first-id", "1"));
+        if (options.containsKey("print-config"))
+        {
+            printConfiguration(firstId, sensors);
+            return;
+        }
+
+        final String server = getOption(options, "server", "localhost");
+        final int port = Integer.parseInt(getOption(options, "port", "5017"));
+        final String password = getOption(options, "password", "");
+        final String pipe = getOption(options, "pipe", "/tmp/znet.fifo");
+        final double rate = Double.parseDouble(getOption(options, "rate", "100"));
+        final int clients = Integer.parseInt(getOption(options, "clients", "2000"));
+        final int threads = Integer.parseInt(getOption(options, "threads",
+                Integer.toString(Runtime.getRuntime().availableProcessors())));
+        final int pending = Integer.parseInt(getOption(options, "pending", "16"));
+        final int duration = Integer.parseInt(getOption(options, "duration", "60"));
+        final int warmup = Integer.parseInt(getOption(options, "warmup", "10"));
+        final ProcessMonitor monitor = options.containsKey("pid") ?
+                new ProcessMonitor(Integer.parseInt(options.get("pid"))) : null;
+
+        System.out.println(String.format(Locale.US,
+                "load test: %d sensors, %.1f frames/s, %d clients on %d threads, server %s:%d",
+                sensors, rate, clients, threads, server, port));
+
+        // clients are connected first; the sensors start when all clients are logged in or the warm-up
+        // time has elapsed
+        final LatencyHistogram latency = new LatencyHistogram();
+        final SensorSimulator sensorSimulator = new SensorSimulator(pipe, firstId, sensors, rate);
+        final Semaphore pendingLogins = new Semaphore(pending);
+        final AtomicInteger loggedInClients = new AtomicInteger(0);
+        final ArrayList<ClientSimulator> clientSimulators = new ArrayList<>();
+        for (int i = 0; i < threads; i++)
+        {
+            final int n = clients / threads + (i < clients % threads ? 1 : 0);
+            final ClientSimulator c = new ClientSimulator(new InetSocketAddress(server, port), password, n,
+                    sensorSimulator, pendingLogins, latency, loggedInClients);
+            clientSimulators.add(c);
+            new Thread(c, "client simulator " + i).start();
+        }
+        for (int i = 0; i < warmup * 10 && loggedInClients.get() < clients; i++)
+        {
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+        System.out.println("logged-in clients: " + loggedInClients.get());
+        if (monitor != null)
+        {
+            monitor.sample();
+        }
+
+        final Thread sensorThread = new Thread(sensorSimulator, "sensor simulator");
+        sensorThread.start();
+        final long start = System.nanoTime();
+        long lastFrames = 0, lastStates = 0;
+        for (int elapsed = REPORT_INTERVAL; elapsed <= duration; elapsed += REPORT_INTERVAL)
+        {
+            TimeUnit.SECONDS.sleep(REPORT_INTERVAL);
+            final long frames = sensorSimulator.getWrittenFrames();
+            final long states = getReceivedStates(clientSimulators);
+            System.out.println(String.format(Locale.US,
+                    "%3ds: frames %.1f/s, states %.1f/s, clients %d, latency [us] %s%s",
+                    elapsed, (frames - lastFrames) / (double) REPORT_INTERVAL,
+                    (states - lastStates) / (double) REPORT_INTERVAL, loggedInClients.get(), latency.toString(),
+                    monitor != null && monitor.sample() ? ", server " + monitor.toString() : ""));
+            lastFrames = frames;
+            lastStates = states;
+        }
+        final double seconds = (System.nanoTime() - start) / 1e9;
+
+        sensorSimulator.stop();
+        long failures = 0;
+        for (ClientSimulator c : clientSimulators)
+        {
+            c.stop();
+            failures += c.getFailures();
+        }
+
+        System.out.println("result:");
+        System.out.println(String.format(Locale.US, "  sensor frames:   %d (%.1f/s)",
+                sensorSimulator.getWrittenFrames(), sensorSimulator.getWrittenFrames() / seconds));
+        System.out.println(String.format(Locale.US, "  received states: %d (%.1f/s)",
+                getReceivedStates(clientSimulators), getReceivedStates(clientSimulators) / seconds));
+        System.out.println("  clients:         " + loggedInClients.get() + " logged in, " + failures
+                + " connection failures");
+        System.out.println("  latency [us]:    " + latency.toString());
+        if (monitor != null)
+        {
+            System.out.println("  server:          " + monitor.toString());
+        }
+        System.exit(0);
+    }
+
+    private static long getReceivedStates(ArrayList<ClientSimulator> clientSimulators)
+    {
+        long states = 0;
+        for (ClientSimulator c : clientSimulators)
+        {
+            states += c.getReceivedStates();
+        }
+        return states;
+    }
+
+    private static void printConfiguration(int firstId, int sensors)
+    {
+        System.out.println("serialPort = pipe:/tmp/znet.fifo");
+        System.out.println("maxConnectionsPerAddress = 100000");
+        System.out.println("maxPendingLogins = 256");
+        for (int i = 0; i < sensors; i++)
+        {
+            System.out.println("sensor" + (i + 1) + " = " + (firstId + i) + " | Window sensor | LOADTEST | "
+                    + (1 + i / 100) + " | room" + (1 + (i / 10) % 10) + " | " + (1 + i % 10));
+        }
+    }
+
+    private static HashMap<String, String> parseOptions(String[] args)
+    {
+        final HashMap<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++)
+        {
+            if (!args[i].startsWith("--"))
+            {
+                throw new IllegalArgumentException("invalid option " + args[i]);
+            }
+            final String key = args[i].substring(2);
+            if (i + 1 < args.length && !args[i + 1].startsWith("--"))
+            {
+                options.put(key, args[++i]);
+            }
+            else
+            {
+                options.put(key, "");
+            }
+        }
+        return options;
+    }
+
+    private static String getOption(HashMap<String, String> options, String key, String defaultValue)
+    {
+        final String value = options.get(key);
+        return value == null ? defaultValue : value;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * stm32WindowSensor: RF window sensors: STM32L + RFM69 + Android
+ *
+ * Copyright (C) 2019. Mikhail Kulesh
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details. You should have received a copy of the GNU General
+ * Public License along with this program.
+ */
+
+package com.mkulesh.znet.loadtest;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Samples the CPU usage and the resident memory of the server process from /proc (Linux only)
+ */
+class ProcessMonitor
+{
+    // clock ticks per second of the utime and stime fields; 100 on all common Linux platforms
+    private final static double CLOCK_TICKS = 100.0;
+
+    private final int pid;
+    private long lastCpuTicks = -1;
+    private long lastTime = 0;
+    private double cpuUsage = 0;
+    private double maxCpuUsage = 0;
+    private long residentMemory = 0;
+    private long maxResidentMemory = 0;
+    private int threads = 0;
+
+    ProcessMonitor(int pid)
+    {
+        this.pid = pid;
+    }
+
+    /**
+     * Takes a sample; returns false if the process can not be read
+     */
+    boolean sample()
+    {
+        try
+        {
+            final String stat = new String(Files.readAllBytes(Paths.get("/proc", Integer.toString(pid), "stat")),
+                    StandardCharsets.US_ASCII);
+            // the fields after the command name, which is enclosed in parentheses
+            final String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+            final long cpuTicks = Long.parseLong(fields[11]) + Long.parseLong(fields[12]);
+            threads = Integer.parseInt(fields[17]);
+            final long now = System.nanoTime();
+            if (lastCpuTicks >= 0 && now > lastTime)
+            {
+                cpuUsage = 100.0 * (cpuTicks - lastCpuTicks) / CLOCK_TICKS / ((now - lastTime) / 1e9);
+                maxCpuUsage = Math.max(maxCpuUsage, cpuUsage);
+            }
+            lastCpuTicks = cpuTicks;
+            lastTime = now;
+
+            final List<String> status = Files.readAllLines(Paths.get("/proc", Integer.toString(pid), "status"),
+                    StandardCharsets.US_ASCII);
+            for (String line : status)
+            {
+                if (line.startsWith("VmRSS:"))
+                {
+                    residentMemory = Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                    maxResidentMemory = Math.max(maxResidentMemory, residentMemory);
+                }
+            }
+            return true;
+        }
+        catch (IOException | RuntimeException e)
+        {
+            return false;
+        }
+    }
+
+    public String toString()
+    {
+        return String.format(Locale.US, "cpu=%.1f%% (max %.1f%%), rss=%d MB (max %d MB), threads=%d",
+                cpuUsage, maxCpuUsage, residentMemory >> 20, maxResidentMemory >> 20, threads);
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * stm32WindowSensor: RF window sensors: STM32L + RFM69 + Android
+ *
+ * Copyright (C) 2019. Mikhail Kulesh
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details. You should have received a copy of the GNU General
+ * Public License along with this program.
+ */
+
+package com.mkulesh.znet.loadtest;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Simulates window sensors: writes gateway frames "GW;3;<id>;..." into the named pipe the server
+ * reads instead of the serial port. Each frame toggles the window state of the next sensor, so
+ * that each frame causes one state change. The battery voltage field carries a frame counter of the
+ * sensor (0..999) which the server forwards to the clients in the battery state: the write time is
+ * stored per sensor and counter.
+ */
+class SensorSimulator implements Runnable
+{
+    private final static int COUNTER_RANGE = 1000;
+
+    private final String pipe;
+    private final int firstId;
+    private final int sensors;
+    private final double rate;
+    private final AtomicLongArray writeTimes;
+    private final int[] counter;
+    private final AtomicLong writtenFrames = new AtomicLong(0);
+    private volatile boolean running = true;
+
+    /**
+     * @param rate total number of frames per second
+     */
+    SensorSimulator(String pipe, int firstId, int sensors, double rate)
+    {
+        this.pipe = pipe;
+        this.firstId = firstId;
+        this.sensors = sensors;
+        this.rate = rate;
+        this.writeTimes = new AtomicLongArray(COUNTER_RANGE * sensors);
+        this.counter = new int[sensors];
+    }
+
+    /**
+     * Returns the time (System.nanoTime) the frame with the given counter of the given sensor was
+     * written, or 0
+     */
+    long getWriteTime(int id, int frameCounter)
+    {
+        final int idx = id - firstId;
+        if (idx < 0 || idx >= sensors || frameCounter < 0 || frameCounter >= COUNTER_RANGE)
+        {
+            return 0;
+        }
+        return writeTimes.get(COUNTER_RANGE * idx + frameCounter);
+    }
+
+    long getWrittenFrames()
+    {
+        return writtenFrames.get();
+    }
+
+    void stop()
+    {
+        running = false;
+    }
+
+    @Override
+    public void run()
+    {
+        final long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        try (OutputStream out = new FileOutputStream(pipe))
+        {
+            // the gateway startup message
+            out.write("GW;1;0;0.\n".getBytes(StandardCharsets.US_ASCII));
+            long next = System.nanoTime();
+            int idx = 0;
+            while (running)
+            {
+                final long wait = next - System.nanoTime();
+                if (wait > 0)
+                {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                counter[idx] = (counter[idx] + 1) % COUNTER_RANGE;
+                // the window state alternates with the counter, the battery voltage is given in 0.1 V
+                final String frame = "GW;3;" + (firstId + idx) + ";-67;" + (counter[idx] % 2) + ";385;"
+                        + counter[idx] + ";18.\n";
+                writeTimes.set(COUNTER_RANGE * idx + counter[idx], System.nanoTime());
+                out.write(frame.getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+                writtenFrames.incrementAndGet();
+                idx = (idx + 1) % sensors;
+                next += interval;
+            }
+        }
+        catch (IOException | InterruptedException e)
+        {
+            System.err.println("sensor simulator stopped: " + e.getLocalizedMessage());
+        }
+    }
+}
@@ -17,11 +17,21 @@ package com.mkulesh.znet;
 
 import com.mkulesh.znet.common.CustomLogger;
 import com.mkulesh.znet.common.DeviceState;
+import com.mkulesh.znet.eventlog.EventLog;
+import com.mkulesh.znet.metrics.Metrics;
 import com.mkulesh.znet.network.ClientAppManager;
+import com.mkulesh.znet.network.HttpManager;
 import com.mkulesh.znet.network.IdGenerator;
+import com.mkulesh.znet.network.MulticastPublisher;
+import com.mkulesh.znet.network.UpstreamClient;
+import com.mkulesh.znet.scheduler.Scheduler;
 import com.mkulesh.znet.serial.MessageHandler;
 import com.mkulesh.znet.serial.SerialCommunication;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -34,46 +44,132 @@ public class Application
 
         logger.log(Level.INFO, "znet server started", CustomLogger.ADD_TO_CONSOLE);
         Config.loadConfiguration(logger);
+        cLogger.configure(Config.getLogFlushInterval(), Config.getLogOverflowPolicy(), Config.getLogRepeatLimit());
 
-        final StateManager stateManager = new StateManager(logger);
+        // steps the client port does not depend on run in parallel to its binding
+        final List<CompletableFuture<Void>> startup = new ArrayList<>();
+        if (Config.getEventLogSegments() > 0)
+        {
+            startup.add(CompletableFuture.runAsync(() -> EventLog.open(logger, Config.EVENTLOG_NAME,
+                    Config.getEventLogSegmentSize(), Config.getEventLogSegments())));
+        }
 
-        MessageHandler messageHandler = new MessageHandler(logger, stateManager);
+        final StateManager stateManager = new StateManager(logger);
 
-        SerialCommunication serialCommunication;
-        try
+        // shared scheduler for all periodic work
+        final Scheduler scheduler = new Scheduler(logger, Config.SCHEDULER_TICK, Config.SCHEDULER_WHEEL_SIZE);
+        scheduler.start();
+        if (Config.getMetricsInterval() > 0)
         {
-            serialCommunication = new SerialCommunication(logger, messageHandler);
-            serialCommunication.printAvailablePorts();
+            scheduler.scheduleAtFixedRate(() -> logger.info("metrics:" + Metrics.dump()),
+                    Config.getMetricsInterval(), Config.getMetricsInterval(), false);
         }
-        catch (Exception | UnsatisfiedLinkError e)
+
+        final boolean relayMode = Config.isRelayMode();
+        MessageHandler messageHandler = null;
+        if (relayMode)
         {
-            serialCommunication = null;
-            logger.log(Level.SEVERE, "can not initialize znet port", e);
+            // devices are mirrored from the upstream server
+            logger.log(Level.INFO, "relay mode: upstream server " + Config.getUpstreamServer() + ":"
+                    + Config.getUpstreamPort(), CustomLogger.ADD_TO_CONSOLE);
+            stateManager.setRelayMode();
         }
-
-        try
+        else
         {
-            stateManager.readConfigurationFile(Config.getSensors());
-            for (DeviceState d : stateManager.getDevices().values())
+            messageHandler = new MessageHandler(logger, stateManager);
+            messageHandler.start();
+
+            try
             {
-                logger.info(d.getConfig().toString());
+                stateManager.readConfigurationFile(Config.getSensors());
+                startup.add(CompletableFuture.runAsync(() ->
+                {
+                    for (DeviceState d : stateManager.getDevices().values())
+                    {
+                        logger.info(d.getConfig().toString());
+                    }
+                }));
+            }
+            catch (Exception e)
+            {
+                logger.log(Level.SEVERE, "can not read configuration", e);
+            }
+
+            if (!Config.getStateFile().isEmpty())
+            {
+                final StateStore stateStore = new StateStore(logger, stateManager, Config.getStateFile());
+                stateStore.restore();
+                stateStore.start(scheduler, Config.getStateSaveInterval());
             }
-        }
-        catch (Exception e)
-        {
-            logger.log(Level.SEVERE, "can not read configuration", e);
         }
 
         IdGenerator.reset();
 
-        final ClientAppManager clientAppManager = new ClientAppManager(logger, stateManager, Config.getNetworkInterface(),
-                Config.getClientAppPort());
+        // the devices are not ready until the gateway is connected
+        stateManager.start();
+
+        // the client port is bound as early as possible: the clients get the restored states
+        final ClientAppManager clientAppManager = new ClientAppManager(logger, stateManager, scheduler,
+                Config.getNetworkInterface(), Config.getClientAppPort());
         stateManager.setClientAppManager(clientAppManager);
         clientAppManager.start();
-        stateManager.start();
-        if (serialCommunication != null)
+        if (Config.getHttpPort() > 0)
+        {
+            final HttpManager httpManager = new HttpManager(logger, stateManager, clientAppManager, scheduler,
+                    Config.getNetworkInterface(), Config.getHttpPort(), Config.getMaxHttpConnections(),
+                    Config.getHttpAllowOrigin());
+            stateManager.setHttpManager(httpManager);
+            httpManager.start();
+        }
+        if (!relayMode)
+        {
+            stateManager.startServerStateSampler(scheduler);
+        }
+        if (!Config.getMulticastGroup().isEmpty())
+        {
+            startup.add(CompletableFuture.runAsync(() -> startMulticastPublisher(logger, stateManager, scheduler)));
+        }
+
+        // the serial port is opened on a scheduler worker thread; the available ports are only
+        // listed if it can not be opened
+        if (messageHandler != null)
+        {
+            new SerialCommunication(logger, messageHandler, scheduler).start();
+        }
+        if (relayMode)
+        {
+            new UpstreamClient(logger, stateManager, Config.getUpstreamServer(), Config.getUpstreamPort(),
+                    Config.getUpstreamPassword(), Config.getUpstreamFilter()).start();
+        }
+
+        try
+        {
+            CompletableFuture.allOf(startup.toArray(new CompletableFuture<?>[0])).join();
+        }
+        catch (Exception e)
+        {
+            logger.log(Level.SEVERE, "startup step failed", e);
+        }
+        final long completed = ManagementFactory.getRuntimeMXBean().getUptime();
+        Metrics.STARTUP_COMPLETED.record(completed);
+        logger.log(Level.INFO, "startup completed after " + completed + " ms", CustomLogger.ADD_TO_CONSOLE);
+    }
+
+    private static void startMulticastPublisher(Logger logger, StateManager stateManager, Scheduler scheduler)
+    {
+        final int keyLength = Config.getMulticastKey().length();
+        if (keyLength == 16 || keyLength == 24 || keyLength == 32)
+        {
+            final MulticastPublisher multicastPublisher = new MulticastPublisher(logger, stateManager,
+                    Config.getMulticastGroup(), Config.getMulticastPort(), Config.getMulticastKey());
+            multicastPublisher.start(scheduler, Config.getNetworkInterface(), Config.getMulticastTtl(),
+                    Config.getMulticastBeaconInterval());
+            stateManager.setMulticastPublisher(multicastPublisher);
+        }
+        else
         {
-            serialCommunication.start();
+            logger.log(Level.SEVERE, "multicast key shall have 16, 24 or 32 characters, multicast is disabled",
+                    CustomLogger.ADD_TO_CONSOLE);
         }
     }
 }
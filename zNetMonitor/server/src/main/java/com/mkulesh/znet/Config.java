@@ -15,6 +15,9 @@
 
 package com.mkulesh.znet;
 
+import com.mkulesh.znet.common.CustomLogger;
+import com.mkulesh.znet.serial.StageRing;
+
 import java.io.FileInputStream;
 import java.util.ArrayList;
 import java.util.List;
@@ -28,21 +31,64 @@ public class Config
 
     final static String LOGFILE_NAME = "znet_%s.log";
     final static long LOGFILE_SIZE = 10 * 1024 * 1024;
+    final static String EVENTLOG_NAME = "znet_events_%d.bin";
+    final static int SCHEDULER_TICK = 100;
+    final static int SCHEDULER_WHEEL_SIZE = 512;
+    public final static int SERIAL_POLLING_INTERVAL = 1000;
+    public final static int ADMISSION_STATISTICS_INTERVAL = 60000;
     public final static String SENSOR_READING_CMD = "ipmitool sensor";
     public final static String SENSOR_DATA_SEPARATOR = "\\|";
+    public final static int SENSOR_READING_MIN_INTERVAL = 30000;
+    public final static int FLAP_CHECK_INTERVAL = 1000;
+    // highest number N of a sensorN entry in the configuration file
+    public final static int MAX_SENSORS = 4096;
     private final static String PATH_SEPARATOR = "\\|";
 
     private static String serialPort = "/dev/ttyS4";
     private static int serialPortSpeed = 57600;
     private static String networkInterface = "enp5s0f0";
     private static int clientAppPort = 5017;
+    private static int httpPort = 0;
+    private static int maxHttpConnections = 64;
+    private static String httpAllowOrigin = "";
+
+    // multicast channel
+    private static String multicastGroup = "";
+    private static int multicastPort = 5018;
+    private static String multicastKey = "";
+    private static int multicastTtl = 1;
+    private static int multicastBeaconInterval = 10000;
     private static int heartbitInterval = 1000;
+    private static int metricsInterval = 60000;
+    private static int serverStateInterval = 30000;
+    private static int serverHealthInterval = 300000;
+
+    // flap detection
+    private static int flapWindow = 60000;
+    private static int flapThreshold = 6;
+    private static int flapQuietPeriod = 120000;
+
+    // persisted device states
+    private static String stateFile = "znet_state.txt";
+    private static int stateSaveInterval = 10000;
+
+    // frame pipeline
+    private static int pipelineRingSize = 1024;
+    private static String pipelineWaitStrategy = StageRing.WaitStrategy.PARK.toString();
+
+    // log writer
+    private static int logFlushInterval = 1000;
+    private static String logOverflowPolicy = CustomLogger.OverflowPolicy.DROP.toString();
+    private static int logRepeatLimit = 10;
+    private static int eventLogSegmentSize = 8 * 1024 * 1024;
+    private static int eventLogSegments = 8;
 
     // sensor configuration
     private static List<String> sensors = new ArrayList<>();
 
     // server state configuration
     private static String[] serverSensorID = null;
+    private static String[] serverStateSources = null;
     private static int diskSpaceNumber = 0;
     private static String[] diskSpacePath = null;
     private static String[] diskSpaceLabel = null;
@@ -50,6 +96,19 @@ public class Config
     // login parameters
     private static String password = null;
     private static int loginWaitingTime = 5;
+    private static int sessionTimeout = 3600;
+
+    // relay mode
+    private static String upstreamServer = "";
+    private static int upstreamPort = 5017;
+    private static String upstreamPassword = "";
+    private static String upstreamFilter = "";
+
+    // admission control
+    private static int maxConnectionsPerAddress = 8;
+    private static int maxPendingLogins = 32;
+    private static int loginBackoffTime = 1000;
+    private static int loginBackoffMaxTime = 60000;
 
     /**
      * Load configuration from file.
@@ -69,23 +128,70 @@ public class Config
         }
 
         logger.info("loading configuration file: " + CONFIGFILE_NAME);
+        loadConfiguration(logger, properties);
+    }
 
+    /**
+     * Load configuration from the given properties, for example for an in-process server.
+     */
+    static void loadConfiguration(Logger logger, Properties properties)
+    {
         // general configuration
         serialPort = getStringProperty(logger, properties, "serialPort", serialPort);
         serialPortSpeed = getIntProperty(logger, properties, "serialPortSpeed", serialPortSpeed);
         networkInterface = getStringProperty(logger, properties, "networkInterface", networkInterface);
         clientAppPort = getIntProperty(logger, properties, "clientAppPort", clientAppPort);
+        httpPort = getIntProperty(logger, properties, "httpPort", httpPort);
+        maxHttpConnections = getIntProperty(logger, properties, "maxHttpConnections", maxHttpConnections);
+        httpAllowOrigin = getStringProperty(logger, properties, "httpAllowOrigin", httpAllowOrigin).trim();
+
+        // multicast channel
+        multicastGroup = getStringProperty(logger, properties, "multicastGroup", multicastGroup);
+        multicastPort = getIntProperty(logger, properties, "multicastPort", multicastPort);
+        multicastKey = getStringProperty(logger, properties, "multicastKey", multicastKey);
+        multicastTtl = getIntProperty(logger, properties, "multicastTtl", multicastTtl);
+        multicastBeaconInterval = getIntProperty(logger, properties, "multicastBeaconInterval",
+                multicastBeaconInterval);
         heartbitInterval = getIntProperty(logger, properties, "heartbitInterval", heartbitInterval);
+        metricsInterval = getIntProperty(logger, properties, "metricsInterval", metricsInterval);
+        serverStateInterval = getIntProperty(logger, properties, "serverStateInterval", serverStateInterval);
+        serverHealthInterval = getIntProperty(logger, properties, "serverHealthInterval", serverHealthInterval);
+
+        // flap detection
+        flapWindow = getIntProperty(logger, properties, "flapWindow", flapWindow);
+        flapThreshold = getIntProperty(logger, properties, "flapThreshold", flapThreshold);
+        flapQuietPeriod = getIntProperty(logger, properties, "flapQuietPeriod", flapQuietPeriod);
+
+        // persisted device states
+        stateFile = getStringProperty(logger, properties, "stateFile", stateFile);
+        stateSaveInterval = getIntProperty(logger, properties, "stateSaveInterval", stateSaveInterval);
+
+        // frame pipeline
+        pipelineRingSize = getIntProperty(logger, properties, "pipelineRingSize", pipelineRingSize);
+        pipelineWaitStrategy = getStringProperty(logger, properties, "pipelineWaitStrategy", pipelineWaitStrategy);
+
+        // log writer
+        logFlushInterval = getIntProperty(logger, properties, "logFlushInterval", logFlushInterval);
+        logOverflowPolicy = getStringProperty(logger, properties, "logOverflowPolicy", logOverflowPolicy);
+        logRepeatLimit = getIntProperty(logger, properties, "logRepeatLimit", logRepeatLimit);
+        eventLogSegmentSize = getIntProperty(logger, properties, "eventLogSegmentSize", eventLogSegmentSize);
+        eventLogSegments = getIntProperty(logger, properties, "eventLogSegments", eventLogSegments);
 
-        // sensor configuration
-        for (int i = 1; i < 256; i++)
+        // sensor configuration: the entries sensor1 to sensorMAX_SENSORS, gaps are allowed
+        for (int i = 1; i <= MAX_SENSORS; i++)
         {
             final String propertyValue = properties.getProperty("sensor" + i);
-            if (propertyValue == null)
+            if (propertyValue != null)
             {
-                break;
+                sensors.add(propertyValue);
+            }
+        }
+        for (String name : properties.stringPropertyNames())
+        {
+            if (name.matches("sensor[0-9]+") && (name.length() > 10 || Integer.parseInt(name.substring(6)) > MAX_SENSORS))
+            {
+                logger.log(Level.SEVERE, "sensor number exceeds " + MAX_SENSORS + ", " + name + " is ignored");
             }
-            sensors.add(propertyValue);
         }
 
         // disk space configuration
@@ -106,10 +212,29 @@ public class Config
 
         // temperature sensors configuration
         serverSensorID = getStringListProperty(logger, properties, "serverSensorID");
+        serverStateSources = getStringListProperty(logger, properties, "serverStateSources");
+        if (serverStateSources == null)
+        {
+            serverStateSources = new String[]{ "hwmon", "proc", "ipmitool" };
+        }
 
         // login parameters
         password = getStringProperty(logger, properties, "password", "");
         loginWaitingTime = getIntProperty(logger, properties, "loginWaitingTime", loginWaitingTime);
+        sessionTimeout = getIntProperty(logger, properties, "sessionTimeout", sessionTimeout);
+
+        // relay mode
+        upstreamServer = getStringProperty(logger, properties, "upstreamServer", upstreamServer);
+        upstreamPort = getIntProperty(logger, properties, "upstreamPort", upstreamPort);
+        upstreamPassword = getStringProperty(logger, properties, "upstreamPassword", upstreamPassword);
+        upstreamFilter = getStringProperty(logger, properties, "upstreamFilter", upstreamFilter);
+
+        // admission control
+        maxConnectionsPerAddress = getIntProperty(logger, properties, "maxConnectionsPerAddress",
+                maxConnectionsPerAddress);
+        maxPendingLogins = getIntProperty(logger, properties, "maxPendingLogins", maxPendingLogins);
+        loginBackoffTime = getIntProperty(logger, properties, "loginBackoffTime", loginBackoffTime);
+        loginBackoffMaxTime = getIntProperty(logger, properties, "loginBackoffMaxTime", loginBackoffMaxTime);
     }
 
     private static String[] getStringListProperty(Logger logger, Properties properties, String propertyName)
@@ -180,11 +305,194 @@ public class Config
         return clientAppPort;
     }
 
+    /**
+     * Port of the HTTP listener for browser dashboards; 0 disables the listener
+     */
+    static int getHttpPort()
+    {
+        return httpPort;
+    }
+
+    static int getMaxHttpConnections()
+    {
+        return maxHttpConnections;
+    }
+
+    /**
+     * Origin of a browser dashboard served by another web server that may access the HTTP
+     * listener; an empty origin allows only the same origin
+     */
+    static String getHttpAllowOrigin()
+    {
+        return httpAllowOrigin;
+    }
+
+    /**
+     * Multicast group of the state broadcast; an empty group disables the broadcast
+     */
+    static String getMulticastGroup()
+    {
+        return multicastGroup.trim();
+    }
+
+    static int getMulticastPort()
+    {
+        return multicastPort;
+    }
+
+    /**
+     * AES key of the state broadcast: 16, 24 or 32 characters
+     */
+    static String getMulticastKey()
+    {
+        return multicastKey;
+    }
+
+    static int getMulticastTtl()
+    {
+        return multicastTtl;
+    }
+
+    static int getMulticastBeaconInterval()
+    {
+        return multicastBeaconInterval;
+    }
+
     public static int getHeartbitInterval()
     {
         return heartbitInterval;
     }
 
+    static int getMetricsInterval()
+    {
+        return metricsInterval;
+    }
+
+    /**
+     * Sampling interval of the server state (sensors and disk usage) in milliseconds
+     */
+    static int getServerStateInterval()
+    {
+        return serverStateInterval;
+    }
+
+    /**
+     * Interval in milliseconds of the JVM health values (heap, GC, threads) within the server
+     * state. These values change with almost every sample, so they do not cause a new server
+     * state by themselves, but are only refreshed with this interval. The cheap counters
+     * (clients, frames, oldest unsent message) are sampled for each new server state
+     */
+    static int getServerHealthInterval()
+    {
+        return serverHealthInterval;
+    }
+
+    /**
+     * Time window in milliseconds in which flapThreshold alarm transitions of a sensor mark it
+     * as flapping
+     */
+    public static int getFlapWindow()
+    {
+        return flapWindow;
+    }
+
+    /**
+     * Number of alarm transitions within the flap window; 0 disables the flap detection
+     */
+    public static int getFlapThreshold()
+    {
+        return flapThreshold;
+    }
+
+    /**
+     * Time in milliseconds without alarm transition after which a sensor is not flapping any more
+     */
+    public static int getFlapQuietPeriod()
+    {
+        return flapQuietPeriod;
+    }
+
+    /**
+     * File of the persisted device states; an empty name disables the persistence
+     */
+    static String getStateFile()
+    {
+        return stateFile;
+    }
+
+    /**
+     * Interval in milliseconds in which changed device states are persisted
+     */
+    static int getStateSaveInterval()
+    {
+        return stateSaveInterval;
+    }
+
+    /**
+     * Number of slots of each ring between the stages of the frame pipeline
+     */
+    public static int getPipelineRingSize()
+    {
+        return Math.max(2, pipelineRingSize);
+    }
+
+    /**
+     * How a stage of the frame pipeline waits for the next frame: SPIN, YIELD or PARK (default)
+     */
+    public static StageRing.WaitStrategy getPipelineWaitStrategy()
+    {
+        for (StageRing.WaitStrategy s : StageRing.WaitStrategy.values())
+        {
+            if (s.toString().equalsIgnoreCase(pipelineWaitStrategy.trim()))
+            {
+                return s;
+            }
+        }
+        return StageRing.WaitStrategy.PARK;
+    }
+
+    /**
+     * Maximum time in milliseconds a log record waits in the file buffer
+     */
+    static int getLogFlushInterval()
+    {
+        return logFlushInterval;
+    }
+
+    /**
+     * Behaviour if the log buffer is full: DROP (default) or BLOCK
+     */
+    static CustomLogger.OverflowPolicy getLogOverflowPolicy()
+    {
+        return "BLOCK".equalsIgnoreCase(logOverflowPolicy.trim()) ?
+                CustomLogger.OverflowPolicy.BLOCK : CustomLogger.OverflowPolicy.DROP;
+    }
+
+    /**
+     * Number of identical consecutive log messages written per flush interval; 0 disables the limit
+     */
+    static int getLogRepeatLimit()
+    {
+        return logRepeatLimit;
+    }
+
+    /**
+     * Size in bytes of a segment file of the binary event log
+     */
+    static int getEventLogSegmentSize()
+    {
+        return eventLogSegmentSize;
+    }
+
+    /**
+     * Number of segment files of the binary event log; 0 disables the event log and the hot-path
+     * events are written into the text log
+     */
+    static int getEventLogSegments()
+    {
+        return eventLogSegments;
+    }
+
     static List<String> getSensors()
     {
         return sensors;
@@ -207,7 +515,15 @@ public class Config
 
     public static String[] getServerSensorID()
     {
-        return serverSensorID;
+        return serverSensorID == null ? new String[0] : serverSensorID;
+    }
+
+    /**
+     * Telemetry sources of the server state in the order of their priority: hwmon, proc, ipmitool
+     */
+    public static String[] getServerStateSources()
+    {
+        return serverStateSources;
     }
 
     public static String getPassword()
@@ -220,4 +536,58 @@ public class Config
         return loginWaitingTime;
     }
 
+    public static int getSessionTimeout()
+    {
+        return sessionTimeout;
+    }
+
+    /**
+     * If an upstream server is given, the server runs in relay mode: the devices are mirrored
+     * from the upstream server instead of the serial port
+     */
+    static boolean isRelayMode()
+    {
+        return !upstreamServer.trim().isEmpty();
+    }
+
+    static String getUpstreamServer()
+    {
+        return upstreamServer.trim();
+    }
+
+    static int getUpstreamPort()
+    {
+        return upstreamPort;
+    }
+
+    static String getUpstreamPassword()
+    {
+        return upstreamPassword;
+    }
+
+    static String getUpstreamFilter()
+    {
+        return upstreamFilter;
+    }
+
+    public static int getMaxConnectionsPerAddress()
+    {
+        return maxConnectionsPerAddress;
+    }
+
+    public static int getMaxPendingLogins()
+    {
+        return maxPendingLogins;
+    }
+
+    public static int getLoginBackoffTime()
+    {
+        return loginBackoffTime;
+    }
+
+    public static int getLoginBackoffMaxTime()
+    {
+        return loginBackoffMaxTime;
+    }
+
 }
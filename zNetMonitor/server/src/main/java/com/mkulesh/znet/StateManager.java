@@ -19,22 +19,77 @@ import com.mkulesh.znet.common.DeviceConfig;
 import com.mkulesh.znet.common.DeviceState;
 import com.mkulesh.znet.common.DeviceState.Warning;
 import com.mkulesh.znet.common.Message;
+import com.mkulesh.znet.common.Snapshot;
+import com.mkulesh.znet.common.SubscriptionFilter;
+import com.mkulesh.znet.eventlog.Event;
+import com.mkulesh.znet.eventlog.EventLog;
 import com.mkulesh.znet.network.ClientAppCommThread;
 import com.mkulesh.znet.network.ClientAppManager;
+import com.mkulesh.znet.network.HttpManager;
+import com.mkulesh.znet.network.MulticastPublisher;
+import com.mkulesh.znet.network.OutboundQueue;
+import com.mkulesh.znet.network.ServerHealth;
 import com.mkulesh.znet.network.ServerState;
+import com.mkulesh.znet.scheduler.Scheduler;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 public class StateManager
 {
     private final ServerState serverState;
-    private final HashMap<Integer, DeviceState> devices = new HashMap<>();
-    private ClientAppManager clientAppManager = null;
+    private volatile HashMap<Integer, DeviceState> devices = new HashMap<>();
+    private final Logger logger;
+    // the managers are set during the start while the stages may already publish
+    private volatile ClientAppManager clientAppManager = null;
+    private volatile HttpManager httpManager = null;
+    private volatile MulticastPublisher multicastPublisher = null;
+
+    // Versions used for session resume: the configuration version identifies the device
+    // configuration, the state version is incremented with each device state change
+    private String configVersion = "";
+    private final AtomicLong stateVersion = new AtomicLong(0);
+    private final ConcurrentHashMap<Integer, Long> deviceVersions = new ConcurrentHashMap<>();
+
+    // Compressed snapshots per subscription filter, valid as long as the state version is unchanged.
+    // A login storm of clients with the same filter builds and compresses the snapshot only once
+    private final static int SNAPSHOT_CACHE_SIZE = 16;
+    private final LinkedHashMap<String, Message> snapshotCache =
+            new LinkedHashMap<String, Message>(SNAPSHOT_CACHE_SIZE, 0.75f, true)
+            {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Message> eldest)
+                {
+                    return size() > SNAPSHOT_CACHE_SIZE;
+                }
+            };
+    private long snapshotVersion = -1;
+    private String snapshotConfigVersion = "";
+
+    // Relay mode: the device configuration and state are mirrored from an upstream server. After
+    // each upstream login, the configuration is collected separately and replaces the devices when
+    // the initial dump is complete: at the end of the snapshot (binary protocol) or with the device
+    // number message (text protocol, the device states follow as changes)
+    private boolean relayMode = false;
+    private int upstreamEpoch = 0;
+    private HashMap<Integer, DeviceState> upstreamDevices = null;
+    private final HashMap<Integer, Long> upstreamVersions = new HashMap<>();
+    private String upstreamConfigVersion = "";
+    private long upstreamStateVersion = 0;
+    private volatile Message upstreamServerState = null;
+    // the last published server state without the health values, sent to the legacy clients
+    private volatile Message legacyServerState = null;
 
     StateManager(Logger logger)
     {
+        this.logger = logger;
         serverState = new ServerState(logger);
     }
 
@@ -43,6 +98,21 @@ public class StateManager
         this.clientAppManager = clientAppManager;
     }
 
+    void setHttpManager(HttpManager httpManager)
+    {
+        this.httpManager = httpManager;
+    }
+
+    void setMulticastPublisher(MulticastPublisher multicastPublisher)
+    {
+        this.multicastPublisher = multicastPublisher;
+    }
+
+    void setRelayMode()
+    {
+        relayMode = true;
+    }
+
     void readConfigurationFile(List<String> sensors) throws Exception
     {
         final String COMMENT = "#";
@@ -70,6 +140,33 @@ public class StateManager
                 throw new Exception("can not sensor line " + Integer.toString(sensorNr) + ": " + e.getMessage());
             }
         }
+        updateConfigVersion();
+    }
+
+    private void updateConfigVersion()
+    {
+        int hash = 0;
+        for (DeviceState d : devices.values())
+        {
+            hash += d.getConfig().toString().hashCode();
+        }
+        configVersion = Integer.toHexString(hash) + "-" + Integer.toHexString(devices.size());
+    }
+
+    public String getConfigVersion()
+    {
+        return configVersion;
+    }
+
+    public long getStateVersion()
+    {
+        return stateVersion.get();
+    }
+
+    public long getDeviceVersion(int id)
+    {
+        final Long version = deviceVersions.get(id);
+        return version == null ? 0 : version;
     }
 
     public String toString()
@@ -93,36 +190,452 @@ public class StateManager
 
     public void sendConfiguration(ClientAppCommThread client)
     {
+        int deviceNumber = 0;
         for (DeviceState d : getDevices().values())
         {
-            client.sendMessage(d.getConfig().getDeviceConfigMsg());
+            if (client.getFilter().matches(d.getConfig()))
+            {
+                client.sendMessage(d.getConfig().getDeviceConfigMsg());
+                deviceNumber++;
+            }
         }
         Message deviceNumberMsg = new Message(Message.Type.DEVICE_NUMBER);
-        deviceNumberMsg.addParameter(Integer.toString(devices.size()));
+        deviceNumberMsg.addParameter(Integer.toString(deviceNumber));
         client.sendMessage(deviceNumberMsg);
     }
 
+    public void sendSession(ClientAppCommThread client, String token, boolean resume)
+    {
+        Message m = new Message(Message.Type.SESSION);
+        m.addParameter(token);
+        m.addParameter(configVersion);
+        m.addParameter(Long.toString(stateVersion.get()));
+        m.addParameter(resume ? Message.SESSION_MODE_RESUME : Message.SESSION_MODE_FULL);
+        client.sendMessage(m);
+    }
+
     public void sendDeviceState(ClientAppCommThread client)
     {
         for (DeviceState d : getDevices().values())
         {
-            client.sendMessage(d.getDeviceStateMsg());
+            if (client.getFilter().matches(d.getConfig()))
+            {
+                final Message m = getDeviceStateMsg(d, client);
+                client.sendMessage(m);
+                m.recycle();
+            }
         }
-        client.sendMessage(serverState.getServerStateMsg());
+        client.sendMessage(getServerStateMsg(client));
+    }
+
+    /**
+     * Sends the device configuration and device state as one compressed SNAPSHOT message,
+     * followed by the server state. Only supported by the binary protocol
+     */
+    public void sendSnapshot(ClientAppCommThread client)
+    {
+        client.sendMessage(getSnapshot(client.getFilter()));
+        client.sendMessage(getServerStateMsg(client));
+    }
+
+    /**
+     * Returns the compressed snapshot of the devices matching the given filter
+     */
+    public Message getSnapshot(SubscriptionFilter filter)
+    {
+        final String key = filter.toString();
+        synchronized (snapshotCache)
+        {
+            final long version = stateVersion.get();
+            if (version != snapshotVersion || !configVersion.equals(snapshotConfigVersion))
+            {
+                snapshotCache.clear();
+                snapshotVersion = version;
+                snapshotConfigVersion = configVersion;
+            }
+            Message snapshot = snapshotCache.get(key);
+            if (snapshot == null)
+            {
+                final ArrayList<Message> messages = new ArrayList<>();
+                final ArrayList<Message> states = new ArrayList<>();
+                for (DeviceState d : getDevices().values())
+                {
+                    if (filter.matches(d.getConfig()))
+                    {
+                        messages.add(d.getConfig().getDeviceConfigMsg());
+                        states.add(getDeviceStateMsg(d));
+                    }
+                }
+                final Message deviceNumberMsg = new Message(Message.Type.DEVICE_NUMBER);
+                deviceNumberMsg.addParameter(Integer.toString(states.size()));
+                messages.add(deviceNumberMsg);
+                messages.addAll(states);
+                snapshot = Snapshot.createMessage(messages);
+                for (Message m : states)
+                {
+                    m.recycle();
+                }
+                snapshotCache.put(key, snapshot);
+            }
+            return snapshot;
+        }
+    }
+
+    /**
+     * Sends the state of the devices changed after the given state version
+     */
+    public void sendDeviceStateChanges(ClientAppCommThread client, long knownStateVersion)
+    {
+        for (DeviceState d : getDevices().values())
+        {
+            final Long version = deviceVersions.get(d.getId());
+            if (version != null && version > knownStateVersion && client.getFilter().matches(d.getConfig()))
+            {
+                final Message m = getDeviceStateMsg(d, client);
+                client.sendMessage(m);
+                m.recycle();
+            }
+        }
+    }
+
+    Message getDeviceStateMsg(DeviceState d)
+    {
+        return getDeviceStateMsg(d, getDeviceVersion(d.getId()), 0);
+    }
+
+    /**
+     * A legacy client only accepts the DEVICE_STATE message without the optional parameters
+     */
+    private Message getDeviceStateMsg(DeviceState d, ClientAppCommThread client)
+    {
+        return client.isExtended() ? getDeviceStateMsg(d) : d.getDeviceStateMsg();
+    }
+
+    private Message getDeviceStateMsg(DeviceState d, long version, long receiveTime)
+    {
+        final Message m = d.getDeviceStateMsg();
+        m.addParameter(version);
+        if (receiveTime > 0 || d.getFlapCount() > 0)
+        {
+            m.addParameter(receiveTime);
+        }
+        if (d.getFlapCount() > 0)
+        {
+            m.addParameter(d.getFlapCount());
+        }
+        return m;
+    }
+
+    /**
+     * In relay mode, the server state of the upstream server is sent to the clients
+     */
+    public Message getServerStateMsg()
+    {
+        return relayMode ? upstreamServerState : serverState.getServerStateMsg();
+    }
+
+    private Message getServerStateMsg(ClientAppCommThread client)
+    {
+        return client.isExtended() ? getServerStateMsg() : legacyServerState;
     }
 
     public void sendDeviceState(DeviceState d)
     {
+        sendDeviceState(d, 0);
+    }
+
+    /**
+     * Sends a state change caused by a sensor frame received at the given time (System.nanoTime);
+     * the receive time is converted into the wall-clock time and added to the message, so that
+     * the clients can measure the end-to-end latency
+     */
+    public void sendDeviceState(DeviceState d, long receiveTime)
+    {
+        sendDeviceState(d, nextDeviceVersion(d), receiveTime, false);
+    }
+
+    /**
+     * Assigns a new state version to the changed device and returns it
+     */
+    public long nextDeviceVersion(DeviceState d)
+    {
+        final long version = stateVersion.incrementAndGet();
+        deviceVersions.put(d.getId(), version);
+        return version;
+    }
+
+    /**
+     * Sends a state change that already has its version, see nextDeviceVersion()
+     *
+     * @param alarmChanged whether the alarm flag differs from the previously sent state
+     */
+    public void sendDeviceState(DeviceState d, long version, long receiveTime, boolean alarmChanged)
+    {
+        publishDeviceState(d, version, receiveTime == 0 ? 0 :
+                System.currentTimeMillis() - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - receiveTime),
+                alarmChanged);
+    }
+
+    /**
+     * @param receiveTime the time the frame was received in milliseconds since the epoch, or 0
+     */
+    private void publishDeviceState(DeviceState d, long version, long receiveTime, boolean alarmChanged)
+    {
+        final ClientAppCommThread[] subscribers = clientAppManager == null ?
+                null : clientAppManager.getSubscribers(d.getId());
+        int warnings = 0;
+        for (int i = 0; i < d.getWarnings().size(); i++)
+        {
+            warnings |= 1 << d.getWarnings().get(i).ordinal();
+        }
+        if (!EventLog.record(Event.STATE_CHANGED, d.getId(), d.isAlarm() ? 1 : 0, warnings, version,
+                subscribers == null ? 0 : subscribers.length))
+        {
+            logger.info("new state: " + d.toString() + ", version " + version);
+        }
+
+        // one pooled message is shared by all subscribers; each client queue holds a reference.
+        // The legacy clients share a second message without the optional parameters. A state
+        // change of the alarm flag overtakes the pending messages of the clients
+        if ((subscribers != null && subscribers.length > 0) || multicastPublisher != null)
+        {
+            final Message m = getDeviceStateMsg(d, version, receiveTime);
+            Message legacy = null;
+            if (subscribers != null)
+            {
+                final OutboundQueue.Priority priority = alarmChanged ?
+                        OutboundQueue.Priority.ALARM : OutboundQueue.Priority.STATE;
+                for (ClientAppCommThread client : subscribers)
+                {
+                    if (client.isExtended())
+                    {
+                        client.sendMessage(m, priority);
+                        continue;
+                    }
+                    if (legacy == null)
+                    {
+                        legacy = d.getDeviceStateMsg();
+                    }
+                    client.sendMessage(legacy, priority);
+                }
+            }
+            if (multicastPublisher != null)
+            {
+                multicastPublisher.publishDeviceState(m);
+            }
+            m.recycle();
+            if (legacy != null)
+            {
+                legacy.recycle();
+            }
+        }
+        if (httpManager != null)
+        {
+            httpManager.publishDeviceState(d, version);
+        }
+    }
+
+    /**
+     * Called in relay mode for each message received from the upstream server. The state
+     * versions of the upstream server are taken over, so that the clients of the relay can
+     * resume their sessions as long as the upstream connection persists
+     */
+    public void handleUpstreamMessage(Message m) throws Exception
+    {
+        if (m.getType() == Message.Type.SNAPSHOT)
+        {
+            for (Message inner : Snapshot.getMessages(m))
+            {
+                if (inner.getType() != Message.Type.DEVICE_NUMBER)
+                {
+                    handleUpstreamMessage(inner);
+                }
+                inner.recycle();
+            }
+            if (upstreamDevices != null)
+            {
+                completeUpstreamDump();
+            }
+            return;
+        }
+        switch (m.getType())
+        {
+        case SESSION:
+            upstreamDevices = new HashMap<>();
+            upstreamVersions.clear();
+            upstreamConfigVersion = m.getParameter(Message.SESSION_PAR_CONFIG_VERSION);
+            upstreamStateVersion = parseLong(m.getParameter(Message.SESSION_PAR_STATE_VERSION));
+            break;
+        case DEVICE_CONFIG:
+            if (upstreamDevices != null)
+            {
+                try
+                {
+                    final DeviceState s = new DeviceState(new DeviceConfig(m));
+                    upstreamDevices.put(s.getId(), s);
+                }
+                catch (Exception e)
+                {
+                    logger.severe("invalid upstream device configuration: " + e.getMessage());
+                }
+            }
+            break;
+        case DEVICE_NUMBER:
+            if (upstreamDevices != null)
+            {
+                completeUpstreamDump();
+            }
+            break;
+        case DEVICE_STATE:
+            handleUpstreamDeviceState(m);
+            break;
+        case SERVER_STATE:
+            // the cached state is given out without reference counting: its reference is never
+            // dropped, so that it does not return to the message pool
+            final Message previous = upstreamServerState;
+            upstreamServerState = m.retain();
+            if (previous == null || !previous.encode().equals(m.encode()))
+            {
+                publishServerState(m, ServerHealth.withoutHealth(m));
+            }
+            break;
+        default:
+            break;
+        }
+    }
+
+    private void handleUpstreamDeviceState(Message m)
+    {
+        final int id = m.getInt(0);
+        final long version = getLong(m, Message.STATE_PAR_VERSION);
+        if (upstreamDevices != null)
+        {
+            final DeviceState d = upstreamDevices.get(id);
+            if (d != null)
+            {
+                d.updateFromMessage(m);
+                upstreamVersions.put(id, version);
+            }
+            return;
+        }
+        final DeviceState d = devices.get(id);
+        if (d == null)
+        {
+            logger.warning("upstream device #" + id + " is not configured");
+            return;
+        }
+        final boolean wasAlarm = d.isAlarm();
+        d.updateFromMessage(m);
+        deviceVersions.put(id, version);
+        if (stateVersion.get() < version)
+        {
+            stateVersion.set(version);
+        }
+        // the receive time of the upstream server is kept, so that the latency covers the relay
+        publishDeviceState(d, version, getLong(m, Message.STATE_PAR_RECEIVE_TIME), wasAlarm != d.isAlarm());
+    }
+
+    /**
+     * The mirrored configuration replaces the devices. The configuration version includes the
+     * number of the upstream session, so that a client can not resume a session across
+     * an upstream reconnection
+     */
+    private void completeUpstreamDump()
+    {
+        long maxVersion = upstreamStateVersion;
+        for (Long v : upstreamVersions.values())
+        {
+            maxVersion = Math.max(maxVersion, v);
+        }
+        deviceVersions.clear();
+        deviceVersions.putAll(upstreamVersions);
+        stateVersion.set(maxVersion);
+        upstreamEpoch++;
+        configVersion = upstreamConfigVersion + "." + upstreamEpoch;
+        devices = upstreamDevices;
+        upstreamDevices = null;
+        logger.info("mirrored upstream configuration: " + devices.size() + " device(s), version " + configVersion);
         if (clientAppManager != null)
         {
-            for (ClientAppCommThread client : clientAppManager.getClients().values())
+            clientAppManager.onConfigurationChanged();
+        }
+    }
+
+    /**
+     * Called in relay mode if the upstream connection is lost: all mirrored devices are marked as
+     * not ready until the upstream connection is re-established
+     */
+    public void onUpstreamDisconnected()
+    {
+        upstreamDevices = null;
+        for (DeviceState d : getDevices().values())
+        {
+            if (d.setWarning(Warning.NOT_READY, true))
+            {
+                sendDeviceState(d);
+            }
+        }
+    }
+
+    private static long parseLong(String value)
+    {
+        try
+        {
+            return Long.parseLong(value);
+        }
+        catch (NumberFormatException e)
+        {
+            return 0;
+        }
+    }
+
+    /**
+     * Returns an optional numerical parameter, or 0 if it is not given or invalid
+     */
+    private static long getLong(Message m, int i)
+    {
+        try
+        {
+            return m.getLong(i, 0);
+        }
+        catch (NumberFormatException e)
+        {
+            return 0;
+        }
+    }
+
+    /**
+     * Restores the persisted states of the configured devices before the gateway is connected:
+     * the devices are marked as not ready, a flapping sensor is detected again. Returns the
+     * restored state version
+     */
+    long restoreDeviceStates(List<Message> states)
+    {
+        long maxVersion = stateVersion.get();
+        for (Message m : states)
+        {
+            final DeviceState d = m.getType() == Message.Type.DEVICE_STATE ? devices.get(m.getInt(0)) : null;
+            if (d == null)
             {
-                client.sendMessage(d.getDeviceStateMsg());
+                continue;
             }
+            d.updateFromMessage(m);
+            d.setFlapCount(0);
+            d.setWarning(Warning.FLAPPING, false);
+            d.setWarning(Warning.NOT_READY, true);
+            final long version = getLong(m, Message.STATE_PAR_VERSION);
+            deviceVersions.put(d.getId(), version);
+            maxVersion = Math.max(maxVersion, version);
         }
+        stateVersion.set(maxVersion);
+        return maxVersion;
     }
 
-    public void setReady(boolean ready)
+    /**
+     * Only called at the start: later, the state of the gateway connection is applied by the
+     * state stage of the message handler
+     */
+    private void setReady(boolean ready)
     {
         for (DeviceState d : getDevices().values())
         {
@@ -131,6 +644,31 @@ public class StateManager
         }
     }
 
+    /**
+     * Starts the background sampling of the server state; each change is pushed to all clients
+     */
+    void startServerStateSampler(Scheduler scheduler)
+    {
+        serverState.start(scheduler, Config.getServerStateInterval(), Config.getServerHealthInterval(),
+                new ServerHealth(clientAppManager), this::publishServerState);
+    }
+
+    /**
+     * @param legacy the server state without the health values
+     */
+    private void publishServerState(Message m, Message legacy)
+    {
+        legacyServerState = legacy;
+        if (clientAppManager != null)
+        {
+            clientAppManager.sendToAll(m, legacyServerState);
+        }
+        if (httpManager != null)
+        {
+            httpManager.publishServerState(m);
+        }
+    }
+
     void start()
     {
         setReady(false);
@@ -0,0 +1,117 @@
+/*
+ * stm32WindowSensor: RF window sensors: STM32L + RFM69 + Android
+ *
+ * Copyright (C) 2019. Mikhail Kulesh
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details. You should have received a copy of the GNU General
+ * Public License along with this program.
+ */
+
+package com.mkulesh.znet;
+
+import com.mkulesh.znet.common.DeviceState;
+import com.mkulesh.znet.common.Message;
+import com.mkulesh.znet.scheduler.Scheduler;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Persisted device states: the last state of each device is written as a text-encoded DEVICE_STATE
+ * message per line whenever the state version has changed, and restored at the next start, so that
+ * the clients connected before the gateway get the last known state instead of an empty one.
+ */
+class StateStore
+{
+    private final Logger logger;
+    private final StateManager stateManager;
+    private final File file;
+    private long savedVersion = -1;
+
+    StateStore(Logger logger, StateManager stateManager, String fileName)
+    {
+        this.logger = logger;
+        this.stateManager = stateManager;
+        this.file = new File(fileName);
+    }
+
+    /**
+     * Restores the persisted states of the configured devices
+     */
+    void restore()
+    {
+        if (!file.exists())
+        {
+            return;
+        }
+        try
+        {
+            final List<Message> states = new ArrayList<>();
+            for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8))
+            {
+                if (!line.trim().isEmpty())
+                {
+                    states.add(new Message(line));
+                }
+            }
+            savedVersion = stateManager.restoreDeviceStates(states);
+            logger.info("restored " + states.size() + " device state(s) from " + file.getName()
+                    + ", state version " + savedVersion);
+        }
+        catch (Exception e)
+        {
+            logger.log(Level.SEVERE, "can not restore device states from " + file.getName(), e);
+        }
+    }
+
+    /**
+     * Saves the states periodically on a scheduler worker thread and at the shutdown
+     */
+    void start(Scheduler scheduler, int interval)
+    {
+        scheduler.scheduleAtFixedRate(this::save, interval, interval, true);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::save, "state store shutdown"));
+    }
+
+    private synchronized void save()
+    {
+        final long version = stateManager.getStateVersion();
+        if (version == savedVersion)
+        {
+            return;
+        }
+        final StringBuilder data = new StringBuilder();
+        for (DeviceState d : stateManager.getDevices().values())
+        {
+            final Message m = stateManager.getDeviceStateMsg(d);
+            data.append(m.encode()).append('\n');
+            m.recycle();
+        }
+        // the file is replaced at once, so that a crash while writing leaves the previous states
+        final File tmp = new File(file.getPath() + ".tmp");
+        try
+        {
+            Files.write(tmp.toPath(), data.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            savedVersion = version;
+        }
+        catch (IOException e)
+        {
+            logger.log(Level.SEVERE, "can not save device states into " + file.getName(), e);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * stm32WindowSensor: RF window sensors: STM32L + RFM69 + Android
+ *
+ * Copyright (C) 2019. Mikhail Kulesh
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details. You should have received a copy of the GNU General
+ * Public License along with this program.
+ */
+
+package com.mkulesh.znet.eventlog;
+
+import com.mkulesh.znet.common.DeviceState;
+import com.mkulesh.znet.common.Message;
+
+/**
+ * Event types of the binary event log. The id is stored in the log file and shall never be
+ * changed or reused; the pattern is only used by the decoder, where {n} is replaced by the
+ * n-th argument.
+ */
+public enum Event
+{
+    /**
+     * Sensor frame from the gateway: sender, signal strength, state, request id, battery, packet[4]
+     */
+    FRAME(1, "frame GW;3;{0};{1};{2};{3};{4};{5}."),
+
+    /**
+     * Device state change: device id, alarm (0/1), warnings mask, state version, subscribers
+     */
+    STATE_CHANGED(2, "device {0}: new state alarm={1}, warnings={2}, version {3}, {4} subscriber(s)")
+    {
+        @Override
+        String formatArgument(int index, long value)
+        {
+            switch (index)
+            {
+            case 1:
+                return Boolean.toString(value != 0);
+            case 2:
+                return DeviceState.getWarningsString((int) value);
+            default:
+                return super.formatArgument(index, value);
+            }
+        }
+    },
+
+    /**
+     * Message written to a client: client id, message type code, size in bytes, queue time in us
+     */
+    MESSAGE_SENT(3, "client {0}: sent {1}, {2} bytes, queue time {3} us")
+    {
+        @Override
+        String formatArgument(int index, long value)
+        {
+            return index == 1 ? formatType(value) : super.formatArgument(index, value);
+        }
+    },
+
+    /**
+     * Message received from a client: client id, message type code
+     */
+    MESSAGE_RECEIVED(4, "client {0}: received {1}")
+    {
+        @Override
+        String formatArgument(int index, long value)
+        {
+            return index == 1 ? formatType(value) : super.formatArgument(index, value);
+        }
+    };
+
+    private final static Event[] BY_ID;
+
+    static
+    {
+        int maxId = 0;
+        for (Event e : values())
+        {
+            maxId = Math.max(maxId, e.id);
+        }
+        BY_ID = new Event[maxId + 1];
+        for (Event e : values())
+        {
+            BY_ID[e.id] = e;
+        }
+    }
+
+    private final short id;
+    private final String pattern;
+
+    Event(int id, String pattern)
+    {
+        this.id = (short) id;
+        this.pattern = pattern;
+    }
+
+    short getId()
+    {
+        return id;
+    }
+
+    /**
+     * Returns the event with the given id or null if the id is unknown
+     */
+    static Event fromId(int id)
+    {
+        return id > 0 && id < BY_ID.length ? BY_ID[id] : null;
+    }
+
+    /**
+     * Formats the given arguments using the pattern of this event
+     */
+    String format(long[] args, int count)
+    {
+        final StringBuilder sb = new StringBuilder();
+        int i = 0;
+        while (i < pattern.length())
+        {
+            final char c = pattern.charAt(i);
+            final int end = pattern.indexOf('}', i);
+            if (c == '{' && end > i + 1)
+            {
+                final int index = Integer.parseInt(pattern.substring(i + 1, end));
+                sb.append(index < count ? formatArgument(index, args[index]) : "?");
+                i = end + 1;
+            }
+            else
+            {
+                sb.append(c);
+                i++;
+            }
+        }
+        return sb.toString();
+    }
+
+    String formatArgument(int index, long value)
+    {
+        return Long.toString(value);
+    }
+
+    private static String formatType(long code)
+    {
+        final Message.Type type = Message.Type.fromCode((int) code);
+        return type == null ? "type " + code : type.toString();
+    }
+}
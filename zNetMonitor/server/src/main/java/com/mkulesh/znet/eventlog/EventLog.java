@@ -0,0 +1,299 @@
+/*
+ * stm32WindowSensor: RF window sensors: STM32L + RFM69 + Android
+ *
+ * Copyright (C) 2019. Mikhail Kulesh
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details. You should have received a copy of the GNU General
+ * Public License along with this program.
+ */
+
+package com.mkulesh.znet.eventlog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Structured binary event log of the hot paths. An event is stored as its type id, the time and
+ * up to MAX_ARGUMENTS primitive arguments; no string is built when an event is recorded. The
+ * log consists of a fixed number of memory-mapped segment files that are reused in a ring: the
+ * recording threads claim space in the current segment with a single atomic add and write the
+ * record directly into the mapped file, so the records survive a crash of the server. The files
+ * are converted into text by the EventLogDecoder.
+ *
+ * Segment file layout (big endian): magic, version, sequence number of the segment, creation
+ * time in microseconds since the epoch, reserved; followed by the records: event id (short),
+ * number of arguments (short), time in microseconds since the epoch (long), arguments (long).
+ * The number of arguments is written as soon as the space is claimed and the event id last: a
+ * record with id 0 but a number of arguments is not yet complete and is skipped by the decoder,
+ * while a record with both 0 marks the end of the used part of a segment.
+ */
+public final class EventLog
+{
+    final static int MAGIC = 0x5A4E4556; // "ZNEV"
+    final static int VERSION = 1;
+    final static int FILE_HEADER_SIZE = 32;
+    final static int RECORD_HEADER_SIZE = 12;
+    public final static int MAX_ARGUMENTS = 8;
+
+    private static class Segment
+    {
+        final MappedByteBuffer buffer;
+        final long sequence;
+        final long baseNanos;
+        final long baseMicros;
+        final AtomicInteger position = new AtomicInteger(FILE_HEADER_SIZE);
+
+        Segment(MappedByteBuffer buffer, long sequence)
+        {
+            this.buffer = buffer;
+            this.sequence = sequence;
+            this.baseNanos = System.nanoTime();
+            this.baseMicros = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putLong(8, sequence);
+            buffer.putLong(16, baseMicros);
+        }
+
+        /**
+         * Claims a record with the given number of arguments and writes this number, so that the
+         * record can be skipped while it is not complete. Returns the offset of the claimed record
+         * or -1 if the segment is full
+         */
+        int claim(int count)
+        {
+            final int size = RECORD_HEADER_SIZE + 8 * count;
+            final int offset = position.getAndAdd(size);
+            if (offset + size > buffer.capacity())
+            {
+                return -1;
+            }
+            buffer.putShort(offset + 2, (short) count);
+            return offset;
+        }
+
+        long getTime()
+        {
+            return baseMicros + (System.nanoTime() - baseNanos) / 1000;
+        }
+    }
+
+    private static Logger logger = null;
+    private static String filePattern = null;
+    private static int segmentSize = 0;
+    private static int segments = 0;
+    private static volatile Segment current = null;
+
+    private EventLog()
+    {
+        // static event log only
+    }
+
+    /**
+     * Opens the event log. Recording continues after the newest existing segment.
+     *
+     * @param filePattern the segment file name, where %d is replaced by the segment index
+     * @param segmentSize the size of a segment file in bytes
+     * @param segments    the number of segment files
+     */
+    public static synchronized void open(Logger logger, String filePattern, int segmentSize, int segments)
+    {
+        EventLog.logger = logger;
+        EventLog.filePattern = filePattern;
+        EventLog.segmentSize = Math.max(FILE_HEADER_SIZE + RECORD_HEADER_SIZE + 8 * MAX_ARGUMENTS, segmentSize);
+        EventLog.segments = segments;
+        long sequence = 0;
+        for (int i = 0; i < segments; i++)
+        {
+            sequence = Math.max(sequence, readSequence(new File(getFileName(i))) + 1);
+        }
+        current = openSegment(sequence);
+        if (current != null)
+        {
+            logger.info("event log " + String.format(filePattern, sequence % segments) + " opened, "
+                    + segments + " segment(s) of " + EventLog.segmentSize + " bytes");
+        }
+    }
+
+    public static boolean isEnabled()
+    {
+        return current != null;
+    }
+
+    /**
+     * Each record method returns false if the event log is not enabled, so that the caller can
+     * log the event as text instead
+     */
+    public static boolean record(Event event, long a0)
+    {
+        return record(event, 1, a0, 0, 0, 0, 0);
+    }
+
+    public static boolean record(Event event, long a0, long a1)
+    {
+        return record(event, 2, a0, a1, 0, 0, 0);
+    }
+
+    public static boolean record(Event event, long a0, long a1, long a2)
+    {
+        return record(event, 3, a0, a1, a2, 0, 0);
+    }
+
+    public static boolean record(Event event, long a0, long a1, long a2, long a3)
+    {
+        return record(event, 4, a0, a1, a2, a3, 0);
+    }
+
+    public static boolean record(Event event, long a0, long a1, long a2, long a3, long a4)
+    {
+        return record(event, 5, a0, a1, a2, a3, a4);
+    }
+
+    /**
+     * Records an event with the first count values of the given array as arguments
+     */
+    public static boolean record(Event event, long[] args, int count)
+    {
+        final int n = Math.min(count, MAX_ARGUMENTS);
+        while (true)
+        {
+            final Segment s = current;
+            if (s == null)
+            {
+                return false;
+            }
+            final int offset = s.claim(n);
+            if (offset < 0)
+            {
+                rollOver(s);
+                continue;
+            }
+            for (int i = 0; i < n; i++)
+            {
+                s.buffer.putLong(offset + RECORD_HEADER_SIZE + 8 * i, args[i]);
+            }
+            writeHeader(s, offset, event);
+            return true;
+        }
+    }
+
+    @SuppressWarnings("fallthrough")
+    private static boolean record(Event event, int count, long a0, long a1, long a2, long a3, long a4)
+    {
+        while (true)
+        {
+            final Segment s = current;
+            if (s == null)
+            {
+                return false;
+            }
+            final int offset = s.claim(count);
+            if (offset < 0)
+            {
+                rollOver(s);
+                continue;
+            }
+            final ByteBuffer b = s.buffer;
+            final int p = offset + RECORD_HEADER_SIZE;
+            switch (count)
+            {
+            case 5:
+                b.putLong(p + 32, a4);
+                // fall through
+            case 4:
+                b.putLong(p + 24, a3);
+                // fall through
+            case 3:
+                b.putLong(p + 16, a2);
+                // fall through
+            case 2:
+                b.putLong(p + 8, a1);
+                // fall through
+            default:
+                b.putLong(p, a0);
+            }
+            writeHeader(s, offset, event);
+            return true;
+        }
+    }
+
+    /**
+     * The event id is written last: a record with a non-zero id is complete
+     */
+    private static void writeHeader(Segment s, int offset, Event event)
+    {
+        s.buffer.putLong(offset + 4, s.getTime());
+        s.buffer.putShort(offset, event.getId());
+    }
+
+    /**
+     * Called if the given segment is full: the next segment in the ring is opened, unless
+     * another thread has already done it
+     */
+    private static synchronized void rollOver(Segment full)
+    {
+        if (current == full)
+        {
+            current = openSegment(full.sequence + 1);
+        }
+    }
+
+    private static String getFileName(int index)
+    {
+        return String.format(filePattern, index);
+    }
+
+    private static Segment openSegment(long sequence)
+    {
+        final String name = getFileName((int) (sequence % segments));
+        try (RandomAccessFile file = new RandomAccessFile(name, "rw"))
+        {
+            // the previous content of a reused segment is discarded
+            file.setLength(0);
+            file.setLength(segmentSize);
+            return new Segment(file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize), sequence);
+        }
+        catch (IOException e)
+        {
+            logger.log(Level.SEVERE, "can not open event log " + name + ", event log is disabled", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the sequence number of the given segment file, or -1 if it is not a valid segment
+     */
+    static long readSequence(File f)
+    {
+        if (!f.isFile() || f.length() < FILE_HEADER_SIZE)
+        {
+            return -1;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(f, "r"))
+        {
+            if (file.readInt() != MAGIC || file.readInt() != VERSION)
+            {
+                return -1;
+            }
+            return file.readLong();
+        }
+        catch (IOException e)
+        {
+            return -1;
+        }
+    }
+}
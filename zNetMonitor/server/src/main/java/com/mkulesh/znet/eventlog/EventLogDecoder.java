@@ -0,0 +1,211 @@
+/*
+ * stm32WindowSensor: RF window sensors: STM32L + RFM69 + Android
+ *
+ * Copyright (C) 2019. Mikhail Kulesh
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details. You should have received a copy of the GNU General
+ * Public License along with this program.
+ */
+
+package com.mkulesh.znet.eventlog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.Locale;
+
+/**
+ * Command line decoder of the binary event log: prints the events of the given segment files in
+ * chronological order, one line per event. Without file arguments, all segment files
+ * znet_events_*.bin of the current directory are decoded.
+ *
+ * Usage: java -cp znet-server.jar com.mkulesh.znet.eventlog.EventLogDecoder
+ * [--event NAME]... [file]...
+ */
+public class EventLogDecoder
+{
+    private final static String DEFAULT_PREFIX = "znet_events_";
+    private final static String DEFAULT_SUFFIX = ".bin";
+
+    private static class SegmentFile
+    {
+        final File file;
+        final long sequence;
+
+        SegmentFile(File file, long sequence)
+        {
+            this.file = file;
+            this.sequence = sequence;
+        }
+    }
+
+    private final SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd_HH:mm:ss_SSS");
+    private final EnumSet<Event> events;
+    private final PrintStream out;
+    private final long[] args = new long[EventLog.MAX_ARGUMENTS];
+
+    EventLogDecoder(EnumSet<Event> events, PrintStream out)
+    {
+        this.events = events;
+        this.out = out;
+    }
+
+    public static void main(String[] argv)
+    {
+        final EnumSet<Event> events = EnumSet.noneOf(Event.class);
+        final ArrayList<File> files = new ArrayList<>();
+        for (int i = 0; i < argv.length; i++)
+        {
+            if ("--event".equals(argv[i]) && i + 1 < argv.length)
+            {
+                try
+                {
+                    events.add(Event.valueOf(argv[++i].toUpperCase(Locale.ENGLISH)));
+                }
+                catch (IllegalArgumentException e)
+                {
+                    System.err.println("unknown event " + argv[i] + ", known events: "
+                            + EnumSet.allOf(Event.class));
+                    System.exit(1);
+                }
+            }
+            else if (argv[i].startsWith("--"))
+            {
+                System.err.println("usage: EventLogDecoder [--event NAME]... [file]...");
+                System.exit(1);
+            }
+            else
+            {
+                files.add(new File(argv[i]));
+            }
+        }
+        if (files.isEmpty())
+        {
+            final File[] found = new File(".").listFiles();
+            if (found != null)
+            {
+                for (File f : found)
+                {
+                    if (f.getName().startsWith(DEFAULT_PREFIX) && f.getName().endsWith(DEFAULT_SUFFIX))
+                    {
+                        files.add(f);
+                    }
+                }
+            }
+        }
+        final EventLogDecoder decoder = new EventLogDecoder(
+                events.isEmpty() ? EnumSet.allOf(Event.class) : events, System.out);
+        decoder.decode(files);
+    }
+
+    /**
+     * Decodes the given segment files ordered by their sequence numbers
+     */
+    void decode(ArrayList<File> files)
+    {
+        final ArrayList<SegmentFile> segments = new ArrayList<>();
+        for (File f : files)
+        {
+            final long sequence = EventLog.readSequence(f);
+            if (sequence < 0)
+            {
+                System.err.println(f.getPath() + ": not an event log segment");
+                continue;
+            }
+            segments.add(new SegmentFile(f, sequence));
+        }
+        Collections.sort(segments, new Comparator<SegmentFile>()
+        {
+            @Override
+            public int compare(SegmentFile a, SegmentFile b)
+            {
+                return Long.compare(a.sequence, b.sequence);
+            }
+        });
+        for (SegmentFile s : segments)
+        {
+            try
+            {
+                decode(s.file);
+            }
+            catch (IOException e)
+            {
+                System.err.println(s.file.getPath() + ": " + e.getLocalizedMessage());
+            }
+        }
+    }
+
+    private void decode(File f) throws IOException
+    {
+        final ByteBuffer b;
+        try (RandomAccessFile file = new RandomAccessFile(f, "r"))
+        {
+            b = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        }
+        int offset = EventLog.FILE_HEADER_SIZE;
+        int incomplete = 0;
+        while (offset + EventLog.RECORD_HEADER_SIZE <= b.capacity())
+        {
+            final int id = b.getShort(offset);
+            final int count = b.getShort(offset + 2);
+            if ((id == 0 && count == 0) || count < 0 || count > EventLog.MAX_ARGUMENTS
+                    || offset + EventLog.RECORD_HEADER_SIZE + 8 * count > b.capacity())
+            {
+                break;
+            }
+            final long time = b.getLong(offset + 4);
+            for (int i = 0; i < count; i++)
+            {
+                args[i] = b.getLong(offset + EventLog.RECORD_HEADER_SIZE + 8 * i);
+            }
+            offset += EventLog.RECORD_HEADER_SIZE + 8 * count;
+            if (id == 0)
+            {
+                // claimed by a writer, but not yet complete: the later records may be complete
+                incomplete++;
+                continue;
+            }
+
+            final Event event = Event.fromId(id);
+            if (event != null && !events.contains(event))
+            {
+                continue;
+            }
+            final StringBuilder line = new StringBuilder();
+            line.append(timeFormat.format(new Date(time / 1000)));
+            line.append(String.format(Locale.US, ".%03d ", time % 1000));
+            if (event == null)
+            {
+                line.append("unknown event ").append(id);
+                for (int i = 0; i < count; i++)
+                {
+                    line.append(' ').append(args[i]);
+                }
+            }
+            else
+            {
+                line.append(event.format(args, count));
+            }
+            out.println(line.toString());
+        }
+        if (incomplete > 0)
+        {
+            System.err.println(f.getPath() + ": " + incomplete + " incomplete record(s) skipped");
+        }
+    }
+}
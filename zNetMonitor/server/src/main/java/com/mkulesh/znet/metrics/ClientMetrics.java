@@ -0,0 +1,117 @@
+/*
+ * stm32WindowSensor: RF window sensors: STM32L + RFM69 + Android
+ *
+ * Copyright (C) 2019. Mikhail Kulesh
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details. You should have received a copy of the GNU General
+ * Public License along with this program.
+ */
+
+package com.mkulesh.znet.metrics;
+
+import java.util.Locale;
+import java.util.function.IntSupplier;
+
+/**
+ * Metrics of a single client connection. The values are only updated from the client thread, the
+ * queue depth is read from the outbound queue of the client
+ */
+public class ClientMetrics implements ClientMetricsMBean
+{
+    private final String name;
+    private final IntSupplier queueDepth;
+    private volatile int maxQueueDepth = 0;
+    private volatile long messages = 0;
+    private volatile long bytes = 0;
+    private volatile long writeTime = 0;
+    private volatile long maxWriteTime = 0;
+
+    public ClientMetrics(String name, IntSupplier queueDepth)
+    {
+        this.name = name;
+        this.queueDepth = queueDepth;
+    }
+
+    String getName()
+    {
+        return name;
+    }
+
+    /**
+     * Called from the client thread when a message was taken from the queue
+     */
+    public void onMessageTaken()
+    {
+        // the message taken is counted as well
+        final int depth = queueDepth.getAsInt() + 1;
+        if (depth > maxQueueDepth)
+        {
+            maxQueueDepth = depth;
+        }
+        Metrics.CLIENT_QUEUE_DEPTH.record(depth);
+    }
+
+    /**
+     * Called from the client thread when a message was written; the write time is given in microseconds
+     */
+    public void onMessageWritten(int size, long time)
+    {
+        messages++;
+        bytes += size;
+        writeTime += time;
+        if (time > maxWriteTime)
+        {
+            maxWriteTime = time;
+        }
+        Metrics.CLIENT_WRITE_TIME.record(time);
+    }
+
+    @Override
+    public int getQueueDepth()
+    {
+        return queueDepth.getAsInt();
+    }
+
+    @Override
+    public int getMaxQueueDepth()
+    {
+        return maxQueueDepth;
+    }
+
+    @Override
+    public long getMessages()
+    {
+        return messages;
+    }
+
+    @Override
+    public long getBytes()
+    {
+        return bytes;
+    }
+
+    @Override
+    public double getMeanWriteTime()
+    {
+        final long n = messages;
+        return n == 0 ? 0 : (double) writeTime / n;
+    }
+
+    @Override
+    public long getMaxWriteTime()
+    {
+        return maxWriteTime;
+    }
+
+    public String toString()
+    {
+        return String.format(Locale.US, "queue=%d (max %d), messages=%d, bytes=%d, write time [us] mean=%.1f, max=%d",
+                getQueueDepth(), maxQueueDepth, messages, bytes, getMeanWriteTime(), maxWriteTime);
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * stm32WindowSensor: RF window sensors: STM32L + RFM69 + Android
+ *
+ * Copyright (C) 2019. Mikhail Kulesh
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details. You should have received a copy of the GNU General
+ * Public License along with this program.
+ */
+
+package com.mkulesh.znet.metrics;
+
+/**
+ * JMX view of the metrics of a single client connection
+ */
+public interface ClientMetricsMBean
+{
+    int getQueueDepth();
+
+    int getMaxQueueDepth();
+
+    long getMessages();
+
+    long getBytes();
+
+    double getMeanWriteTime();
+
+    long getMaxWriteTime();
+}
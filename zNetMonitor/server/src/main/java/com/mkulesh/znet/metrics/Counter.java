@@ -0,0 +1,61 @@
+/*
+ * stm32WindowSensor: RF window sensors: STM32L + RFM69 + Android
+ *
+ * Copyright (C) 2019. Mikhail Kulesh
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details. You should have received a copy of the GNU General
+ * Public License along with this program.
+ */
+
+package com.mkulesh.znet.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Striped counter that can be incremented from several threads without contention
+ */
+public class Counter implements CounterMBean
+{
+    private final LongAdder value = new LongAdder();
+
+    // value at the time of the last metrics dump, only used by the dumping thread
+    private long lastDumpValue = 0;
+
+    Counter()
+    {
+        // created by the registry only
+    }
+
+    public void increment()
+    {
+        value.increment();
+    }
+
+    public void add(long n)
+    {
+        value.add(n);
+    }
+
+    @Override
+    public long getCount()
+    {
+        return value.sum();
+    }
+
+    /**
+     * Returns the increment since the previous call
+     */
+    long getDelta()
+    {
+        final long v = value.sum();
+        final long delta = v - lastDumpValue;
+        lastDumpValue = v;
+        return delta;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * stm32WindowSensor: RF window sensors: STM32L + RFM69 + Android
+ *
+ * Copyright (C) 2019. Mikhail Kulesh
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details. You should have received a copy of the GNU General
+ * Public License along with this program.
+ */
+
+package com.mkulesh.znet.metrics;
+
+import com.mkulesh.znet.common.LatencyHistogram;
+
+/**
+ * Histogram of non-negative values, for example durations in microseconds
+ */
+public class Histogram implements HistogramMBean
+{
+    private final LatencyHistogram histogram = new LatencyHistogram();
+
+    Histogram()
+    {
+        // created by the registry only
+    }
+
+    public void record(long value)
+    {
+        histogram.record(value);
+    }
+
+    /**
+     * Records the time elapsed since the given start time (System.nanoTime) in microseconds
+     */
+    public void recordSince(long startNanos)
+    {
+        histogram.record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    @Override
+    public long getCount()
+    {
+        return histogram.getCount();
+    }
+
+    @Override
+    public double getMean()
+    {
+        return histogram.getMean();
+    }
+
+    @Override
+    public long getP50()
+    {
+        return histogram.getValueAtPercentile(50);
+    }
+
+    @Override
+    public long getP90()
+    {
+        return histogram.getValueAtPercentile(90);
+    }
+
+    @Override
+    public long getP99()
+    {
+        return histogram.getValueAtPercentile(99);
+    }
+
+    @Override
+    public long getP999()
+    {
+        return histogram.getValueAtPercentile(99.9);
+    }
+
+    @Override
+    public long getMax()
+    {
+        return histogram.getMax();
+    }
+
+    public String toString()
+    {
+        return histogram.toString();
+    }
+}
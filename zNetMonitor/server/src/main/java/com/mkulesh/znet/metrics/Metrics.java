@@ -0,0 +1,190 @@
+/*
+ * stm32WindowSensor: RF window sensors: STM32L + RFM69 + Android
+ *
+ * Copyright (C) 2019. Mikhail Kulesh
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details. You should have received a copy of the GNU General
+ * Public License along with this program.
+ */
+
+package com.mkulesh.znet.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Registry of the server metrics. Each metric is registered as a JMX MBean in the domain
+ * "com.mkulesh.znet" and included into the periodic metrics dump. The metrics of the hot paths are
+ * created once and kept in static fields, so that updating a metric is a single striped increment
+ * or histogram record without any lookup. All times are given in microseconds.
+ */
+public final class Metrics
+{
+    private final static String DOMAIN = "com.mkulesh.znet";
+
+    private final static Map<String, Counter> counters = new ConcurrentSkipListMap<>();
+    private final static Map<String, Histogram> histograms = new ConcurrentSkipListMap<>();
+    private final static Map<String, ClientMetrics> clients = new ConcurrentHashMap<>();
+    private static long lastDumpTime = System.nanoTime();
+
+    // sensor frames
+    public final static Counter FRAMES_RECEIVED = getCounter("frames.received");
+    public final static Counter PARSE_ERRORS = getCounter("frames.parseErrors");
+    public final static Counter DUPLICATE_FRAMES = getCounter("frames.duplicates");
+    public final static Counter FLAP_SUPPRESSED = getCounter("frames.flapSuppressed");
+    public final static Counter FRAMES_DROPPED = getCounter("frames.dropped");
+
+    // client connections
+    public final static Counter LOGIN_GRANTED = getCounter("login.granted");
+    public final static Counter LOGIN_DENIED = getCounter("login.denied");
+    public final static Counter LOGIN_CLOSED = getCounter("login.closed");
+    public final static Counter LOGIN_EXPIRED = getCounter("login.expired");
+    public final static Histogram CLIENT_QUEUE_DEPTH = getHistogram("client.queueDepth");
+    public final static Histogram CLIENT_QUEUE_TIME = getHistogram("client.queueTime");
+    public final static Histogram CLIENT_WRITE_TIME = getHistogram("client.writeTime");
+    public final static Counter CLIENT_REPLACED_STATES = getCounter("client.replacedStates");
+    public final static Histogram ENCODE_TIME = getHistogram("client.encodeTime");
+
+    // startup: milliseconds since the start of the JVM
+    public final static Histogram STARTUP_LISTENER_BOUND = getHistogram("startup.listenerBound");
+    public final static Histogram STARTUP_FIRST_ACCEPT = getHistogram("startup.firstAccept");
+    public final static Histogram STARTUP_COMPLETED = getHistogram("startup.completed");
+
+    // server state
+    public final static Histogram SENSOR_COMMAND_TIME = getHistogram("serverState.commandTime");
+    public final static Histogram SERVER_STATE_SAMPLE_TIME = getHistogram("serverState.sampleTime");
+
+    private Metrics()
+    {
+        // static registry only
+    }
+
+    /**
+     * Returns the counter with the given name; it is created on the first call
+     */
+    public static Counter getCounter(String name)
+    {
+        Counter c = counters.get(name);
+        if (c == null)
+        {
+            synchronized (counters)
+            {
+                c = counters.get(name);
+                if (c == null)
+                {
+                    c = new Counter();
+                    counters.put(name, c);
+                    register("Counter", name, c);
+                }
+            }
+        }
+        return c;
+    }
+
+    /**
+     * Returns the histogram with the given name; it is created on the first call
+     */
+    public static Histogram getHistogram(String name)
+    {
+        Histogram h = histograms.get(name);
+        if (h == null)
+        {
+            synchronized (histograms)
+            {
+                h = histograms.get(name);
+                if (h == null)
+                {
+                    h = new Histogram();
+                    histograms.put(name, h);
+                    register("Histogram", name, h);
+                }
+            }
+        }
+        return h;
+    }
+
+    public static void addClient(ClientMetrics client)
+    {
+        clients.put(client.getName(), client);
+        register("Client", client.getName(), client);
+    }
+
+    public static void removeClient(ClientMetrics client)
+    {
+        clients.remove(client.getName());
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(getObjectName("Client", client.getName()));
+        }
+        catch (Exception e)
+        {
+            // not registered
+        }
+    }
+
+    private static void register(String type, String name, Object mbean)
+    {
+        try
+        {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName objectName = getObjectName(type, name);
+            if (server.isRegistered(objectName))
+            {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(mbean, objectName);
+        }
+        catch (Exception e)
+        {
+            // JMX is not available: the metric is still included into the metrics dump
+        }
+    }
+
+    private static ObjectName getObjectName(String type, String name) throws Exception
+    {
+        return new ObjectName(DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name));
+    }
+
+    /**
+     * Returns all metrics as text: counters with their rate since the previous dump, histograms
+     * with percentiles, and the number of connected clients with their maximum queue depth
+     */
+    public static synchronized String dump()
+    {
+        final long now = System.nanoTime();
+        final double seconds = Math.max(1e-3, (now - lastDumpTime) / (double) TimeUnit.SECONDS.toNanos(1));
+        lastDumpTime = now;
+        final StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Counter> e : counters.entrySet())
+        {
+            final long delta = e.getValue().getDelta();
+            sb.append(String.format(Locale.US, "%n  %s = %d (%.1f/s)", e.getKey(), e.getValue().getCount(),
+                    delta / seconds));
+        }
+        for (Map.Entry<String, Histogram> e : histograms.entrySet())
+        {
+            sb.append(String.format(Locale.US, "%n  %s: %s", e.getKey(), e.getValue().toString()));
+        }
+        int maxQueueDepth = 0;
+        for (ClientMetrics c : clients.values())
+        {
+            maxQueueDepth = Math.max(maxQueueDepth, c.getQueueDepth());
+        }
+        sb.append(String.format(Locale.US, "%n  clients = %d, current max queue depth = %d",
+                clients.size(), maxQueueDepth));
+        return sb.toString();
+    }
+}
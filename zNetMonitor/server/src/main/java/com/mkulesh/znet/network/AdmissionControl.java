@@ -0,0 +1,201 @@
+/*
+ * stm32WindowSensor: RF window sensors: STM32L + RFM69 + Android
+ *
+ * Copyright (C) 2019. Mikhail Kulesh
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details. You should have received a copy of the GNU General
+ * Public License along with this program.
+ */
+
+package com.mkulesh.znet.network;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Admission control of incoming client connections before the authentication: limits the number
+ * of connections per remote address and the number of pending logins, and blocks an address for
+ * an exponentially growing time after each failed login.
+ */
+class AdmissionControl
+{
+    enum Result
+    {
+        ACCEPTED,
+        REJECTED_ADDRESS_LIMIT,
+        REJECTED_PENDING_LIMIT,
+        REJECTED_BACKOFF
+    }
+
+    private static class AddressState
+    {
+        int connections = 0;
+        int failures = 0;
+        long blockedUntil = 0;
+    }
+
+    private final int maxConnectionsPerAddress;
+    private final int maxPendingLogins;
+    private final long backoffTime;
+    private final long backoffMaxTime;
+
+    private final HashMap<InetAddress, AddressState> addresses = new HashMap<>();
+    private int pendingLogins = 0;
+
+    // counters
+    private long accepted = 0;
+    private long rejectedAddressLimit = 0;
+    private long rejectedPendingLimit = 0;
+    private long rejectedBackoff = 0;
+    private long loginSucceeded = 0;
+    private long loginFailed = 0;
+    private long loginTimeouts = 0;
+    private long loginAborted = 0;
+
+    AdmissionControl(int maxConnectionsPerAddress, int maxPendingLogins, long backoffTime, long backoffMaxTime)
+    {
+        this.maxConnectionsPerAddress = maxConnectionsPerAddress;
+        this.maxPendingLogins = maxPendingLogins;
+        this.backoffTime = backoffTime;
+        this.backoffMaxTime = backoffMaxTime;
+    }
+
+    /**
+     * Called for each accepted connection. An accepted connection enters the pending login stage
+     */
+    synchronized Result admit(InetAddress address)
+    {
+        AddressState s = addresses.get(address);
+        if (s != null && s.blockedUntil > System.currentTimeMillis())
+        {
+            rejectedBackoff++;
+            return Result.REJECTED_BACKOFF;
+        }
+        if (s != null && s.connections >= maxConnectionsPerAddress)
+        {
+            rejectedAddressLimit++;
+            return Result.REJECTED_ADDRESS_LIMIT;
+        }
+        if (pendingLogins >= maxPendingLogins)
+        {
+            rejectedPendingLimit++;
+            return Result.REJECTED_PENDING_LIMIT;
+        }
+        if (s == null)
+        {
+            s = new AddressState();
+            addresses.put(address, s);
+        }
+        s.connections++;
+        pendingLogins++;
+        accepted++;
+        return Result.ACCEPTED;
+    }
+
+    synchronized void onLoginSucceeded(InetAddress address)
+    {
+        pendingLogins--;
+        loginSucceeded++;
+        final AddressState s = addresses.get(address);
+        if (s != null)
+        {
+            s.failures = 0;
+            s.blockedUntil = 0;
+        }
+    }
+
+    /**
+     * Called if the login is denied or is not completed in time: the address is blocked
+     * for the backoff time that is doubled with each subsequent failure
+     */
+    synchronized void onLoginFailed(InetAddress address, boolean timeout)
+    {
+        pendingLogins--;
+        if (timeout)
+        {
+            loginTimeouts++;
+        }
+        else
+        {
+            loginFailed++;
+        }
+        final AddressState s = addresses.get(address);
+        if (s != null)
+        {
+            s.failures = Math.min(s.failures + 1, 30);
+            s.blockedUntil = System.currentTimeMillis() + Math.min(backoffMaxTime, backoffTime << (s.failures - 1));
+        }
+        release(address);
+    }
+
+    /**
+     * Called if the connection is closed by the client before the login is completed
+     */
+    synchronized void onLoginAborted(InetAddress address)
+    {
+        pendingLogins--;
+        loginAborted++;
+        release(address);
+    }
+
+    /**
+     * Called if the connection of a logged-in client is closed
+     */
+    synchronized void onConnectionClosed(InetAddress address)
+    {
+        release(address);
+    }
+
+    private void release(InetAddress address)
+    {
+        final AddressState s = addresses.get(address);
+        if (s != null && s.connections > 0)
+        {
+            s.connections--;
+        }
+    }
+
+    /**
+     * Called periodically: forgets the addresses without connections whose backoff has expired
+     */
+    synchronized void removeExpired()
+    {
+        final long now = System.currentTimeMillis();
+        final Iterator<Map.Entry<InetAddress, AddressState>> it = addresses.entrySet().iterator();
+        while (it.hasNext())
+        {
+            final AddressState s = it.next().getValue();
+            if (s.connections == 0 && s.blockedUntil + backoffMaxTime < now)
+            {
+                it.remove();
+            }
+        }
+    }
+
+    synchronized int getPendingLogins()
+    {
+        return pendingLogins;
+    }
+
+    public synchronized String toString()
+    {
+        return "accepted=" + accepted
+                + ", rejected(address limit)=" + rejectedAddressLimit
+                + ", rejected(pending limit)=" + rejectedPendingLimit
+                + ", rejected(backoff)=" + rejectedBackoff
+                + ", login succeeded=" + loginSucceeded
+                + ", login failed=" + loginFailed
+                + ", login timeouts=" + loginTimeouts
+                + ", login aborted=" + loginAborted
+                + ", pending=" + pendingLogins
+                + ", addresses=" + addresses.size();
+    }
+}
@@ -17,43 +17,79 @@ package com.mkulesh.znet.network;
 
 import com.mkulesh.znet.Config;
 import com.mkulesh.znet.common.AdvancedEncryptionStandard;
+import com.mkulesh.znet.common.BinaryCodec;
 import com.mkulesh.znet.common.Message;
+import com.mkulesh.znet.common.MessageFramer;
+import com.mkulesh.znet.common.SubscriptionFilter;
+import com.mkulesh.znet.eventlog.Event;
+import com.mkulesh.znet.eventlog.EventLog;
+import com.mkulesh.znet.metrics.ClientMetrics;
+import com.mkulesh.znet.metrics.Metrics;
+import com.mkulesh.znet.scheduler.Scheduler;
 import com.mkulesh.znet.common.Message.Type;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.Base64;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class ClientAppCommThread implements Runnable
 {
+    enum LoginResult
+    {
+        PENDING,
+        GRANTED,
+        DENIED,
+        CLOSED
+    }
+
+    // maximum size of the data accepted before the login is completed
+    private final static int MAX_LOGIN_SIZE = 4 * 1024;
+
+    private final static Message HEARTBIT_MSG = new Message(Message.Type.HEARTBIT);
+
     private final Logger logger;
     private final ClientAppManager parentThread;
     private final SocketChannel socket;
+    private final InetAddress address;
     private final Integer clientId;
-    private final Thread thread;
-    private final Timer heartbitTimer;
-    private final BlockingQueue<Message> messageQueue;
-    private String inputStream = "";
+    private Thread thread = null;
+    private final Scheduler scheduler;
+    private final OutboundQueue messageQueue;
+    private final ClientMetrics metrics;
+    private final MessageFramer inputFramer = new MessageFramer(Message.SOCKET_BUFFER, Message.MAX_INPUT_BUFFER);
     private final AdvancedEncryptionStandard initialEncryptor = new AdvancedEncryptionStandard(Message.AES_KEY);
     private AdvancedEncryptionStandard sessionEncryptor = null;
+    private int protocol = Message.PROTOCOL_TEXT;
+    private boolean extended = false;
+    private volatile boolean loggedIn = false;
+    private volatile SubscriptionFilter filter = SubscriptionFilter.ALL;
+    private volatile long lastSendTime = 0;
+    private int loginDataSize = 0;
+    private int decodeErrors = 0;
+    private Scheduler.Timeout loginTimeout = null;
 
-    ClientAppCommThread(Logger logger, ClientAppManager parentThread, SocketChannel socket, Integer clientId)
+    // session resume request of the login message
+    private volatile String sessionToken = null;
+    private String knownConfigVersion = "";
+    private long knownStateVersion = 0;
+
+    ClientAppCommThread(Logger logger, ClientAppManager parentThread, Scheduler scheduler, SocketChannel socket,
+                        InetAddress address, Integer clientId)
     {
         this.logger = logger;
         this.parentThread = parentThread;
+        this.scheduler = scheduler;
         this.socket = socket;
+        this.address = address;
         this.clientId = clientId;
-        thread = new Thread(this, this.getClass().getSimpleName());
-        heartbitTimer = new Timer();
-        messageQueue = new ArrayBlockingQueue<>(100, true);
+        messageQueue = new OutboundQueue(100);
+        metrics = new ClientMetrics("client " + clientId, messageQueue::size);
     }
 
     public String toString()
@@ -75,37 +111,155 @@ public class ClientAppCommThread implements Runnable
         return clientId;
     }
 
-    void start()
+    SocketChannel getSocket()
     {
-        thread.start();
+        return socket;
     }
 
-    @Override
-    public void run()
+    InetAddress getAddress()
     {
-        ByteBuffer buffer = ByteBuffer.allocate(Message.SOCKET_BUFFER);
-        final long startTime = System.currentTimeMillis();
+        return address;
+    }
+
+    Scheduler.Timeout getLoginTimeout()
+    {
+        return loginTimeout;
+    }
+
+    void setLoginTimeout(Scheduler.Timeout loginTimeout)
+    {
+        this.loginTimeout = loginTimeout;
+    }
 
-        heartbitTimer.schedule(new TimerTask()
+    boolean isLoggedIn()
+    {
+        return loggedIn;
+    }
+
+    public SubscriptionFilter getFilter()
+    {
+        return filter;
+    }
+
+    int getProtocol()
+    {
+        return protocol;
+    }
+
+    /**
+     * Returns whether the client announced the optional login parameters. A legacy client sends
+     * the plain login and only accepts the messages of the original protocol: DEVICE_STATE without
+     * the optional parameters, no SESSION and the SERVER_STATE without the server health
+     */
+    public boolean isExtended()
+    {
+        return extended;
+    }
+
+    /**
+     * Returns how long (in nanoseconds) the oldest message of the queue is waiting, or 0 if the
+     * queue is empty
+     */
+    long getOldestMessageAge()
+    {
+        final long oldest = messageQueue.getOldestTime();
+        return oldest == 0 ? 0 : Math.max(0, System.nanoTime() - oldest);
+    }
+
+    /**
+     * Returns the valid session token given in the login message, or null
+     */
+    String getSessionToken()
+    {
+        return sessionToken;
+    }
+
+    void setSessionToken(String sessionToken)
+    {
+        this.sessionToken = sessionToken;
+    }
+
+    String getKnownConfigVersion()
+    {
+        return knownConfigVersion;
+    }
+
+    long getKnownStateVersion()
+    {
+        return knownStateVersion;
+    }
+
+    /**
+     * Called from the connection manager while the login is pending: reads the available data
+     * without blocking and validates the login message. Malformed or oversized data before the
+     * login denies the access immediately
+     */
+    LoginResult readLogin(ByteBuffer buffer)
+    {
+        try
         {
-            @Override
-            public void run()
+            buffer.clear();
+            final int readedSize = socket.read(buffer);
+            if (readedSize < 0)
             {
-                if (messageQueue.isEmpty())
+                return LoginResult.CLOSED;
+            }
+            loginDataSize += readedSize;
+            final Message inputMessage = readedSize > 0 ? processInputData(buffer) : null;
+            if (decodeErrors > 0 || inputFramer.getSkippedBytes() > 0 || inputFramer.getOverflowCount() > 0)
+            {
+                logger.info(toString() + ": access denied due to malformed data");
+                return LoginResult.DENIED;
+            }
+            if (inputMessage == null)
+            {
+                if (loginDataSize > MAX_LOGIN_SIZE)
                 {
-                    messageQueue.add(new Message(Message.Type.HEARTBIT));
+                    logger.info(toString() + ": access denied due to oversized login data");
+                    return LoginResult.DENIED;
                 }
+                return LoginResult.PENDING;
             }
-        }, 0, Config.getHeartbitInterval());
-
-        try
-        {
-            socket.configureBlocking(false);
+            return acceptLogin(inputMessage);
         }
         catch (IOException e)
         {
-            logger.log(Level.SEVERE, "can not configure non-blocking mode", e);
+            return LoginResult.CLOSED;
         }
+    }
+
+    /**
+     * Validates a decoded login message, either read from the socket or given by the caller of
+     * ClientAppManager.addClient
+     */
+    LoginResult acceptLogin(Message inputMessage)
+    {
+        if (validateLoginMessage(inputMessage))
+        {
+            loggedIn = true;
+            return LoginResult.GRANTED;
+        }
+        return LoginResult.DENIED;
+    }
+
+    /**
+     * Starts the communication thread of a logged-in client
+     */
+    void start()
+    {
+        thread = new Thread(this, this.getClass().getSimpleName());
+        thread.start();
+    }
+
+    @Override
+    public void run()
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(Message.SOCKET_BUFFER);
+
+        Metrics.addClient(metrics);
+        parentThread.onClientLoggedIn(this);
+        final Scheduler.Timeout heartbitTimeout = scheduler.scheduleAtFixedRate(this::sendHeartbit,
+                Config.getHeartbitInterval(), Config.getHeartbitInterval(), false);
 
         while (true)
         {
@@ -122,53 +276,53 @@ public class ClientAppCommThread implements Runnable
                     Message inputMessage = processInputData(buffer);
                     if (inputMessage != null)
                     {
-                        validateLoginMessage(inputMessage);
+                        handleInputMessage(inputMessage);
+                        inputMessage.recycle();
                     }
                 }
 
-                if (sessionEncryptor == null)
-                {
-                    final long currentTime = System.currentTimeMillis();
-                    if (currentTime - startTime > Config.getLoginWaitingTime() * 1000)
-                    {
-                        logger.info(toString() + ": login can not be processed");
-                        break;
-                    }
-                    continue;
-                }
 
-                Message m = messageQueue.take();
-                if (m != null)
+                final OutboundQueue.Entry q = messageQueue.take();
+                final Message m = q.message;
+                metrics.onMessageTaken();
+                final long encodeStart = System.nanoTime();
+                final ByteBuffer data = encodeMessage(m);
+                final long writeStart = System.nanoTime();
+                final int size = socket.write(data);
+                lastSendTime = System.nanoTime();
+                Metrics.ENCODE_TIME.record((writeStart - encodeStart) / 1000);
+                metrics.onMessageWritten(size, (lastSendTime - writeStart) / 1000);
+
+                // enqueue-to-write latency of this client
+                final long queueTime = (lastSendTime - q.time) / 1000;
+                Metrics.CLIENT_QUEUE_TIME.record(queueTime);
+                if (m.getType() != Message.Type.HEARTBIT
+                        && !EventLog.record(Event.MESSAGE_SENT, clientId, m.getType().getCode(), size, queueTime))
                 {
-                    ByteBuffer messageBuffer;
-                    if (m.getType() != Message.Type.HEARTBIT)
-                    {
-                        logger.info(toString() + ": sending encrypted " + m.toString());
-                        final String encryptedMessage = Message.START_TAG
-                                + Base64.getEncoder().encodeToString(sessionEncryptor.encrypt(m.encode()))
-                                + Message.END_TAG;
-                        messageBuffer = ByteBuffer.wrap(encryptedMessage.getBytes(StandardCharsets.UTF_8));
-                    }
-                    else
-                    {
-                        final String unencryptedMessage = Message.START_TAG + m.encode() + Message.END_TAG;
-                        messageBuffer = ByteBuffer.wrap(unencryptedMessage.getBytes(StandardCharsets.UTF_8));
-                    }
-                    socket.write(messageBuffer);
+                    logger.info(toString() + ": sent encrypted " + m.toString() + ", queue time " + queueTime + " us");
                 }
+                m.recycle();
             }
             catch (Exception e)
             {
-                logger.log(Level.SEVERE, "can not read from socket", e);
+                if (socket.isOpen())
+                {
+                    logger.log(Level.SEVERE, "can not read from socket", e);
+                }
                 break;
             }
         }
 
         logger.info(toString() + ": connection closed");
+        for (OutboundQueue.Entry q = messageQueue.poll(); q != null; q = messageQueue.poll())
+        {
+            q.message.recycle();
+        }
+        Metrics.removeClient(metrics);
+        heartbitTimeout.cancel();
         parentThread.onClientDisconnected(this);
         try
         {
-            heartbitTimer.cancel();
             socket.close();
         }
         catch (IOException e)
@@ -177,6 +331,65 @@ public class ClientAppCommThread implements Runnable
         }
     }
 
+    /**
+     * Called from the scheduler: a heartbit is only sent if no other message was sent during
+     * the last heartbit interval
+     */
+    private void sendHeartbit()
+    {
+        final long sinceLastSend = System.nanoTime() - lastSendTime;
+        if (sinceLastSend >= TimeUnit.MILLISECONDS.toNanos(Config.getHeartbitInterval()) && messageQueue.isEmpty())
+        {
+            messageQueue.offer(HEARTBIT_MSG, OutboundQueue.Priority.HEARTBIT);
+        }
+    }
+
+    private ByteBuffer encodeMessage(Message m) throws Exception
+    {
+        // heartbit is not encrypted
+        final AdvancedEncryptionStandard encryptor =
+                m.getType() != Message.Type.HEARTBIT ? sessionEncryptor : null;
+        if (protocol == Message.PROTOCOL_BINARY)
+        {
+            return ByteBuffer.wrap(BinaryCodec.encodeFrame(m, encryptor));
+        }
+        final String str = Message.START_TAG
+                + (encryptor != null ? Base64.getEncoder().encodeToString(encryptor.encrypt(m.encode())) : m.encode())
+                + Message.END_TAG;
+        return ByteBuffer.wrap(str.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void handleInputMessage(Message inputMessage)
+    {
+        if (inputMessage.getType() == Type.SUBSCRIBE)
+        {
+            if (updateFilter(inputMessage.getParameter(0)))
+            {
+                sessionToken = null;
+                parentThread.onClientSubscriptionChanged(this);
+            }
+        }
+        else
+        {
+            logger.info(toString() + ": ignored unexpected message " + inputMessage.toString());
+        }
+    }
+
+    private boolean updateFilter(String spec)
+    {
+        try
+        {
+            filter = new SubscriptionFilter(spec);
+            logger.info(toString() + ": subscription filter \"" + filter.toString() + "\"");
+            return true;
+        }
+        catch (Exception e)
+        {
+            logger.log(Level.SEVERE, toString() + ": invalid subscription filter \"" + spec + "\"", e);
+            return false;
+        }
+    }
+
     private boolean validateLoginMessage(Message inputMessage)
     {
         sessionEncryptor = null;
@@ -184,10 +397,32 @@ public class ClientAppCommThread implements Runnable
         {
             final String password = inputMessage.getParameter(1);
             final String sessionKey = inputMessage.getParameter(2);
-            if (Config.getPassword().equals(password))
+            final String token = inputMessage.getParameter(Message.LOGIN_PAR_SESSION_TOKEN, "");
+            final String filterSpec = inputMessage.getParameter(Message.LOGIN_PAR_FILTER, "").trim();
+            // a valid session token replaces the password
+            final boolean validSession = parentThread.getSessionManager().isValid(token, filterSpec);
+            if (validSession || Config.getPassword().equals(password))
             {
-                logger.info("access for client granted with key " + sessionKey);
+                protocol = getRequestedProtocol(inputMessage);
+                extended = inputMessage.getParameterCount() > Type.CLIENT_LOGIN.getParNumber();
+                logger.info("access for client granted with key " + sessionKey + ", protocol " + protocol
+                        + (validSession ? ", resuming session " + token : ""));
                 sessionEncryptor = new AdvancedEncryptionStandard(sessionKey);
+                updateFilter(filterSpec);
+                if (validSession)
+                {
+                    sessionToken = token;
+                    knownConfigVersion = inputMessage.getParameter(Message.LOGIN_PAR_CONFIG_VERSION, "");
+                    try
+                    {
+                        knownStateVersion = Long.parseLong(
+                                inputMessage.getParameter(Message.LOGIN_PAR_STATE_VERSION, "0"));
+                    }
+                    catch (NumberFormatException e)
+                    {
+                        knownConfigVersion = "";
+                    }
+                }
                 return true;
             }
             logger.info("access denied due to invalid password " + password);
@@ -197,45 +432,96 @@ public class ClientAppCommThread implements Runnable
         return false;
     }
 
+    private int getRequestedProtocol(Message loginMessage)
+    {
+        try
+        {
+            final int requested = Integer.parseInt(
+                    loginMessage.getParameter(Message.LOGIN_PAR_PROTOCOL, Integer.toString(Message.PROTOCOL_TEXT)));
+            return requested >= Message.PROTOCOL_BINARY ? Message.PROTOCOL_BINARY : Message.PROTOCOL_TEXT;
+        }
+        catch (NumberFormatException e)
+        {
+            return Message.PROTOCOL_TEXT;
+        }
+    }
+
     private Message processInputData(ByteBuffer buffer)
     {
         buffer.flip();
-        byte[] bytes = new byte[buffer.remaining()];
-        buffer.get(bytes);
-        String s = new String(bytes, StandardCharsets.UTF_8);
-        inputStream += s;
+        inputFramer.append(buffer);
         while (true)
         {
-            final int startIndex = inputStream.indexOf(Message.START_TAG);
-            final int endIndex = inputStream.indexOf(Message.END_TAG);
-            if (startIndex < 0 || endIndex < 0)
-            {
-                break;
-            }
-            final String messageStr = inputStream.substring(startIndex + Message.START_TAG.length(), endIndex);
-            inputStream = inputStream.substring(endIndex + Message.END_TAG.length(), inputStream.length());
             try
             {
-                logger.info("handle input message: " + messageStr);
-                final String decryptedMessage = initialEncryptor.decrypt(Base64.getDecoder().decode(messageStr));
-                Message inputMessage = new Message(decryptedMessage);
-                logger.info("received message: " + inputMessage.toString());
+                if (!inputFramer.next())
+                {
+                    break;
+                }
+                final Message inputMessage;
+                if (inputFramer.isBinaryFrame())
+                {
+                    inputMessage = BinaryCodec.decodeFrame(inputFramer.getFrameData(), inputFramer.getFrameOffset(),
+                            inputFramer.getFrameLength(), getInputEncryptor());
+                }
+                else
+                {
+                    final ByteBuffer encrypted = Base64.getDecoder().decode(ByteBuffer.wrap(
+                            inputFramer.getFrameData(), inputFramer.getFrameOffset(), inputFramer.getFrameLength()));
+                    final byte[] decrypted = getInputEncryptor().decrypt(encrypted.array(),
+                            encrypted.arrayOffset() + encrypted.position(), encrypted.remaining());
+                    inputMessage = new Message(new String(decrypted, StandardCharsets.UTF_8));
+                }
+                if (!EventLog.record(Event.MESSAGE_RECEIVED, clientId, inputMessage.getType().getCode()))
+                {
+                    logger.info("received message: " + inputMessage.toString());
+                }
                 return inputMessage;
             }
             catch (Exception e)
             {
-                logger.log(Level.SEVERE, "can not decode message " + s, e);
+                decodeErrors++;
+                if (loggedIn)
+                {
+                    logger.log(Level.SEVERE, "can not decode input message", e);
+                }
             }
         }
         return null;
     }
 
+    /**
+     * The login message is encrypted using the initial key, all further messages using the session key
+     */
+    private AdvancedEncryptionStandard getInputEncryptor()
+    {
+        return loggedIn ? sessionEncryptor : initialEncryptor;
+    }
+
+    /**
+     * Queues a message of the initial dump, the configuration or the server state; these messages
+     * keep their order
+     */
     public void sendMessage(Message m)
+    {
+        sendMessage(m, OutboundQueue.Priority.BULK);
+    }
+
+    /**
+     * Queues a message with the given priority: a live state change is sent before the pending
+     * messages of a lower priority
+     */
+    public void sendMessage(Message m, OutboundQueue.Priority priority)
     {
         if (m == null)
         {
             return;
         }
-        messageQueue.add(m);
+        // the queue holds its own reference of a pooled message until it is written
+        if (!messageQueue.offer(m.retain(), priority))
+        {
+            logger.warning(toString() + ": message queue is full, dropped " + m.toString());
+            m.recycle();
+        }
     }
 }
@@ -15,23 +15,70 @@
 
 package com.mkulesh.znet.network;
 
+import com.mkulesh.znet.Config;
 import com.mkulesh.znet.StateManager;
 import com.mkulesh.znet.common.CustomLogger;
+import com.mkulesh.znet.common.DeviceState;
+import com.mkulesh.znet.common.Message;
+import com.mkulesh.znet.metrics.Metrics;
+import com.mkulesh.znet.scheduler.Scheduler;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class ClientAppManager extends ConnectionManager
 {
+    private final static ClientAppCommThread[] NO_CLIENTS = new ClientAppCommThread[0];
+
     private final HashMap<Integer, ClientAppCommThread> clients = new HashMap<>();
 
-    public ClientAppManager(Logger logger, StateManager stateManager, String networkInterface, int port)
+    // Routing table: device id to the logged-in clients subscribed to this device. The table is
+    // rebuilt when a client logs in, changes its filter or disconnects, and replaced as a whole
+    private volatile HashMap<Integer, ClientAppCommThread[]> routingTable = new HashMap<>();
+
+    private final Scheduler scheduler;
+    private final SessionManager sessionManager;
+
+    // Pending login stage: connections are accepted and their login messages are read on the
+    // listener thread using a selector; a client thread is only started after a successful login
+    private final AdmissionControl admissionControl;
+    private final ConcurrentLinkedQueue<ClientAppCommThread> expiredLogins = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer loginBuffer = ByteBuffer.allocate(Message.SOCKET_BUFFER);
+    private Selector selector = null;
+    private String lastStatistics = "";
+    private boolean firstAccepted = false;
+
+    public ClientAppManager(Logger logger, StateManager stateManager, Scheduler scheduler, String networkInterface,
+                            int port)
     {
         super(logger, stateManager, networkInterface, port);
+        this.scheduler = scheduler;
+        this.sessionManager = new SessionManager(Config.getSessionTimeout() * 1000L);
+        scheduler.scheduleAtFixedRate(sessionManager::removeExpired, 60000, 60000, false);
+        this.admissionControl = new AdmissionControl(Config.getMaxConnectionsPerAddress(),
+                Config.getMaxPendingLogins(), Config.getLoginBackoffTime(), Config.getLoginBackoffMaxTime());
+        scheduler.scheduleAtFixedRate(this::logAdmissionStatistics, Config.ADMISSION_STATISTICS_INTERVAL,
+                Config.ADMISSION_STATISTICS_INTERVAL, false);
+    }
+
+    SessionManager getSessionManager()
+    {
+        return sessionManager;
     }
 
     public HashMap<Integer, ClientAppCommThread> getClients()
@@ -45,17 +92,48 @@ public class ClientAppManager extends ConnectionManager
         ServerSocketChannel listener = null;
         try
         {
+            selector = Selector.open();
             listener = ServerSocketChannel.open();
+            listener.configureBlocking(false);
             listener.bind(new InetSocketAddress(port));
-            logger.log(Level.INFO, "client network service " + getIPAddress() + ":" + Integer.toString(port) + " is ready",
-                    CustomLogger.ADD_TO_CONSOLE);
+            listener.register(selector, SelectionKey.OP_ACCEPT);
+            final long bound = ManagementFactory.getRuntimeMXBean().getUptime();
+            Metrics.STARTUP_LISTENER_BOUND.record(bound);
+            logger.log(Level.INFO, "client network service " + getIPAddress() + ":" + Integer.toString(port)
+                    + " is ready after " + bound + " ms", CustomLogger.ADD_TO_CONSOLE);
             while (true)
             {
-                ClientAppCommThread client = new ClientAppCommThread(logger, this, listener.accept(),
-                        IdGenerator.generateId());
-                logger.info(client.toString() + ": connection established");
-                onClientConnected(client);
-                client.start();
+                selector.select();
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext())
+                {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid())
+                    {
+                        continue;
+                    }
+                    if (key.isAcceptable())
+                    {
+                        acceptConnections(listener);
+                    }
+                    else if (key.isReadable())
+                    {
+                        processLogin(key, (ClientAppCommThread) key.attachment());
+                    }
+                }
+                ClientAppCommThread client;
+                while ((client = expiredLogins.poll()) != null)
+                {
+                    final SelectionKey key = client.getSocket().keyFor(selector);
+                    if (key != null && key.isValid() && !client.isLoggedIn())
+                    {
+                        logger.info(client.toString() + ": login can not be processed");
+                        Metrics.LOGIN_EXPIRED.increment();
+                        admissionControl.onLoginFailed(client.getAddress(), true);
+                        closePending(key, client);
+                    }
+                }
             }
         }
         catch (IOException e)
@@ -75,6 +153,146 @@ public class ClientAppManager extends ConnectionManager
         }
     }
 
+    /**
+     * Accepts all waiting connections. A connection not admitted by the admission control is
+     * closed immediately with a reset, without any further processing
+     */
+    private void acceptConnections(ServerSocketChannel listener) throws IOException
+    {
+        SocketChannel socket;
+        while ((socket = listener.accept()) != null)
+        {
+            if (!firstAccepted)
+            {
+                firstAccepted = true;
+                final long accepted = ManagementFactory.getRuntimeMXBean().getUptime();
+                Metrics.STARTUP_FIRST_ACCEPT.record(accepted);
+                logger.log(Level.INFO, "first client accepted after " + accepted + " ms", CustomLogger.ADD_TO_CONSOLE);
+            }
+            final InetAddress address = ((InetSocketAddress) socket.getRemoteAddress()).getAddress();
+            final AdmissionControl.Result result = admissionControl.admit(address);
+            if (result != AdmissionControl.Result.ACCEPTED)
+            {
+                Metrics.getCounter("connections." + result.toString().toLowerCase(Locale.ENGLISH)).increment();
+                logger.fine("connection from " + address + " rejected: " + result);
+                try
+                {
+                    socket.setOption(StandardSocketOptions.SO_LINGER, 0);
+                    socket.close();
+                }
+                catch (IOException e)
+                {
+                    // nothing to do
+                }
+                continue;
+            }
+            final ClientAppCommThread client = new ClientAppCommThread(logger, this, scheduler, socket, address,
+                    IdGenerator.generateId());
+            try
+            {
+                socket.configureBlocking(false);
+                socket.register(selector, SelectionKey.OP_READ, client);
+            }
+            catch (IOException e)
+            {
+                logger.log(Level.SEVERE, client.toString() + ": can not register connection", e);
+                admissionControl.onLoginAborted(address);
+                socket.close();
+                continue;
+            }
+            logger.info(client.toString() + ": connection established");
+            client.setLoginTimeout(scheduler.schedule(() ->
+            {
+                expiredLogins.add(client);
+                selector.wakeup();
+            }, Config.getLoginWaitingTime() * 1000L));
+        }
+    }
+
+    private void processLogin(SelectionKey key, ClientAppCommThread client)
+    {
+        switch (client.readLogin(loginBuffer))
+        {
+        case PENDING:
+            return;
+        case GRANTED:
+            Metrics.LOGIN_GRANTED.increment();
+            client.getLoginTimeout().cancel();
+            key.cancel();
+            admissionControl.onLoginSucceeded(client.getAddress());
+            onClientConnected(client);
+            client.start();
+            return;
+        case DENIED:
+            Metrics.LOGIN_DENIED.increment();
+            admissionControl.onLoginFailed(client.getAddress(), false);
+            closePending(key, client);
+            return;
+        case CLOSED:
+            Metrics.LOGIN_CLOSED.increment();
+            logger.info(client.toString() + ": connection closed before login");
+            admissionControl.onLoginAborted(client.getAddress());
+            closePending(key, client);
+            return;
+        }
+    }
+
+    private void closePending(SelectionKey key, ClientAppCommThread client)
+    {
+        client.getLoginTimeout().cancel();
+        key.cancel();
+        try
+        {
+            client.getSocket().close();
+        }
+        catch (IOException e)
+        {
+            // nothing to do
+        }
+    }
+
+    /**
+     * Adds a client on a channel that is not accepted from the listener socket, for example an
+     * in-process channel of a benchmark. The given login message is validated as if it was received
+     * from the channel, but without the initial encryption. Such a client has no address and is
+     * not subject to the admission control
+     */
+    public boolean addClient(SocketChannel channel, Message login)
+    {
+        final ClientAppCommThread client = new ClientAppCommThread(logger, this, scheduler, channel, null,
+                IdGenerator.generateId());
+        if (client.acceptLogin(login) != ClientAppCommThread.LoginResult.GRANTED)
+        {
+            return false;
+        }
+        onClientConnected(client);
+        client.start();
+        return true;
+    }
+
+    /**
+     * Called from the scheduler: logs the admission counters if they were changed
+     */
+    private void logAdmissionStatistics()
+    {
+        final String statistics = admissionControl.toString();
+        if (!statistics.equals(lastStatistics))
+        {
+            logger.info("admission control: " + statistics);
+            lastStatistics = statistics;
+        }
+        admissionControl.removeExpired();
+    }
+
+    /**
+     * Returns the logged-in clients whose subscription filter matches the given device
+     */
+    public ClientAppCommThread[] getSubscribers(int deviceId)
+    {
+        final ClientAppCommThread[] subscribers = routingTable.get(deviceId);
+        return subscribers == null ? NO_CLIENTS : subscribers;
+    }
+
     private void onClientConnected(ClientAppCommThread client)
     {
         synchronized (clients)
@@ -82,13 +300,117 @@ public class ClientAppManager extends ConnectionManager
             clients.put(client.getClientId(), client);
             logger.info("there are " + clients.size() + " active connection(s)");
         }
+    }
+
+    void onClientLoggedIn(ClientAppCommThread client)
+    {
+        updateRoutingTable();
         if (stateManager != null)
         {
-            stateManager.sendConfiguration(client);
-            stateManager.sendDeviceState(client);
+            // A resumed session with unchanged configuration only gets the state changes it has not
+            // yet seen; otherwise a new session is created and the full configuration is sent.
+            // A legacy client does not know the SESSION message and always gets the full dump
+            final boolean resume = client.getSessionToken() != null
+                    && stateManager.getConfigVersion().equals(client.getKnownConfigVersion());
+            if (client.isExtended())
+            {
+                if (!resume)
+                {
+                    client.setSessionToken(sessionManager.createSession(client.getFilter().toString()));
+                }
+                stateManager.sendSession(client, client.getSessionToken(), resume);
+            }
+            if (resume)
+            {
+                stateManager.sendDeviceStateChanges(client, client.getKnownStateVersion());
+            }
+            else if (client.getProtocol() == Message.PROTOCOL_BINARY)
+            {
+                stateManager.sendSnapshot(client);
+            }
+            else
+            {
+                stateManager.sendConfiguration(client);
+                stateManager.sendDeviceState(client);
+            }
         }
     }
 
+    /**
+     * Called if the device configuration is replaced: all logged-in clients get a new session
+     * and the full configuration
+     */
+    public void onConfigurationChanged()
+    {
+        updateRoutingTable();
+        final ArrayList<ClientAppCommThread> loggedIn = new ArrayList<>();
+        synchronized (clients)
+        {
+            for (ClientAppCommThread client : clients.values())
+            {
+                if (client.isLoggedIn())
+                {
+                    loggedIn.add(client);
+                }
+            }
+        }
+        for (ClientAppCommThread client : loggedIn)
+        {
+            client.setSessionToken(null);
+            onClientLoggedIn(client);
+        }
+    }
+
+    /**
+     * Sends the given message to all logged-in clients regardless of their subscription filter;
+     * the legacy clients get the given legacy message instead
+     */
+    public void sendToAll(Message m, Message legacyMessage)
+    {
+        synchronized (clients)
+        {
+            for (ClientAppCommThread client : clients.values())
+            {
+                if (client.isLoggedIn())
+                {
+                    client.sendMessage(client.isExtended() ? m : legacyMessage);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of open client connections
+     */
+    public int getClientNumber()
+    {
+        synchronized (clients)
+        {
+            return clients.size();
+        }
+    }
+
+    /**
+     * Returns the waiting time (in nanoseconds) of the oldest message not yet sent to any client
+     */
+    public long getOldestMessageAge()
+    {
+        long age = 0;
+        synchronized (clients)
+        {
+            for (ClientAppCommThread client : clients.values())
+            {
+                age = Math.max(age, client.getOldestMessageAge());
+            }
+        }
+        return age;
+    }
+
+    void onClientSubscriptionChanged(ClientAppCommThread client)
+    {
+        onClientLoggedIn(client);
+    }
+
     void onClientDisconnected(ClientAppCommThread client)
     {
         synchronized (clients)
@@ -96,5 +418,36 @@ public class ClientAppManager extends ConnectionManager
             clients.remove(client.getClientId());
             logger.info("there are " + clients.size() + " active connection(s)");
         }
+        admissionControl.onConnectionClosed(client.getAddress());
+        updateRoutingTable();
+    }
+
+    private void updateRoutingTable()
+    {
+        if (stateManager == null)
+        {
+            return;
+        }
+        synchronized (clients)
+        {
+            final HashMap<Integer, ClientAppCommThread[]> table = new HashMap<>();
+            final ArrayList<ClientAppCommThread> subscribers = new ArrayList<>();
+            for (DeviceState d : stateManager.getDevices().values())
+            {
+                subscribers.clear();
+                for (ClientAppCommThread client : clients.values())
+                {
+                    if (client.isLoggedIn() && client.getFilter().matches(d.getConfig()))
+                    {
+                        subscribers.add(client);
+                    }
+                }
+                if (!subscribers.isEmpty())
+                {
+                    table.put(d.getId(), subscribers.toArray(NO_CLIENTS));
+                }
+            }
+            routingTable = table;
+        }
     }
 }
@@ -0,0 +1,570 @@
+/*
+ * stm32WindowSensor: RF window sensors: STM32L + RFM69 + Android
+ *
+ * Copyright (C) 2019. Mikhail Kulesh
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details. You should have received a copy of the GNU General
+ * Public License along with this program.
+ */
+
+package com.mkulesh.znet.network;
+
+import com.mkulesh.znet.Config;
+import com.mkulesh.znet.StateManager;
+import com.mkulesh.znet.common.CustomLogger;
+import com.mkulesh.znet.common.DeviceConfig;
+import com.mkulesh.znet.common.DeviceState;
+import com.mkulesh.znet.common.Message;
+import com.mkulesh.znet.scheduler.Scheduler;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Lightweight HTTP listener for browser dashboards:
+ *
+ * GET /state   the configuration and state of all devices and the server state as JSON
+ * GET /events  Server-Sent Events stream: the full state as "snapshot" event, followed by
+ *              a "state" event for each device state change and a "server" event for each
+ *              server state change
+ *
+ * Each request needs the server password or the session token of a client, either as
+ * "Authorization: Bearer" header or, since a browser EventSource can not set headers, as "token"
+ * query parameter. Cross-origin access is only allowed for the configured origin.
+ *
+ * All connections are served by one thread using a selector. A state change is serialized
+ * only once; all subscribers share the resulting read-only buffer.
+ */
+public class HttpManager extends ConnectionManager
+{
+    private final static int MAX_REQUEST_SIZE = 4 * 1024;
+    private final static int MAX_PENDING_EVENTS = 256;
+    private final static int KEEPALIVE_INTERVAL = 15000;
+    private final static String STATE_PATH = "/state";
+    private final static String EVENTS_PATH = "/events";
+    private final static String HEADER_END = "\r\n\r\n";
+    private final static String AUTHORIZATION_HEADER = "authorization:";
+    private final static String BEARER = "Bearer ";
+    private final static String TOKEN_PARAMETER = "token=";
+    private final static ByteBuffer KEEPALIVE_EVENT = toBuffer(": keepalive\n\n");
+
+    private static class Connection
+    {
+        final SocketChannel socket;
+        final ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST_SIZE);
+        final ArrayDeque<ByteBuffer> output = new ArrayDeque<>();
+        boolean subscriber = false;
+        boolean closeAfterWrite = false;
+
+        Connection(SocketChannel socket)
+        {
+            this.socket = socket;
+        }
+    }
+
+    private final int maxConnections;
+    private final ClientAppManager clientAppManager;
+    private final String corsHeaders;
+    private final ConcurrentLinkedQueue<ByteBuffer> events = new ConcurrentLinkedQueue<>();
+    private final ArrayList<Connection> subscribers = new ArrayList<>();
+    private volatile int subscriberNumber = 0;
+    private int connectionNumber = 0;
+    private volatile Selector selector = null;
+
+    /**
+     * @param allowOrigin the origin that may access the listener from another web page, or an
+     *                    empty string
+     */
+    public HttpManager(Logger logger, StateManager stateManager, ClientAppManager clientAppManager,
+                       Scheduler scheduler, String networkInterface, int port, int maxConnections,
+                       String allowOrigin)
+    {
+        super(logger, stateManager, networkInterface, port);
+        this.maxConnections = maxConnections;
+        this.clientAppManager = clientAppManager;
+        this.corsHeaders = allowOrigin.isEmpty() ? "" : "Access-Control-Allow-Origin: " + allowOrigin + "\r\n"
+                + "Access-Control-Allow-Headers: Authorization\r\n"
+                + "Vary: Origin\r\n";
+        scheduler.scheduleAtFixedRate(() -> publish(KEEPALIVE_EVENT), KEEPALIVE_INTERVAL, KEEPALIVE_INTERVAL, false);
+    }
+
+    @Override
+    public void run()
+    {
+        ServerSocketChannel listener = null;
+        try
+        {
+            selector = Selector.open();
+            listener = ServerSocketChannel.open();
+            listener.configureBlocking(false);
+            listener.bind(new InetSocketAddress(port));
+            listener.register(selector, SelectionKey.OP_ACCEPT);
+            logger.log(Level.INFO, "HTTP service " + getIPAddress() + ":" + Integer.toString(port) + " is ready",
+                    CustomLogger.ADD_TO_CONSOLE);
+            while (true)
+            {
+                selector.select();
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext())
+                {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid())
+                    {
+                        continue;
+                    }
+                    if (key.isAcceptable())
+                    {
+                        acceptConnections(listener);
+                        continue;
+                    }
+                    final Connection c = (Connection) key.attachment();
+                    try
+                    {
+                        if (key.isReadable())
+                        {
+                            processRead(key, c);
+                        }
+                        if (key.isValid() && key.isWritable())
+                        {
+                            processWrite(key, c);
+                        }
+                    }
+                    catch (IOException e)
+                    {
+                        close(key, c);
+                    }
+                }
+                distributeEvents();
+            }
+        }
+        catch (IOException e)
+        {
+            logger.log(Level.SEVERE, "can not open HTTP port " + port, e);
+        }
+        if (listener != null)
+        {
+            try
+            {
+                listener.close();
+            }
+            catch (IOException e)
+            {
+                // nothing to do
+            }
+        }
+    }
+
+    /**
+     * Called on each device state change: the event is serialized once and handed over
+     * to the selector thread
+     */
+    public void publishDeviceState(DeviceState d, long version)
+    {
+        if (subscriberNumber == 0)
+        {
+            return;
+        }
+        final StringBuilder sb = new StringBuilder();
+        sb.append("id: ").append(version).append("\nevent: state\ndata: ");
+        appendDevice(sb, d, version);
+        sb.append("\n\n");
+        publish(toBuffer(sb.toString()));
+    }
+
+    public void publishServerState(Message m)
+    {
+        if (subscriberNumber == 0)
+        {
+            return;
+        }
+        final StringBuilder sb = new StringBuilder();
+        sb.append("event: server\ndata: ");
+        appendServerState(sb, m);
+        sb.append("\n\n");
+        publish(toBuffer(sb.toString()));
+    }
+
+    private void publish(ByteBuffer event)
+    {
+        final Selector s = selector;
+        if (subscriberNumber == 0 || s == null)
+        {
+            return;
+        }
+        events.add(event);
+        s.wakeup();
+    }
+
+    private void acceptConnections(ServerSocketChannel listener) throws IOException
+    {
+        SocketChannel socket;
+        while ((socket = listener.accept()) != null)
+        {
+            if (connectionNumber >= maxConnections)
+            {
+                socket.close();
+                continue;
+            }
+            socket.configureBlocking(false);
+            socket.register(selector, SelectionKey.OP_READ, new Connection(socket));
+            connectionNumber++;
+        }
+    }
+
+    private void processRead(SelectionKey key, Connection c) throws IOException
+    {
+        if (c.subscriber || c.closeAfterWrite)
+        {
+            // further input is ignored; only the end of stream is of interest
+            c.request.clear();
+            if (c.socket.read(c.request) < 0)
+            {
+                close(key, c);
+            }
+            return;
+        }
+        if (c.socket.read(c.request) < 0)
+        {
+            close(key, c);
+            return;
+        }
+        final String header = new String(c.request.array(), 0, c.request.position(), StandardCharsets.ISO_8859_1);
+        if (!header.contains(HEADER_END))
+        {
+            if (!c.request.hasRemaining())
+            {
+                sendResponse(key, c, "400 Bad Request", "text/plain", "request is too large");
+            }
+            return;
+        }
+        final String[] requestLine = header.substring(0, header.indexOf("\r\n")).split(" ");
+        if (requestLine.length >= 2 && "OPTIONS".equals(requestLine[0]) && !corsHeaders.isEmpty())
+        {
+            // CORS preflight of a request with the Authorization header
+            sendResponse(key, c, "204 No Content", "text/plain", "");
+            return;
+        }
+        if (requestLine.length < 2 || !"GET".equals(requestLine[0]))
+        {
+            sendResponse(key, c, "405 Method Not Allowed", "text/plain", "only GET is supported");
+            return;
+        }
+        String path = requestLine[1];
+        String query = "";
+        if (path.indexOf('?') >= 0)
+        {
+            query = path.substring(path.indexOf('?') + 1);
+            path = path.substring(0, path.indexOf('?'));
+        }
+        if (!isAuthorized(getCredential(header, query)))
+        {
+            logger.info("HTTP request from " + c.socket.getRemoteAddress() + " denied");
+            sendResponse(key, c, "401 Unauthorized", "text/plain", "password or session token required");
+            return;
+        }
+        if (STATE_PATH.equals(path))
+        {
+            sendResponse(key, c, "200 OK", "application/json; charset=utf-8", getStateJson());
+        }
+        else if (EVENTS_PATH.equals(path))
+        {
+            logger.info("HTTP event subscriber " + c.socket.getRemoteAddress() + " connected");
+            c.subscriber = true;
+            c.output.add(toBuffer("HTTP/1.1 200 OK\r\n"
+                    + "Content-Type: text/event-stream\r\n"
+                    + "Cache-Control: no-cache\r\n"
+                    + corsHeaders
+                    + "Connection: keep-alive\r\n\r\n"
+                    + "retry: 5000\n\n"
+                    + "event: snapshot\ndata: " + getStateJson() + "\n\n"));
+            subscribers.add(c);
+            subscriberNumber = subscribers.size();
+            processWrite(key, c);
+        }
+        else
+        {
+            sendResponse(key, c, "404 Not Found", "text/plain", "not found");
+        }
+    }
+
+    private void sendResponse(SelectionKey key, Connection c, String status, String contentType, String body)
+            throws IOException
+    {
+        final byte[] content = body.getBytes(StandardCharsets.UTF_8);
+        c.output.add(toBuffer("HTTP/1.1 " + status + "\r\n"
+                + "Content-Type: " + contentType + "\r\n"
+                + "Content-Length: " + content.length + "\r\n"
+                + "Cache-Control: no-cache\r\n"
+                + corsHeaders
+                + "Connection: close\r\n\r\n"));
+        c.output.add(ByteBuffer.wrap(content));
+        c.closeAfterWrite = true;
+        processWrite(key, c);
+    }
+
+    /**
+     * Returns the bearer token of the Authorization header or the token query parameter, or null
+     */
+    private static String getCredential(String header, String query)
+    {
+        for (String line : header.split("\r\n"))
+        {
+            if (line.regionMatches(true, 0, AUTHORIZATION_HEADER, 0, AUTHORIZATION_HEADER.length()))
+            {
+                final String value = line.substring(AUTHORIZATION_HEADER.length()).trim();
+                if (value.regionMatches(true, 0, BEARER, 0, BEARER.length()))
+                {
+                    return value.substring(BEARER.length()).trim();
+                }
+            }
+        }
+        for (String parameter : query.split("&"))
+        {
+            if (parameter.startsWith(TOKEN_PARAMETER))
+            {
+                try
+                {
+                    return URLDecoder.decode(parameter.substring(TOKEN_PARAMETER.length()), "UTF-8");
+                }
+                catch (UnsupportedEncodingException | IllegalArgumentException e)
+                {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The same credentials as for the client login are accepted: the server password or the
+     * token of a valid session
+     */
+    private boolean isAuthorized(String credential)
+    {
+        if (credential == null)
+        {
+            return false;
+        }
+        return Config.getPassword().equals(credential)
+                || (clientAppManager != null && clientAppManager.getSessionManager().isValid(credential));
+    }
+
+    private void processWrite(SelectionKey key, Connection c) throws IOException
+    {
+        while (!c.output.isEmpty())
+        {
+            final ByteBuffer b = c.output.peek();
+            c.socket.write(b);
+            if (b.hasRemaining())
+            {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            c.output.poll();
+        }
+        if (c.closeAfterWrite)
+        {
+            close(key, c);
+            return;
+        }
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    /**
+     * Hands the published events over to all subscribers. Each subscriber gets its own view
+     * of the shared buffer; a subscriber that can not keep up is disconnected
+     */
+    private void distributeEvents()
+    {
+        ByteBuffer event;
+        while ((event = events.poll()) != null)
+        {
+            for (Connection c : new ArrayList<>(subscribers))
+            {
+                final SelectionKey key = c.socket.keyFor(selector);
+                if (key == null || !key.isValid())
+                {
+                    continue;
+                }
+                if (c.output.size() >= MAX_PENDING_EVENTS)
+                {
+                    logger.warning("HTTP event subscriber is too slow, disconnected");
+                    close(key, c);
+                    continue;
+                }
+                c.output.add(event.duplicate());
+                try
+                {
+                    processWrite(key, c);
+                }
+                catch (IOException e)
+                {
+                    close(key, c);
+                }
+            }
+        }
+    }
+
+    private void close(SelectionKey key, Connection c)
+    {
+        key.cancel();
+        if (c.subscriber && subscribers.remove(c))
+        {
+            subscriberNumber = subscribers.size();
+            logger.info("HTTP event subscriber disconnected");
+        }
+        connectionNumber--;
+        try
+        {
+            c.socket.close();
+        }
+        catch (IOException e)
+        {
+            // nothing to do
+        }
+    }
+
+    private String getStateJson()
+    {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("{\"configVersion\":");
+        appendString(sb, stateManager.getConfigVersion());
+        sb.append(",\"stateVersion\":").append(stateManager.getStateVersion());
+        sb.append(",\"devices\":[");
+        boolean first = true;
+        for (DeviceState d : stateManager.getDevices().values())
+        {
+            if (!first)
+            {
+                sb.append(',');
+            }
+            appendDevice(sb, d, stateManager.getDeviceVersion(d.getId()));
+            first = false;
+        }
+        sb.append(']');
+        final Message serverState = stateManager.getServerStateMsg();
+        if (serverState != null)
+        {
+            sb.append(",\"serverState\":");
+            appendServerState(sb, serverState);
+        }
+        sb.append('}');
+        return sb.toString();
+    }
+
+    /**
+     * Appends the label and value pairs of a SERVER_STATE message as JSON array
+     */
+    private static void appendServerState(StringBuilder sb, Message m)
+    {
+        sb.append('[');
+        for (int i = 0; i + 1 < m.getParameterCount(); i += 2)
+        {
+            if (i > 0)
+            {
+                sb.append(',');
+            }
+            sb.append("{\"label\":");
+            appendString(sb, m.getParameter(i));
+            sb.append(",\"value\":");
+            appendString(sb, m.getParameter(i + 1));
+            sb.append('}');
+        }
+        sb.append(']');
+    }
+
+    private static void appendDevice(StringBuilder sb, DeviceState d, long version)
+    {
+        final DeviceConfig c = d.getConfig();
+        sb.append("{\"id\":").append(c.getId());
+        sb.append(",\"type\":");
+        appendString(sb, c.getType());
+        sb.append(",\"model\":");
+        appendString(sb, c.getModel());
+        sb.append(",\"floor\":");
+        appendString(sb, c.getFloor());
+        sb.append(",\"room\":");
+        appendString(sb, c.getRoom());
+        sb.append(",\"position\":");
+        appendString(sb, c.getPosition());
+        sb.append(",\"alarm\":").append(d.isAlarm());
+        sb.append(",\"alarmTime\":");
+        appendString(sb, d.getAlarmTime());
+        sb.append(",\"battery\":");
+        appendString(sb, d.getBatteryState());
+        sb.append(",\"warnings\":[");
+        for (int i = 0; i < d.getWarnings().size(); i++)
+        {
+            if (i > 0)
+            {
+                sb.append(',');
+            }
+            appendString(sb, d.getWarnings().get(i).toString());
+        }
+        sb.append("],\"flapCount\":").append(d.getFlapCount());
+        sb.append(",\"version\":").append(version).append('}');
+    }
+
+    private static void appendString(StringBuilder sb, String s)
+    {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++)
+        {
+            final char ch = s.charAt(i);
+            switch (ch)
+            {
+            case '"':
+                sb.append("\\\"");
+                break;
+            case '\\':
+                sb.append("\\\\");
+                break;
+            case '\n':
+                sb.append("\\n");
+                break;
+            case '\r':
+                sb.append("\\r");
+                break;
+            case '\t':
+                sb.append("\\t");
+                break;
+            default:
+                if (ch < 0x20)
+                {
+                    sb.append(String.format("\\u%04x", (int) ch));
+                }
+                else
+                {
+                    sb.append(ch);
+                }
+            }
+        }
+        sb.append('"');
+    }
+
+    private static ByteBuffer toBuffer(String s)
+    {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    }
+}
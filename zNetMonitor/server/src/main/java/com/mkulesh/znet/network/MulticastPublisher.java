@@ -0,0 +1,123 @@
+/*
+ * stm32WindowSensor: RF window sensors: STM32L + RFM69 + Android
+ *
+ * Copyright (C) 2019. Mikhail Kulesh
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details. You should have received a copy of the GNU General
+ * Public License along with this program.
+ */
+
+package com.mkulesh.znet.network;
+
+import com.mkulesh.znet.StateManager;
+import com.mkulesh.znet.common.AdvancedEncryptionStandard;
+import com.mkulesh.znet.common.CustomLogger;
+import com.mkulesh.znet.common.Datagram;
+import com.mkulesh.znet.common.Message;
+import com.mkulesh.znet.common.SubscriptionFilter;
+import com.mkulesh.znet.scheduler.Scheduler;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Optional UDP multicast channel: each device state change is published as one encrypted,
+ * sequence-numbered datagram, and the full state is published periodically as a beacon.
+ * The cost of the channel does not depend on the number of receivers.
+ */
+public class MulticastPublisher
+{
+    private final Logger logger;
+    private final StateManager stateManager;
+    private final InetSocketAddress group;
+    private final AdvancedEncryptionStandard encryptor;
+    private long sequence = 0;
+    private volatile DatagramChannel channel = null;
+
+    public MulticastPublisher(Logger logger, StateManager stateManager, String group, int port, String key)
+    {
+        this.logger = logger;
+        this.stateManager = stateManager;
+        this.group = new InetSocketAddress(group, port);
+        this.encryptor = new AdvancedEncryptionStandard(key);
+    }
+
+    public void start(Scheduler scheduler, String networkInterface, int ttl, int beaconInterval)
+    {
+        try
+        {
+            final InetAddress address = group.getAddress();
+            if (address == null || !address.isMulticastAddress())
+            {
+                throw new IOException("invalid multicast group " + group);
+            }
+            channel = DatagramChannel.open(address.getAddress().length == 4 ?
+                    StandardProtocolFamily.INET : StandardProtocolFamily.INET6);
+            final NetworkInterface ni = NetworkInterface.getByName(networkInterface);
+            if (ni != null)
+            {
+                channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, ni);
+            }
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, ttl);
+            scheduler.scheduleAtFixedRate(this::sendBeacon, 0, beaconInterval, true);
+            logger.log(Level.INFO, "multicast service " + group + " is ready", CustomLogger.ADD_TO_CONSOLE);
+        }
+        catch (Exception e)
+        {
+            logger.log(Level.SEVERE, "can not open multicast channel " + group, e);
+            channel = null;
+        }
+    }
+
+    /**
+     * Called on each device state change
+     */
+    public void publishDeviceState(Message m)
+    {
+        send(m);
+    }
+
+    /**
+     * Called from the scheduler: publishes the full state
+     */
+    private void sendBeacon()
+    {
+        send(stateManager.getSnapshot(SubscriptionFilter.ALL));
+    }
+
+    private synchronized void send(Message m)
+    {
+        if (channel == null)
+        {
+            return;
+        }
+        try
+        {
+            final byte[] data = Datagram.encode(++sequence, m, encryptor);
+            if (data.length > Datagram.MAX_DATAGRAM_SIZE)
+            {
+                logger.warning("multicast message is too large: " + data.length + " bytes");
+                return;
+            }
+            channel.send(ByteBuffer.wrap(data), group);
+        }
+        catch (Exception e)
+        {
+            logger.log(Level.SEVERE, "can not send multicast message", e);
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * stm32WindowSensor: RF window sensors: STM32L + RFM69 + Android
+ *
+ * Copyright (C) 2019. Mikhail Kulesh
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details. You should have received a copy of the GNU General
+ * Public License along with this program.
+ */
+
+package com.mkulesh.znet.network;
+
+import com.mkulesh.znet.common.Message;
+import com.mkulesh.znet.metrics.Metrics;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Outbound message queue of a client with one FIFO per priority level. The highest non-empty
+ * level is served first; to prevent starvation, a level yields one message to the lower levels
+ * after it has sent its weight of messages in a row while a lower level was waiting.
+ *
+ * The initial dump (session, configuration, state and snapshot) is sent in the BULK level and
+ * keeps its order. A live state change is always queued in its own level and may overtake the
+ * dump; an older state of the same device that is still part of the dump, for example within a
+ * SNAPSHOT, is recognized by the client from its state version.
+ */
+public class OutboundQueue
+{
+    public enum Priority
+    {
+        // state changes of the alarm flag
+        ALARM(16),
+        // other live state changes
+        STATE(8),
+        // initial dump, configuration and server state
+        BULK(4),
+        HEARTBIT(0);
+
+        private final int weight;
+
+        Priority(int weight)
+        {
+            this.weight = weight;
+        }
+    }
+
+    private final static Priority[] LEVELS = Priority.values();
+
+    /**
+     * A message waiting for sending and the time (System.nanoTime) it was queued. A queued state
+     * may be replaced by a newer state of the same device
+     */
+    static class Entry
+    {
+        Message message;
+        final long time;
+        final Priority priority;
+
+        Entry(Message message, Priority priority)
+        {
+            this.message = message;
+            this.priority = priority;
+            this.time = System.nanoTime();
+        }
+    }
+
+    private final int capacity;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final List<ArrayDeque<Entry>> levels = new ArrayList<>(LEVELS.length);
+    private final int[] burst = new int[LEVELS.length];
+    private int size = 0;
+
+    OutboundQueue(int capacity)
+    {
+        this.capacity = capacity;
+        for (int i = 0; i < LEVELS.length; i++)
+        {
+            levels.add(new ArrayDeque<>());
+        }
+    }
+
+    /**
+     * Queues the message with the given priority. Returns false if the queue is full. On success,
+     * the queue holds the given reference of a pooled message
+     */
+    boolean offer(Message m, Priority priority)
+    {
+        lock.lock();
+        try
+        {
+            if (m.getType() == Message.Type.DEVICE_STATE && priority.compareTo(Priority.BULK) < 0
+                    && replaceState(m, priority))
+            {
+                return true;
+            }
+            if (size >= capacity)
+            {
+                return false;
+            }
+            levels.get(priority.ordinal()).addLast(new Entry(m, priority));
+            size++;
+            notEmpty.signal();
+            return true;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A live state replaces the queued live state of the same device in place if it is queued in
+     * the same or a higher level; a queued live state of a lower level is removed. A state queued
+     * in the BULK level keeps its place in the dump and only gets the newer message, so that the
+     * dump does not restore an older state. Returns true if the state is replaced in place
+     */
+    private boolean replaceState(Message m, Priority priority)
+    {
+        final int id = m.getInt(0);
+        boolean replaced = false;
+        for (ArrayDeque<Entry> level : levels)
+        {
+            for (Iterator<Entry> it = level.iterator(); it.hasNext(); )
+            {
+                final Entry e = it.next();
+                if (e.message.getType() != Message.Type.DEVICE_STATE || e.message.getInt(0) != id)
+                {
+                    continue;
+                }
+                Metrics.CLIENT_REPLACED_STATES.increment();
+                e.message.recycle();
+                if (e.priority == Priority.BULK)
+                {
+                    e.message = m.retain();
+                }
+                else if (e.priority.compareTo(priority) <= 0)
+                {
+                    e.message = m;
+                    replaced = true;
+                }
+                else
+                {
+                    it.remove();
+                    size--;
+                }
+            }
+        }
+        return replaced;
+    }
+
+    /**
+     * Waits for the next message to be sent
+     */
+    Entry take() throws InterruptedException
+    {
+        lock.lockInterruptibly();
+        try
+        {
+            while (size == 0)
+            {
+                notEmpty.await();
+            }
+            return dequeue();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the next message to be sent, or null if the queue is empty
+     */
+    Entry poll()
+    {
+        lock.lock();
+        try
+        {
+            return size == 0 ? null : dequeue();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private Entry dequeue()
+    {
+        // number of messages waiting in the levels below the current one
+        int lower = size;
+        for (int i = 0; i < LEVELS.length; i++)
+        {
+            final ArrayDeque<Entry> level = levels.get(i);
+            lower -= level.size();
+            if (level.isEmpty())
+            {
+                burst[i] = 0;
+                continue;
+            }
+            if (burst[i] >= LEVELS[i].weight && lower > 0)
+            {
+                // a lower level is waiting: this level yields one message
+                burst[i] = 0;
+                continue;
+            }
+            burst[i]++;
+            final Entry e = level.pollFirst();
+            size--;
+            return e;
+        }
+        return null;
+    }
+
+    int size()
+    {
+        lock.lock();
+        try
+        {
+            return size;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    boolean isEmpty()
+    {
+        return size() == 0;
+    }
+
+    /**
+     * Returns the queue time (System.nanoTime) of the oldest waiting message, or 0 if the queue is empty
+     */
+    long getOldestTime()
+    {
+        lock.lock();
+        try
+        {
+            long oldest = 0;
+            for (ArrayDeque<Entry> level : levels)
+            {
+                final Entry e = level.peekFirst();
+                if (e != null && (oldest == 0 || e.time - oldest < 0))
+                {
+                    oldest = e.time;
+                }
+            }
+            return oldest;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+}
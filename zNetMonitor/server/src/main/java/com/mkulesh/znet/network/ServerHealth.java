@@ -0,0 +1,137 @@
+/*
+ * stm32WindowSensor: RF window sensors: STM32L + RFM69 + Android
+ *
+ * Copyright (C) 2019. Mikhail Kulesh
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details. You should have received a copy of the GNU General
+ * Public License along with this program.
+ */
+
+package com.mkulesh.znet.network;
+
+import com.mkulesh.znet.common.Message;
+import com.mkulesh.znet.metrics.Metrics;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Health of the server process itself: heap, garbage collection and threads of the JVM, the
+ * connected clients, the sensor frames received during the last minute and the age of the
+ * oldest message not yet written to a client. Only called from the server state sampler.
+ *
+ * The health values are always the last PAIRS label and value pairs of a SERVER_STATE message:
+ * first the JVM values, then the counters.
+ */
+public class ServerHealth
+{
+    // number of label and value pairs added to the SERVER_STATE message
+    public final static int PAIRS = 6;
+
+    private final static long FRAME_WINDOW = TimeUnit.MINUTES.toNanos(1);
+    private final static long MB = 1024 * 1024;
+
+    private final ClientAppManager clientAppManager;
+
+    // samples of the received frame counter during the last minute: time and count
+    private final ArrayDeque<long[]> frameSamples = new ArrayDeque<>();
+
+    public ServerHealth(ClientAppManager clientAppManager)
+    {
+        this.clientAppManager = clientAppManager;
+    }
+
+    /**
+     * Adds the JVM values as label and value pairs to the given SERVER_STATE message. These
+     * values are expensive to read and are therefore sampled with a longer interval
+     */
+    void addJvmValuesTo(Message m)
+    {
+        final MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        final long heapMax = heap.getMax() > 0 ? heap.getMax() : heap.getCommitted();
+        m.addParameter("Heap");
+        m.addParameter(heap.getUsed() / MB + "/" + heapMax / MB + " MB");
+
+        long gcCount = 0;
+        long gcTime = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+        {
+            gcCount += Math.max(0, gc.getCollectionCount());
+            gcTime += Math.max(0, gc.getCollectionTime());
+        }
+        m.addParameter("GC");
+        m.addParameter(gcCount + " (" + gcTime + " ms)");
+
+        m.addParameter("Threads");
+        m.addParameter(Integer.toString(ManagementFactory.getThreadMXBean().getThreadCount()));
+    }
+
+    /**
+     * Adds the counters as label and value pairs to the given SERVER_STATE message. These values
+     * are cheap to read and are sampled for each published message
+     */
+    void addCountersTo(Message m)
+    {
+        m.addParameter("Clients");
+        m.addParameter(Integer.toString(clientAppManager == null ? 0 : clientAppManager.getClientNumber()));
+
+        m.addParameter("Frames/min");
+        m.addParameter(Long.toString(getFramesLastMinute()));
+
+        final long oldest = clientAppManager == null ? 0 : clientAppManager.getOldestMessageAge();
+        m.addParameter("Oldest unsent");
+        m.addParameter(TimeUnit.NANOSECONDS.toMillis(oldest) + " ms");
+    }
+
+    /**
+     * Returns a copy of the given SERVER_STATE message without the trailing health values, as
+     * expected by the legacy clients
+     */
+    public static Message withoutHealth(Message m)
+    {
+        final Message res = new Message(Message.Type.SERVER_STATE);
+        final int end = Math.max(0, m.getParameterCount() - 2 * PAIRS);
+        for (int i = 0; i < end; i++)
+        {
+            res.addParameter(m.getParameter(i));
+        }
+        return res;
+    }
+
+    /**
+     * Returns the number of frames received per minute. The rate is measured since the newest
+     * sample that is at least one minute old, or since the oldest sample if there is none yet,
+     * and scaled to one minute
+     */
+    private long getFramesLastMinute()
+    {
+        final long now = System.nanoTime();
+        final long count = Metrics.FRAMES_RECEIVED.getCount();
+        frameSamples.addLast(new long[]{ now, count });
+        // the oldest sample is only dropped if the next one also covers the whole minute
+        while (frameSamples.size() > 1 && now - getSecondSample()[0] >= FRAME_WINDOW)
+        {
+            frameSamples.removeFirst();
+        }
+        final long[] first = frameSamples.peekFirst();
+        final long elapsed = now - first[0];
+        return elapsed <= 0 ? 0 : Math.round((double) (count - first[1]) * FRAME_WINDOW / elapsed);
+    }
+
+    private long[] getSecondSample()
+    {
+        final Iterator<long[]> it = frameSamples.iterator();
+        it.next();
+        return it.next();
+    }
+}
@@ -18,76 +18,182 @@ package com.mkulesh.znet.network;
 import com.mkulesh.znet.Config;
 import com.mkulesh.znet.common.CustomLogger;
 import com.mkulesh.znet.common.Message;
+import com.mkulesh.znet.metrics.Metrics;
+import com.mkulesh.znet.scheduler.Scheduler;
+import com.mkulesh.znet.telemetry.HwmonSource;
+import com.mkulesh.znet.telemetry.IpmiToolSource;
+import com.mkulesh.znet.telemetry.ProcSource;
+import com.mkulesh.znet.telemetry.TelemetrySource;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.nio.file.FileStore;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * Server telemetry: the configured sensors of the telemetry sources, the disk usage and the
+ * health of the server process. The values are sampled in the background with a fixed interval;
+ * all clients share the cached SERVER_STATE message, which is replaced as a whole and never
+ * modified after it is published.
+ *
+ * Only a change of the sensors or the disk usage publishes a new message. The health values
+ * change with almost every sample: the JVM values are only refreshed with their own, longer
+ * interval, while the counters are sampled for each published message.
+ */
 public class ServerState
 {
     private final Logger logger;
+    private volatile Message message = null;
+    // the sensors and the disk usage without the health values, as expected by the legacy clients
+    private volatile Message legacyMessage = null;
+
+    // sampler state
+    private final ArrayList<TelemetrySource> sources = new ArrayList<>();
+    private final HashMap<String, String> sensorData = new HashMap<>();
+    private String lastEncoded = null;
+    private boolean sensorsFailed = false;
+    private ServerHealth health = null;
+    private long healthInterval = 0;
+    private long lastHealthTime = 0;
+    // the last sampled JVM values as label and value pairs
+    private Message jvmValues = new Message(Message.Type.SERVER_STATE);
 
     public ServerState(Logger logger)
     {
         this.logger = logger;
     }
 
-    private HashMap<String, String> readSensors()
+    /**
+     * Starts the background sampling. The listener is called from the sampler with the new
+     * message and its legacy form each time the server state has changed and each time the
+     * JVM values are refreshed
+     *
+     * @param healthInterval refresh interval of the JVM values in milliseconds
+     */
+    public void start(Scheduler scheduler, int interval, int healthInterval, ServerHealth health,
+                      BiConsumer<Message, Message> listener)
     {
-        HashMap<String, String> sensorData = new HashMap<>();
-        Runtime rt = java.lang.Runtime.getRuntime();
-        try
+        this.health = health;
+        this.healthInterval = TimeUnit.MILLISECONDS.toNanos(healthInterval);
+        for (String name : Config.getServerStateSources())
         {
-            Process p = rt.exec(Config.SENSOR_READING_CMD);
-            p.waitFor();
-            InputStream is = p.getInputStream();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(is));
-            String s;
-            while ((s = reader.readLine()) != null)
+            final TelemetrySource source = createSource(name);
+            if (source != null)
             {
-                String[] tockens = s.split(Config.SENSOR_DATA_SEPARATOR);
-                if (tockens.length > 2)
+                sources.add(source);
+            }
+        }
+        scheduler.scheduleAtFixedRate(() -> sample(listener), 0, interval, true);
+    }
+
+    /**
+     * Returns the cached server state, or null if it is not yet sampled or the sensors can not
+     * be read
+     */
+    public Message getServerStateMsg()
+    {
+        return message;
+    }
+
+    /**
+     * Returns the cached server state without the health values, or null
+     */
+    public Message getLegacyServerStateMsg()
+    {
+        return legacyMessage;
+    }
+
+    private TelemetrySource createSource(String name)
+    {
+        switch (name.toLowerCase(Locale.ENGLISH))
+        {
+        case "hwmon":
+            return new HwmonSource(logger, HwmonSource.DEFAULT_ROOT);
+        case "proc":
+            return new ProcSource(logger);
+        case "ipmitool":
+            return new IpmiToolSource(Config.SENSOR_READING_MIN_INTERVAL);
+        default:
+            logger.log(Level.SEVERE, "unknown server state source " + name);
+            return null;
+        }
+    }
+
+    private void sample(BiConsumer<Message, Message> listener)
+    {
+        final long start = System.nanoTime();
+        final Message base = readServerStateMsg();
+        final String encoded = base == null ? null : base.encode();
+        final boolean changed = encoded == null ? lastEncoded != null : !encoded.equals(lastEncoded);
+        final boolean healthDue = health != null
+                && (lastHealthTime == 0 || start - lastHealthTime >= healthInterval);
+        if (healthDue)
+        {
+            lastHealthTime = start;
+            jvmValues = new Message(Message.Type.SERVER_STATE);
+            health.addJvmValuesTo(jvmValues);
+        }
+        Metrics.SERVER_STATE_SAMPLE_TIME.recordSince(start);
+        if (!changed && !(healthDue && base != null))
+        {
+            return;
+        }
+        lastEncoded = encoded;
+        Message m = null;
+        if (base != null)
+        {
+            m = new Message(Message.Type.SERVER_STATE);
+            for (int i = 0; i < base.getParameterCount(); i++)
+            {
+                m.addParameter(base.getParameter(i));
+            }
+            if (health != null)
+            {
+                for (int i = 0; i < jvmValues.getParameterCount(); i++)
                 {
-                    try
-                    {
-                        final int val = (int) Float.parseFloat(tockens[1].trim());
-                        String dim = tockens[2].trim();
-                        if ("degrees C".equals(dim))
-                        {
-                            dim = "°C";
-                        }
-                        sensorData.put(tockens[0].trim(), Integer.toString(val) + dim);
-                    }
-                    catch (Exception e)
-                    {
-                        sensorData.put(tockens[0].trim(), tockens[1].trim());
-                    }
+                    m.addParameter(jvmValues.getParameter(i));
                 }
+                health.addCountersTo(m);
             }
-            is.close();
-            return sensorData;
         }
-        catch (Exception e)
+        legacyMessage = base;
+        message = m;
+        if (m != null)
         {
-            return null;
+            listener.accept(m, base);
         }
     }
 
-    public Message getServerStateMsg()
+    private Message readServerStateMsg()
     {
-        final HashMap<String, String> sensorData = readSensors();
-        if (sensorData == null)
+        // the sources are asked in the configured order until all sensors are found
+        sensorData.clear();
+        boolean available = Config.getServerSensorID().length == 0;
+        for (TelemetrySource source : sources)
         {
-            logger.log(Level.SEVERE, "can not read sensors state", CustomLogger.ADD_TO_CONSOLE);
+            if (available && containsAll(sensorData, Config.getServerSensorID()))
+            {
+                break;
+            }
+            available |= source.read(sensorData);
+        }
+        if (!available)
+        {
+            if (!sensorsFailed)
+            {
+                logger.log(Level.SEVERE, "can not read sensors state", CustomLogger.ADD_TO_CONSOLE);
+            }
+            sensorsFailed = true;
             return null;
         }
+        sensorsFailed = false;
         Message m = new Message(Message.Type.SERVER_STATE);
         for (String sensorId : Config.getServerSensorID())
         {
@@ -115,4 +221,15 @@ public class ServerState
         return m;
     }
 
+    private static boolean containsAll(HashMap<String, String> values, String[] ids)
+    {
+        for (String id : ids)
+        {
+            if (!values.containsKey(id))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
 }
@@ -0,0 +1,143 @@
+/*
+ * stm32WindowSensor: RF window sensors: STM32L + RFM69 + Android
+ *
+ * Copyright (C) 2019. Mikhail Kulesh
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details. You should have received a copy of the GNU General
+ * Public License along with this program.
+ */
+
+package com.mkulesh.znet.network;
+
+import com.mkulesh.znet.Config;
+import com.mkulesh.znet.common.Utils;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resumable client sessions. A session token is given to the client after a successful login;
+ * a reconnecting client presents it instead of the password and gets only the state changes
+ * it has not yet seen. A session is bound to the password that was valid when it was created,
+ * so that a changed password also ends the existing sessions.
+ */
+class SessionManager
+{
+    private static class Session
+    {
+        final String filter;
+        final byte[] passwordHash;
+        volatile long expiryTime;
+
+        Session(String filter, byte[] passwordHash, long expiryTime)
+        {
+            this.filter = filter;
+            this.passwordHash = passwordHash;
+            this.expiryTime = expiryTime;
+        }
+    }
+
+    private final SecureRandom random = new SecureRandom();
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+    private final long timeout;
+
+    SessionManager(long timeoutMillis)
+    {
+        this.timeout = timeoutMillis;
+    }
+
+    /**
+     * Creates a new session for the given subscription filter and returns its token
+     */
+    String createSession(String filter)
+    {
+        final byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        final String token = Utils.bb2hex(bytes).replaceAll("\\s", "");
+        sessions.put(token, new Session(filter, getPasswordHash(), System.currentTimeMillis() + timeout));
+        return token;
+    }
+
+    /**
+     * Checks that the session exists, is not expired and was created for the same filter.
+     * A valid session is prolonged
+     */
+    boolean isValid(String token, String filter)
+    {
+        final Session s = getValidSession(token);
+        return s != null && s.filter.equals(filter);
+    }
+
+    /**
+     * Checks that the session exists and is not expired, regardless of its filter. A valid
+     * session is prolonged
+     */
+    boolean isValid(String token)
+    {
+        return getValidSession(token) != null;
+    }
+
+    private Session getValidSession(String token)
+    {
+        if (token == null || token.isEmpty())
+        {
+            return null;
+        }
+        final Session s = sessions.get(token);
+        final long now = System.currentTimeMillis();
+        if (s == null || s.expiryTime < now)
+        {
+            return null;
+        }
+        if (!MessageDigest.isEqual(s.passwordHash, getPasswordHash()))
+        {
+            sessions.remove(token);
+            return null;
+        }
+        s.expiryTime = now + timeout;
+        return s;
+    }
+
+    /**
+     * Returns the hash of the current server password
+     */
+    private static byte[] getPasswordHash()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256").digest(Config.getPassword().getBytes(StandardCharsets.UTF_8));
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            // every Java platform supports SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Called periodically: removes the expired sessions
+     */
+    void removeExpired()
+    {
+        final long now = System.currentTimeMillis();
+        final Iterator<Map.Entry<String, Session>> it = sessions.entrySet().iterator();
+        while (it.hasNext())
+        {
+            if (it.next().getValue().expiryTime < now)
+            {
+                it.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * stm32WindowSensor: RF window sensors: STM32L + RFM69 + Android
+ *
+ * Copyright (C) 2019. Mikhail Kulesh
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details. You should have received a copy of the GNU General
+ * Public License along with this program.
+ */
+
+package com.mkulesh.znet.network;
+
+import com.mkulesh.znet.StateManager;
+import com.mkulesh.znet.common.AdvancedEncryptionStandard;
+import com.mkulesh.znet.common.BinaryCodec;
+import com.mkulesh.znet.common.CustomLogger;
+import com.mkulesh.znet.common.Message;
+import com.mkulesh.znet.common.MessageFramer;
+import com.mkulesh.znet.common.Utils;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Relay mode: connects to an upstream znet server as a regular client and mirrors its device
+ * configuration and state into the local state manager. The connection is re-established
+ * after a delay if it is lost.
+ */
+public class UpstreamClient implements Runnable
+{
+    private final static String CLIENT_NAME = "znet relay";
+    private final static int CONNECT_TIMEOUT = 5000;
+    private final static int READ_TIMEOUT = 30000;
+    private final static int RECONNECT_DELAY = 5000;
+    private final static byte[] HEARTBIT_MSG =
+            new Message(Message.Type.HEARTBIT).encode().getBytes(StandardCharsets.UTF_8);
+
+    private final Logger logger;
+    private final StateManager stateManager;
+    private final String server;
+    private final int port;
+    private final String password;
+    private final String filter;
+    private final Thread thread;
+    private final SecureRandom random = new SecureRandom();
+    private final AdvancedEncryptionStandard initialEncryptor = new AdvancedEncryptionStandard(Message.AES_KEY);
+    private AdvancedEncryptionStandard sessionEncryptor = null;
+
+    public UpstreamClient(Logger logger, StateManager stateManager, String server, int port, String password,
+                          String filter)
+    {
+        this.logger = logger;
+        this.stateManager = stateManager;
+        this.server = server;
+        this.port = port;
+        this.password = password;
+        this.filter = filter;
+        thread = new Thread(this, this.getClass().getSimpleName());
+    }
+
+    public void start()
+    {
+        thread.start();
+    }
+
+    @Override
+    public void run()
+    {
+        while (true)
+        {
+            try
+            {
+                communicate();
+            }
+            catch (Exception e)
+            {
+                logger.log(Level.SEVERE, "upstream server " + server + ":" + port + ": " + e.getLocalizedMessage(),
+                        CustomLogger.ADD_TO_CONSOLE);
+            }
+            stateManager.onUpstreamDisconnected();
+            try
+            {
+                Thread.sleep(RECONNECT_DELAY);
+            }
+            catch (InterruptedException e)
+            {
+                break;
+            }
+        }
+    }
+
+    private void communicate() throws Exception
+    {
+        try (Socket socket = new Socket())
+        {
+            socket.connect(new InetSocketAddress(server, port), CONNECT_TIMEOUT);
+            socket.setSoTimeout(READ_TIMEOUT);
+            logger.log(Level.INFO, "connected to upstream server " + server + ":" + port,
+                    CustomLogger.ADD_TO_CONSOLE);
+
+            final OutputStream output = socket.getOutputStream();
+            output.write(getLoginMessage());
+            output.flush();
+
+            final InputStream input = socket.getInputStream();
+            final MessageFramer framer = new MessageFramer(Message.SOCKET_BUFFER, Message.MAX_INPUT_BUFFER);
+            final byte[] buffer = new byte[Message.SOCKET_BUFFER];
+            while (true)
+            {
+                final int readedSize = input.read(buffer);
+                if (readedSize < 0)
+                {
+                    throw new Exception("connection closed");
+                }
+                framer.append(buffer, 0, readedSize);
+                while (framer.next())
+                {
+                    final Message m = decodeFrame(framer);
+                    if (m != null && m.getType() != Message.Type.HEARTBIT)
+                    {
+                        handleMessage(m);
+                    }
+                    if (m != null)
+                    {
+                        m.recycle();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The login message is always sent in the text protocol; the binary protocol is requested
+     * as for the Android client, and resume is never requested since the mirror is rebuilt after
+     * each reconnection
+     */
+    private byte[] getLoginMessage() throws Exception
+    {
+        final byte[] key = new byte[16];
+        random.nextBytes(key);
+        final String sessionKey = Utils.bb2hex(key).replaceAll("\\s", "");
+        sessionEncryptor = new AdvancedEncryptionStandard(sessionKey);
+
+        final Message login = new Message(Message.Type.CLIENT_LOGIN);
+        login.addParameter(CLIENT_NAME);
+        login.addParameter(password);
+        login.addParameter(sessionKey);
+        login.addParameter(Integer.toString(Message.PROTOCOL_BINARY));
+        login.addParameter(filter);
+        final String str = Message.START_TAG
+                + Base64.getEncoder().encodeToString(initialEncryptor.encrypt(login.encode()))
+                + Message.END_TAG;
+        return str.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private Message decodeFrame(MessageFramer framer)
+    {
+        try
+        {
+            if (framer.isBinaryFrame())
+            {
+                return BinaryCodec.decodeFrame(framer.getFrameData(), framer.getFrameOffset(),
+                        framer.getFrameLength(), sessionEncryptor);
+            }
+            if (framer.isFrameEqual(HEARTBIT_MSG))
+            {
+                return null;
+            }
+            final byte[] encrypted = Base64.getDecoder().decode(framer.getFrameString());
+            return new Message(sessionEncryptor.decrypt(encrypted));
+        }
+        catch (Exception e)
+        {
+            logger.log(Level.SEVERE, "can not decode upstream message", e);
+            return null;
+        }
+    }
+
+    private void handleMessage(Message m) throws Exception
+    {
+        if (m.getType() != Message.Type.SNAPSHOT)
+        {
+            logger.info("upstream message: " + m.toString());
+        }
+        stateManager.handleUpstreamMessage(m);
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * stm32WindowSensor: RF window sensors: STM32L + RFM69 + Android
+ *
+ * Copyright (C) 2019. Mikhail Kulesh
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details. You should have received a copy of the GNU General
+ * Public License along with this program.
+ */
+
+package com.mkulesh.znet.scheduler;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Shared scheduler for all periodic server work, based on a hashed timing wheel.
+ *
+ * Tasks are hashed into wheel buckets by their deadline tick. A single thread processes the
+ * due buckets and sleeps until the next tick that contains a due task, or until a new task is
+ * scheduled; an empty wheel causes no wake-ups at all. Tasks are executed on the wheel thread
+ * and must be short; tasks that may block are executed on worker threads. Each blocking task
+ * runs on its own worker while it executes, so that a slow task (for example the telemetry
+ * sampling) does not delay another one (for example the serial polling); the executions of
+ * the same task never overlap.
+ */
+public class Scheduler implements Runnable
+{
+    /**
+     * Handle of a scheduled task
+     */
+    public static class Timeout
+    {
+        private final Runnable task;
+        private final long periodTicks;
+        private final boolean blocking;
+        private long deadlineTick;
+        private volatile boolean cancelled = false;
+        private volatile boolean executing = false;
+        private Timeout next = null;
+
+        private Timeout(Runnable task, long periodTicks, boolean blocking)
+        {
+            this.task = task;
+            this.periodTicks = periodTicks;
+            this.blocking = blocking;
+        }
+
+        public void cancel()
+        {
+            cancelled = true;
+        }
+
+        public boolean isCancelled()
+        {
+            return cancelled;
+        }
+    }
+
+    private final Logger logger;
+    private final long tickNanos;
+    private final Timeout[] wheel;
+    private final int mask;
+    private final ConcurrentLinkedQueue<Timeout> newTimeouts = new ConcurrentLinkedQueue<>();
+    private final ExecutorService blockingExecutor;
+    private final AtomicInteger workerNumber = new AtomicInteger(0);
+    private final Thread thread;
+    private final Object lock = new Object();
+    private final long startTime;
+    private long currentTick = 0;
+    private int timeoutNumber = 0;
+    private volatile boolean running = false;
+
+    public Scheduler(Logger logger, int tickMillis, int wheelSize)
+    {
+        this.logger = logger;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        int size = 1;
+        while (size < wheelSize)
+        {
+            size <<= 1;
+        }
+        this.wheel = new Timeout[size];
+        this.mask = size - 1;
+        // the number of workers is limited by the number of blocking tasks, since a task is
+        // not executed again while its previous execution is still running
+        this.blockingExecutor = Executors.newCachedThreadPool(
+                r -> new Thread(r, "scheduler worker " + workerNumber.incrementAndGet()));
+        this.thread = new Thread(this, this.getClass().getSimpleName());
+        this.thread.setDaemon(true);
+        this.startTime = System.nanoTime();
+    }
+
+    public void start()
+    {
+        running = true;
+        thread.start();
+    }
+
+    public void stop()
+    {
+        running = false;
+        synchronized (lock)
+        {
+            lock.notifyAll();
+        }
+        blockingExecutor.shutdown();
+    }
+
+    /**
+     * Executes the task once after the given delay
+     */
+    public Timeout schedule(Runnable task, long delayMillis)
+    {
+        return add(new Timeout(task, 0, false), delayMillis);
+    }
+
+    /**
+     * Executes the task periodically. If blocking is set, the task is executed on a worker
+     * thread instead of the wheel thread
+     */
+    public Timeout scheduleAtFixedRate(Runnable task, long initialDelayMillis, long periodMillis, boolean blocking)
+    {
+        final long periodTicks = Math.max(1, TimeUnit.MILLISECONDS.toNanos(periodMillis) / tickNanos);
+        return add(new Timeout(task, periodTicks, blocking), initialDelayMillis);
+    }
+
+    private Timeout add(Timeout t, long delayMillis)
+    {
+        final long deadline = System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        t.deadlineTick = (deadline + tickNanos - 1) / tickNanos;
+        newTimeouts.add(t);
+        synchronized (lock)
+        {
+            lock.notify();
+        }
+        return t;
+    }
+
+    @Override
+    public void run()
+    {
+        while (running)
+        {
+            transferNewTimeouts();
+            final long tick = (System.nanoTime() - startTime) / tickNanos;
+            while (currentTick <= tick)
+            {
+                expireTimeouts(currentTick);
+                currentTick++;
+            }
+            transferNewTimeouts();
+            final long nextTick = findNextDeadlineTick();
+            synchronized (lock)
+            {
+                if (!running || !newTimeouts.isEmpty())
+                {
+                    continue;
+                }
+                try
+                {
+                    if (nextTick < 0)
+                    {
+                        lock.wait();
+                    }
+                    else
+                    {
+                        final long waitNanos = nextTick * tickNanos - (System.nanoTime() - startTime);
+                        if (waitNanos > 0)
+                        {
+                            TimeUnit.NANOSECONDS.timedWait(lock, waitNanos);
+                        }
+                    }
+                }
+                catch (InterruptedException e)
+                {
+                    break;
+                }
+            }
+        }
+    }
+
+    private void transferNewTimeouts()
+    {
+        Timeout t;
+        while ((t = newTimeouts.poll()) != null)
+        {
+            if (!t.cancelled)
+            {
+                insert(t);
+            }
+        }
+    }
+
+    private void insert(Timeout t)
+    {
+        // a task whose deadline has already passed is executed on the next tick
+        t.deadlineTick = Math.max(t.deadlineTick, currentTick);
+        final int idx = (int) (t.deadlineTick & mask);
+        t.next = wheel[idx];
+        wheel[idx] = t;
+        timeoutNumber++;
+    }
+
+    private void expireTimeouts(long tick)
+    {
+        final int idx = (int) (tick & mask);
+        Timeout t = wheel[idx];
+        wheel[idx] = null;
+        while (t != null)
+        {
+            final Timeout next = t.next;
+            t.next = null;
+            timeoutNumber--;
+            if (t.cancelled)
+            {
+                // nothing to do
+            }
+            else if (t.deadlineTick > tick)
+            {
+                // due in one of the next wheel rotations
+                reinsert(t, idx);
+            }
+            else
+            {
+                execute(t);
+                if (t.periodTicks > 0 && !t.cancelled)
+                {
+                    t.deadlineTick = tick + t.periodTicks;
+                    insert(t);
+                }
+            }
+            t = next;
+        }
+    }
+
+    private void reinsert(Timeout t, int idx)
+    {
+        t.next = wheel[idx];
+        wheel[idx] = t;
+        timeoutNumber++;
+    }
+
+    private void execute(final Timeout t)
+    {
+        if (t.blocking)
+        {
+            // a blocking task is skipped while its previous execution is still running
+            if (t.executing)
+            {
+                return;
+            }
+            t.executing = true;
+            try
+            {
+                blockingExecutor.execute(() ->
+                {
+                    runTask(t);
+                    t.executing = false;
+                });
+            }
+            catch (Exception e)
+            {
+                t.executing = false;
+                logger.log(Level.SEVERE, "can not execute scheduled task", e);
+            }
+        }
+        else
+        {
+            runTask(t);
+        }
+    }
+
+    private void runTask(Timeout t)
+    {
+        try
+        {
+            t.task.run();
+        }
+        catch (Exception e)
+        {
+            logger.log(Level.SEVERE, "scheduled task failed", e);
+        }
+    }
+
+    /**
+     * Searches the wheel for the nearest deadline, at most one rotation ahead.
+     * Returns -1 if the wheel is empty
+     */
+    private long findNextDeadlineTick()
+    {
+        if (timeoutNumber == 0)
+        {
+            return -1;
+        }
+        for (long tick = currentTick; tick < currentTick + wheel.length; tick++)
+        {
+            for (Timeout t = wheel[(int) (tick & mask)]; t != null; t = t.next)
+            {
+                if (t.deadlineTick <= tick && !t.cancelled)
+                {
+                    return tick;
+                }
+            }
+        }
+        return currentTick + wheel.length;
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * stm32WindowSensor: RF window sensors: STM32L + RFM69 + Android
+ *
+ * Copyright (C) 2019. Mikhail Kulesh
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details. You should have received a copy of the GNU General
+ * Public License along with this program.
+ */
+
+package com.mkulesh.znet.serial;
+
+/**
+ * Flap detection of one sensor: the times of the last alarm transitions are kept in a ring.
+ * The sensor starts flapping if the given number of transitions happens within the window,
+ * and stops flapping if no transition happens during the quiet period. All times are in
+ * milliseconds.
+ */
+class FlapDetector
+{
+    private final long[] transitions;
+    private int next = 0;
+    private int size = 0;
+
+    private boolean flapping = false;
+    private int flapCount = 0;
+    private long lastTransition = 0;
+    private long lastPublish = 0;
+
+    FlapDetector(int threshold)
+    {
+        transitions = new long[threshold];
+    }
+
+    /**
+     * Registers an alarm transition. Returns true if the sensor starts flapping with it
+     */
+    boolean onTransition(long now, long window)
+    {
+        lastTransition = now;
+        if (flapping)
+        {
+            flapCount++;
+            return false;
+        }
+        transitions[next] = now;
+        next = (next + 1) % transitions.length;
+        size = Math.min(size + 1, transitions.length);
+        // the oldest stored transition is the next one to be overwritten
+        if (size == transitions.length && now - transitions[next] <= window)
+        {
+            flapping = true;
+            flapCount = size;
+            lastPublish = now;
+            return true;
+        }
+        return false;
+    }
+
+    boolean isFlapping()
+    {
+        return flapping;
+    }
+
+    int getFlapCount()
+    {
+        return flapCount;
+    }
+
+    /**
+     * While the sensor is flapping, its state is published at most once per window
+     */
+    boolean isPublishDue(long now, long window)
+    {
+        if (flapping && now - lastPublish >= window)
+        {
+            lastPublish = now;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the sensor stops flapping since the quiet period has elapsed
+     */
+    boolean checkQuiet(long now, long quietPeriod)
+    {
+        if (!flapping || now - lastTransition < quietPeriod)
+        {
+            return false;
+        }
+        flapping = false;
+        flapCount = 0;
+        size = 0;
+        next = 0;
+        return true;
+    }
+}
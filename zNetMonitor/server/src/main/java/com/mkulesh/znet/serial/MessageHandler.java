@@ -21,39 +21,228 @@ import com.mkulesh.znet.common.CustomLogger;
 import com.mkulesh.znet.common.DeviceState;
 import com.mkulesh.znet.common.DeviceState.Warning;
 import com.mkulesh.znet.common.Utils;
+import com.mkulesh.znet.eventlog.Event;
+import com.mkulesh.znet.eventlog.EventLog;
+import com.mkulesh.znet.metrics.Metrics;
 
 import java.text.DecimalFormat;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * Processing of the sensor frames as a pipeline of single-threaded stages connected by rings:
+ * the serial reader (ingest) only hands the frame over, the decode stage parses and validates it,
+ * the state stage updates the device state and the fan-out stage publishes the change to the
+ * clients. The serial reader never waits for a later stage: if the first ring is full, the frame
+ * is dropped.
+ *
+ * The device states are only modified by the state stage: the connection state of the gateway
+ * passes the pipeline in order with the frames, and the flapping sensors are checked by the
+ * state stage itself. The fan-out stage only reads the copy of the state stored in its slot.
+ */
 public class MessageHandler implements MessageHandlerIf
 {
+    // a frame equal to the previous frame of the same node within this interval is a duplicate,
+    // for example a retransmission received twice by the gateway
+    private final static long DUPLICATE_INTERVAL = 2000;
+
+    // numeric fields of a sensor frame after "GW;3;", stored in the event log
+    private final static int FRAME_FIELDS = 6;
+
+    // maximal number of slots a stage handles before it releases them
+    private final static int MAX_BATCH = 64;
+
+    private static class LastFrame
+    {
+        String data;
+        long time;
+    }
+
+    // content of the slots of the decode and state stages
+    private enum Command
+    {
+        FRAME,
+        CONNECTED,
+        DISCONNECTED
+    }
+
+    // a frame as read from the gateway, or a change of the gateway connection
+    private static class Frame extends StageRing.Slot
+    {
+        Command command;
+        String data;
+    }
+
+    // a valid frame of a configured window sensor, or a change of the gateway connection
+    private static class SensorFrame extends StageRing.Slot
+    {
+        Command command;
+        String data;
+        DeviceState device;
+        boolean alarm;
+        String batteryState;
+        boolean recorded;
+    }
+
+    // a state change to be published: a copy of the device state made by the state stage
+    private static class StateChange extends StageRing.Slot
+    {
+        DeviceState state;
+        long version;
+        boolean fromFrame;
+        boolean alarmChanged;
+    }
+
     private final Logger logger;
     private final StateManager stateManager;
+    private final StageRing<Frame> frames;
+    private final StageRing<SensorFrame> sensorFrames;
+    private final StageRing<StateChange> stateChanges;
+    // only used by the serial reader
+    private boolean dropping = false;
+    // only used by the decode stage
+    private final HashMap<Integer, LastFrame> lastFrames = new HashMap<>();
+    private final long[] frameArgs = new long[FRAME_FIELDS];
+    // only used by the state stage
+    private final HashMap<Integer, FlapDetector> flapDetectors = new HashMap<>();
+    private final HashSet<Integer> publishedAlarms = new HashSet<>();
+    private long nextFlapCheck = 0;
 
     public MessageHandler(Logger logger, StateManager stateManager)
     {
         this.logger = logger;
         this.stateManager = stateManager;
+        final int size = Config.getPipelineRingSize();
+        final StageRing.WaitStrategy waitStrategy = Config.getPipelineWaitStrategy();
+        frames = new StageRing<>("decode", size, Frame::new, waitStrategy);
+        sensorFrames = new StageRing<>("state", size, SensorFrame::new, waitStrategy);
+        stateChanges = new StageRing<>("fanout", size, StateChange::new, waitStrategy);
     }
 
-    public void handle(final String data)
+    /**
+     * Starts the threads of the decode, state and fan-out stages
+     */
+    public void start()
+    {
+        startStage("pipeline decode", frames, this::decode, null);
+        startStage("pipeline state", sensorFrames, this::applySensorFrame,
+                Config.getFlapThreshold() > 0 ? this::checkFlapping : null);
+        startStage("pipeline fan-out", stateChanges, this::publish, null);
+    }
+
+    /**
+     * @param periodic optional work of the stage, called after each batch and at least every
+     *                 FLAP_CHECK_INTERVAL milliseconds
+     */
+    private <T extends StageRing.Slot> void startStage(final String name, final StageRing<T> ring,
+                                                       final StageRing.Handler<T> handler,
+                                                       final Runnable periodic)
+    {
+        final StageRing.Handler<T> safeHandler = slot ->
+        {
+            try
+            {
+                handler.handle(slot);
+            }
+            catch (RuntimeException e)
+            {
+                logger.log(Level.SEVERE, name + ": can not process frame", e);
+            }
+        };
+        final long timeout = periodic == null ? 0 : TimeUnit.MILLISECONDS.toNanos(Config.FLAP_CHECK_INTERVAL);
+        final Thread thread = new Thread(() ->
+        {
+            while (true)
+            {
+                ring.drain(safeHandler, MAX_BATCH, timeout);
+                if (periodic != null)
+                {
+                    try
+                    {
+                        periodic.run();
+                    }
+                    catch (RuntimeException e)
+                    {
+                        logger.log(Level.SEVERE, name + ": periodic processing failed", e);
+                    }
+                }
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Ingest: called from the serial reader, hands the frame over to the decode stage
+     */
+    public void handle(final String data, long receiveTime)
     {
         if (data.isEmpty())
         {
             return;
         }
+        final Frame f = frames.claim();
+        if (f == null)
+        {
+            Metrics.FRAMES_DROPPED.increment();
+            if (!dropping)
+            {
+                dropping = true;
+                logger.warning("frame pipeline is full, sensor frames are dropped");
+            }
+            return;
+        }
+        dropping = false;
+        f.command = Command.FRAME;
+        f.data = data;
+        f.receiveTime = receiveTime;
+        frames.publish();
+    }
+
+    /**
+     * Ingest of a change of the gateway connection: unlike a frame, it is never dropped
+     */
+    private void handle(Command command)
+    {
+        final Frame f = frames.awaitClaim();
+        f.command = command;
+        f.data = null;
+        f.receiveTime = System.nanoTime();
+        frames.publish();
+    }
+
+    /**
+     * Decode stage: parses and validates a frame
+     */
+    private void decode(Frame f)
+    {
+        if (f.command != Command.FRAME)
+        {
+            final SensorFrame s = sensorFrames.awaitClaim();
+            s.command = f.command;
+            s.receiveTime = f.receiveTime;
+            sensorFrames.publish();
+            return;
+        }
+        final String data = f.data;
+        f.data = null;
 
         String[] tokens =  data.split(";");
         if (tokens.length != 8 && tokens.length != 4)
         {
             logger.warning("invalid tokens number in the input message: " + data);
+            Metrics.PARSE_ERRORS.increment();
             return;
         }
 
         if (!tokens[0].equals("GW"))
         {
             logger.warning("invalid header in the input message: " + data);
+            Metrics.PARSE_ERRORS.increment();
             return;
         }
 
@@ -66,7 +255,7 @@ public class MessageHandler implements MessageHandlerIf
             logger.info("gateway error: " + data);
             return;
         case 3:
-            processWindowSensorMessage(tokens, data);
+            decodeWindowSensorMessage(tokens, data, f.receiveTime);
             break;
         }
     }
@@ -75,17 +264,47 @@ public class MessageHandler implements MessageHandlerIf
     public void connected()
     {
         logger.log(Level.INFO, "sensor gateway " + Config.getSerialPort() + " is connected", CustomLogger.ADD_TO_CONSOLE);
-        stateManager.setReady(true);
+        handle(Command.CONNECTED);
     }
 
     @Override
     public void disconnected()
     {
         logger.log(Level.SEVERE, "sensor gateway is disconnected", CustomLogger.ADD_TO_CONSOLE);
-        stateManager.setReady(false);
+        handle(Command.DISCONNECTED);
     }
 
-    private void processWindowSensorMessage(final String[] tokens, final String data)
+    /**
+     * Called periodically from the state stage: a flapping sensor that is quiet for the configured
+     * period gets its normal state back
+     */
+    private void checkFlapping()
+    {
+        final long now = TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+        if (now < nextFlapCheck)
+        {
+            return;
+        }
+        nextFlapCheck = now + Config.FLAP_CHECK_INTERVAL;
+        for (Map.Entry<Integer, FlapDetector> e : flapDetectors.entrySet())
+        {
+            final FlapDetector f = e.getValue();
+            final int transitions = f.getFlapCount();
+            if (f.checkQuiet(now, Config.getFlapQuietPeriod()))
+            {
+                final DeviceState d = stateManager.getDevices().get(e.getKey());
+                logger.info("device #" + e.getKey() + " is not flapping any more after " + transitions + " transitions");
+                if (d != null)
+                {
+                    d.setFlapCount(0);
+                    d.setWarning(Warning.FLAPPING, false);
+                    publishChange(d, System.nanoTime(), false);
+                }
+            }
+        }
+    }
+
+    private void decodeWindowSensorMessage(final String[] tokens, final String data, long receiveTime)
     {
         if (stateManager == null)
         {
@@ -100,27 +319,214 @@ public class MessageHandler implements MessageHandlerIf
             return;
         }
 
-        logger.info(">> " + data);
+        final boolean recorded = recordFrame(tokens);
+        checkDuplicate(nodeId, data);
 
         // >> GW;3;7;-67;0;385;33;18
-        int state = parseToken(tokens[4], data);
-        boolean changed = (state == 0)? d.setAlarm(true) : d.setAlarm(false);
+        final SensorFrame s = sensorFrames.awaitClaim();
+        s.command = Command.FRAME;
+        s.data = data;
+        s.device = d;
+        s.alarm = parseToken(tokens[4], data) == 0;
         try
         {
             final DecimalFormat df = Utils.getDecimalFormat("0.0 V");
-            d.setBatteryState(df.format((float)Integer.parseInt(tokens[6]) / 10.0));
+            s.batteryState = df.format((float)Integer.parseInt(tokens[6]) / 10.0);
         }
         catch (Exception ex)
         {
-            d.setBatteryState("");
+            s.batteryState = "";
         }
+        s.recorded = recorded;
+        s.receiveTime = receiveTime;
+        sensorFrames.publish();
+    }
 
-        changed |= d.setWarning(Warning.NO_ACTIVITY, false);
+    /**
+     * State stage: updates the state of the device
+     */
+    private void applySensorFrame(SensorFrame s)
+    {
+        if (s.command != Command.FRAME)
+        {
+            setReady(s.command == Command.CONNECTED, s.receiveTime);
+            return;
+        }
+        final DeviceState d = s.device;
+        final String data = s.data;
+        s.device = null;
+        s.data = null;
+
+        final FlapDetector flapDetector = getFlapDetector(d.getId());
+        if (!s.recorded && (flapDetector == null || !flapDetector.isFlapping()))
+        {
+            logger.info(">> " + data);
+        }
+
+        final boolean alarmChanged = d.setAlarm(s.alarm);
+        d.setBatteryState(s.batteryState);
+
+        boolean changed = d.setWarning(Warning.NO_ACTIVITY, false);
+        if (alarmChanged)
+        {
+            if (flapDetector == null || onAlarmTransition(d.getId(), d, flapDetector))
+            {
+                changed = true;
+            }
+            else
+            {
+                // the transitions of a flapping sensor are only counted
+                Metrics.FLAP_SUPPRESSED.increment();
+            }
+        }
         if (changed)
         {
-            logger.info("new state: " + stateManager.toString());
-            stateManager.sendDeviceState(d);
+            publishChange(d, s.receiveTime, true);
+        }
+    }
+
+    /**
+     * State stage: all devices get the warning NOT_READY while the gateway is disconnected
+     */
+    private void setReady(boolean ready, long receiveTime)
+    {
+        if (stateManager == null)
+        {
+            return;
+        }
+        for (DeviceState d : stateManager.getDevices().values())
+        {
+            d.setWarning(Warning.NOT_READY, !ready);
+            publishChange(d, receiveTime, false);
+        }
+    }
+
+    /**
+     * State stage: hands a copy of the changed state over to the fan-out stage
+     *
+     * @param fromFrame whether the change is caused by a sensor frame received at the given time
+     */
+    private void publishChange(DeviceState d, long receiveTime, boolean fromFrame)
+    {
+        // compared with the last published state, since the transitions of a flapping sensor
+        // are not published
+        final boolean alarmChanged = d.isAlarm() ?
+                publishedAlarms.add(d.getId()) : publishedAlarms.remove(d.getId());
+        final StateChange c = stateChanges.awaitClaim();
+        if (c.state == null || c.state.getConfig() != d.getConfig())
+        {
+            c.state = new DeviceState(d.getConfig());
+        }
+        c.state.copyStateFrom(d);
+        c.version = stateManager.nextDeviceVersion(d);
+        c.receiveTime = receiveTime;
+        c.fromFrame = fromFrame;
+        c.alarmChanged = alarmChanged;
+        stateChanges.publish();
+    }
+
+    /**
+     * Fan-out stage: sends the state change to the clients
+     */
+    private void publish(StateChange c)
+    {
+        stateManager.sendDeviceState(c.state, c.version, c.fromFrame ? c.receiveTime : 0, c.alarmChanged);
+    }
+
+    /**
+     * Returns the flap detector of the given node, or null if the flap detection is disabled
+     */
+    private FlapDetector getFlapDetector(int nodeId)
+    {
+        if (Config.getFlapThreshold() <= 0)
+        {
+            return null;
+        }
+        FlapDetector f = flapDetectors.get(nodeId);
+        if (f == null)
+        {
+            f = new FlapDetector(Config.getFlapThreshold());
+            flapDetectors.put(nodeId, f);
+        }
+        return f;
+    }
+
+    /**
+     * Registers an alarm transition. While the sensor is flapping, its state including the number
+     * of transitions is published once when it starts flapping and then at most once per flap window
+     *
+     * @return false if the state change is not published
+     */
+    private boolean onAlarmTransition(int nodeId, DeviceState d, FlapDetector f)
+    {
+        final long now = TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+        if (f.onTransition(now, Config.getFlapWindow()))
+        {
+            logger.warning("device #" + nodeId + " is flapping: " + f.getFlapCount() + " transitions within "
+                    + Config.getFlapWindow() + " ms");
+            d.setWarning(Warning.FLAPPING, true);
+            d.setFlapCount(f.getFlapCount());
+            return true;
+        }
+        if (!f.isFlapping())
+        {
+            return true;
+        }
+        d.setFlapCount(f.getFlapCount());
+        return f.isPublishDue(now, Config.getFlapWindow());
+    }
+
+    /**
+     * Stores the numeric fields of a sensor frame in the event log
+     *
+     * @return false if the event log is disabled or the frame contains a non-numeric field
+     */
+    private boolean recordFrame(final String[] tokens)
+    {
+        if (!EventLog.isEnabled() || tokens.length < FRAME_FIELDS + 2)
+        {
+            return false;
+        }
+        for (int i = 0; i < FRAME_FIELDS; i++)
+        {
+            final String token = tokens[i + 2];
+            // the last field is terminated by a dot
+            final int end = token.endsWith(".") ? token.length() - 1 : token.length();
+            long value = 0;
+            int pos = token.startsWith("-") ? 1 : 0;
+            if (pos >= end)
+            {
+                return false;
+            }
+            for (; pos < end; pos++)
+            {
+                final char c = token.charAt(pos);
+                if (c < '0' || c > '9')
+                {
+                    return false;
+                }
+                value = 10 * value + (c - '0');
+            }
+            frameArgs[i] = token.startsWith("-") ? -value : value;
+        }
+        return EventLog.record(Event.FRAME, frameArgs, FRAME_FIELDS);
+    }
+
+    private void checkDuplicate(int nodeId, final String data)
+    {
+        LastFrame lastFrame = lastFrames.get(nodeId);
+        if (lastFrame == null)
+        {
+            lastFrame = new LastFrame();
+            lastFrames.put(nodeId, lastFrame);
+        }
+        final long now = System.currentTimeMillis();
+        if (data.equals(lastFrame.data) && now - lastFrame.time < DUPLICATE_INTERVAL)
+        {
+            Metrics.DUPLICATE_FRAMES.increment();
         }
+        lastFrame.data = data;
+        lastFrame.time = now;
     }
 
     private int parseToken(final String token, final String data)
@@ -132,6 +538,7 @@ public class MessageHandler implements MessageHandlerIf
         catch (Exception e)
         {
             logger.warning("invalid token " + token + " in the message: " + data);
+            Metrics.PARSE_ERRORS.increment();
             return -1;
         }
     }
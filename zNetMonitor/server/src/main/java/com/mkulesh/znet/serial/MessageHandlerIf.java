@@ -19,7 +19,12 @@ public interface MessageHandlerIf
 {
     void connected();
 
-    void handle(final String data);
+    /**
+     * Called from the serial reader for each frame; shall not block
+     *
+     * @param receiveTime the time (System.nanoTime) the frame was read from the gateway
+     */
+    void handle(final String data, long receiveTime);
 
     void disconnected();
 }
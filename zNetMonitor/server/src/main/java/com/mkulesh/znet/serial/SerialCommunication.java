@@ -16,14 +16,15 @@
 package com.mkulesh.znet.serial;
 
 import com.mkulesh.znet.Config;
+import com.mkulesh.znet.metrics.Counter;
+import com.mkulesh.znet.metrics.Metrics;
+import com.mkulesh.znet.scheduler.Scheduler;
 
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.Charset;
-import java.util.Arrays;
 import java.util.Enumeration;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -36,16 +37,32 @@ import gnu.io.SerialPort;
 public class SerialCommunication
 {
     private static final Charset UTF_8 = Charset.forName("UTF-8");
-    private static final char END_OF_MESSAGE = '.';
+    private static final String END_OF_MESSAGE_STR = ".";
+
+    // A named pipe can be given instead of the serial port, for example "pipe:/tmp/znet.fifo".
+    // It is used to feed the server with synthetic sensor data
+    private static final String PIPE_PREFIX = "pipe:";
 
     private final Logger logger;
     private final MessageHandlerIf messageHandler;
+    private final Scheduler scheduler;
     private Thread readerThread = null;
+    // the available ports are only listed once, when the configured port can not be opened
+    private boolean portsListed = false;
 
-    public SerialCommunication(Logger logger, MessageHandlerIf m)
+    public SerialCommunication(Logger logger, MessageHandlerIf m, Scheduler scheduler)
     {
         this.logger = logger;
         this.messageHandler = m;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Returns true if the configured port is a named pipe instead of a serial port
+     */
+    public static boolean isPipe(String portName)
+    {
+        return portName.startsWith(PIPE_PREFIX);
     }
 
     @SuppressWarnings("unchecked")
@@ -79,15 +96,8 @@ public class SerialCommunication
 
     public void start()
     {
-        final Timer timer = new Timer();
-        timer.schedule(new TimerTask()
-        {
-            @Override
-            public void run()
-            {
-                periodicProcessing();
-            }
-        }, 0, 1000);
+        // opening of the port may block: it is processed on a scheduler worker thread
+        scheduler.scheduleAtFixedRate(this::periodicProcessing, 0, Config.SERIAL_POLLING_INTERVAL, true);
     }
 
     private void periodicProcessing()
@@ -98,15 +108,59 @@ public class SerialCommunication
         }
         try
         {
-            openPort(Config.getSerialPort());
+            if (isPipe(Config.getSerialPort()))
+            {
+                openPipe(Config.getSerialPort().substring(PIPE_PREFIX.length()));
+            }
+            else
+            {
+                openPort(Config.getSerialPort());
+            }
         }
-        catch (Exception e)
+        catch (Exception | LinkageError e)
         {
             logger.log(Level.SEVERE, "can not initialize z-wave stick", e);
             readerThread = null;
+            if (!portsListed && !isPipe(Config.getSerialPort()))
+            {
+                portsListed = true;
+                listAvailablePorts();
+            }
         }
     }
 
+    /**
+     * Opening every port takes time: the ports are only listed on a scheduler worker thread
+     */
+    private void listAvailablePorts()
+    {
+        try
+        {
+            printAvailablePorts();
+        }
+        catch (LinkageError e)
+        {
+            logger.log(Level.SEVERE, "serial ports can not be listed", e);
+        }
+    }
+
+    private void openPipe(final String path)
+    {
+        // opening of a named pipe blocks until the writer is connected: it is opened by the reader thread
+        readerThread = new Thread(() ->
+        {
+            try (InputStream in = new FileInputStream(path))
+            {
+                new SerialReader(logger, Config.getSerialPort(), in, messageHandler).run();
+            }
+            catch (IOException e)
+            {
+                logger.log(Level.SEVERE, "can not open pipe " + path, e);
+            }
+        }, "pipe reader");
+        readerThread.start();
+    }
+
     private void openPort(String portName) throws Exception
     {
         CommPortIdentifier portIdentifier;
@@ -144,7 +198,8 @@ public class SerialCommunication
         serialPort.setSerialPortParams(Config.getSerialPortSpeed(), SerialPort.DATABITS_8, SerialPort.STOPBITS_1,
                 SerialPort.PARITY_NONE);
 
-        readerThread = new Thread(new SerialReader(logger, serialPort, messageHandler), "serial port reader");
+        readerThread = new Thread(new SerialReader(logger, portName, serialPort.getInputStream(), messageHandler),
+                "serial port reader");
         readerThread.start();
     }
 
@@ -153,12 +208,17 @@ public class SerialCommunication
         private final Logger logger;
         private final InputStream in;
         private final MessageHandlerIf messageHandler;
+        private final Counter frames;
 
-        SerialReader(Logger logger, SerialPort serialPort, MessageHandlerIf m) throws IOException
+        /**
+         * @param name name of the gateway, for example the serial port, used for the frame counter
+         */
+        public SerialReader(Logger logger, String name, InputStream in, MessageHandlerIf m)
         {
             this.logger = logger;
-            this.in = serialPort.getInputStream();
+            this.in = in;
             this.messageHandler = m;
+            this.frames = Metrics.getCounter("gateway." + name + ".frames");
         }
 
         public void run()
@@ -172,6 +232,7 @@ public class SerialCommunication
                 while (true)
                 {
                     final int len = this.in.read(buffer);
+                    final long receiveTime = System.nanoTime();
                     if (len < 0)
                     {
                         messageHandler.disconnected();
@@ -181,39 +242,27 @@ public class SerialCommunication
                     {
                         continue;
                     }
-                    byte[] message = Arrays.copyOfRange(buffer, 0, len);
-                    sensorData.append(new String(message, UTF_8));
-                    final String currData = sensorData.toString();
-                    int endIdx = currData.indexOf(END_OF_MESSAGE);
-                    if (endIdx > 0)
+                    sensorData.append(new String(buffer, 0, len, UTF_8));
+
+                    // all complete messages are processed
+                    int endIdx;
+                    while ((endIdx = sensorData.indexOf(END_OF_MESSAGE_STR)) >= 0)
                     {
                         // skip all non-alphabetic characters at the beginning
                         int startIdx = 0;
-                        for (; startIdx < currData.length(); startIdx++)
-                        {
-                            if (Character.isAlphabetic(currData.charAt(startIdx)))
-                            {
-                                break;
-                            }
-                        }
-                        messageHandler.handle(currData.substring(startIdx, endIdx));
-
-                        // skip all non-alphabetic characters at the end
-                        for (; endIdx < currData.length(); endIdx++)
+                        for (; startIdx < endIdx; startIdx++)
                         {
-                            final char c = currData.charAt(endIdx);
-                            if (Character.isAlphabetic(c) && c != END_OF_MESSAGE)
+                            if (Character.isAlphabetic(sensorData.charAt(startIdx)))
                             {
                                 break;
                             }
                         }
+                        frames.increment();
+                        Metrics.FRAMES_RECEIVED.increment();
+                        messageHandler.handle(sensorData.substring(startIdx, endIdx), receiveTime);
 
                         // store the remaining message
-                        sensorData = new StringBuilder();
-                        if (endIdx < currData.length())
-                        {
-                            sensorData.append(currData.substring(endIdx));
-                        }
+                        sensorData.delete(0, endIdx + 1);
                     }
                 }
             }
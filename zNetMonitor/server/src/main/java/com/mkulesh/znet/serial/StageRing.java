@@ -0,0 +1,243 @@
+/*
+ * stm32WindowSensor: RF window sensors: STM32L + RFM69 + Android
+ *
+ * Copyright (C) 2019. Mikhail Kulesh
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details. You should have received a copy of the GNU General
+ * Public License along with this program.
+ */
+
+package com.mkulesh.znet.serial;
+
+import com.mkulesh.znet.metrics.Counter;
+import com.mkulesh.znet.metrics.Histogram;
+import com.mkulesh.znet.metrics.Metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Bounded ring between two pipeline stages: exactly one producer thread and one consumer thread.
+ * All slots are created in advance and reused: the producer claims the slot at the tail, fills it
+ * and publishes it; the consumer handles all published slots as a batch and releases them at once.
+ * The consumer waits for new slots according to the wait strategy.
+ *
+ * The ring is measurable: the handled slots, the batch sizes and the lag of the slots, i.e. the
+ * time since the frame was read from the gateway, are recorded as "pipeline.[name].*" metrics.
+ */
+public final class StageRing<T extends StageRing.Slot>
+{
+    /**
+     * How the consumer waits for the next slot: SPIN burns a core and gives the lowest latency,
+     * YIELD gives the processor to other threads, PARK (default) sleeps until the producer wakes it up
+     */
+    public enum WaitStrategy
+    {
+        SPIN,
+        YIELD,
+        PARK
+    }
+
+    /**
+     * Base class of the slots: the time (System.nanoTime) the frame was read from the gateway
+     */
+    static class Slot
+    {
+        long receiveTime;
+    }
+
+    interface Handler<T>
+    {
+        void handle(T slot);
+    }
+
+    // spins before the consumer yields or parks
+    private final static int SPIN_TRIES = 100;
+    // maximal sleep of a parked consumer; it is normally woken up by the producer
+    private final static long CONSUMER_PARK_TIME = TimeUnit.MILLISECONDS.toNanos(100);
+    // sleep of a producer waiting for a free slot
+    private final static long PRODUCER_PARK_TIME = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final Object[] slots;
+    private final int mask;
+    private final WaitStrategy waitStrategy;
+
+    // position of the next slot to be published, only written by the producer
+    private final AtomicLong tail = new AtomicLong(0);
+    // position of the next slot to be handled, only written by the consumer
+    private final AtomicLong head = new AtomicLong(0);
+    // the last head seen by the producer: the shared head is only read if the ring looks full
+    private long cachedHead = 0;
+    private volatile Thread parkedConsumer = null;
+
+    private final Counter handled;
+    private final Histogram batches;
+    private final Histogram lag;
+
+    /**
+     * @param name     name of the consumer stage used for the metrics
+     * @param capacity number of slots, rounded up to a power of two
+     */
+    StageRing(String name, int capacity, Supplier<T> factory, WaitStrategy waitStrategy)
+    {
+        int size = 1;
+        while (size < capacity)
+        {
+            size <<= 1;
+        }
+        mask = size - 1;
+        slots = new Object[size];
+        for (int i = 0; i < size; i++)
+        {
+            slots[i] = factory.get();
+        }
+        this.waitStrategy = waitStrategy;
+        handled = Metrics.getCounter("pipeline." + name + ".events");
+        batches = Metrics.getHistogram("pipeline." + name + ".batch");
+        lag = Metrics.getHistogram("pipeline." + name + ".lag");
+    }
+
+    /**
+     * Returns the slot at the tail to be filled by the producer, or null if the ring is full
+     */
+    T claim()
+    {
+        final long t = tail.get();
+        if (t - cachedHead > mask)
+        {
+            cachedHead = head.get();
+            if (t - cachedHead > mask)
+            {
+                return null;
+            }
+        }
+        return slot(t);
+    }
+
+    /**
+     * Waits until a slot can be claimed; only used between internal stages
+     */
+    T awaitClaim()
+    {
+        int idle = 0;
+        T slot;
+        while ((slot = claim()) == null)
+        {
+            idle = idle(idle, false);
+        }
+        return slot;
+    }
+
+    /**
+     * Makes the claimed slot visible to the consumer
+     */
+    void publish()
+    {
+        tail.set(tail.get() + 1);
+        final Thread consumer = parkedConsumer;
+        if (consumer != null)
+        {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Waits for published slots and handles at most maxBatch of them. Shall only be called from
+     * the consumer thread
+     *
+     * @return the number of handled slots
+     */
+    int drain(Handler<T> handler, int maxBatch)
+    {
+        return drain(handler, maxBatch, 0);
+    }
+
+    /**
+     * Like drain(handler, maxBatch), but waits at most the given time (in nanoseconds, 0 means
+     * forever), so that the consumer thread can do periodic work of its stage
+     *
+     * @return the number of handled slots, or 0 if no slot was published within the given time
+     */
+    int drain(Handler<T> handler, int maxBatch, long timeout)
+    {
+        final long h = head.get();
+        final long deadline = timeout > 0 ? System.nanoTime() + timeout : 0;
+        long available;
+        int idle = 0;
+        while ((available = tail.get() - h) == 0)
+        {
+            if (deadline != 0 && System.nanoTime() - deadline >= 0)
+            {
+                return 0;
+            }
+            idle = idle(idle, true);
+        }
+        final int n = (int) Math.min(available, maxBatch);
+        final long now = System.nanoTime();
+        for (int i = 0; i < n; i++)
+        {
+            final T slot = slot(h + i);
+            lag.record((now - slot.receiveTime) / 1000);
+            handler.handle(slot);
+        }
+        // all slots of the batch are given back to the producer at once
+        head.set(h + n);
+        handled.add(n);
+        batches.record(n);
+        return n;
+    }
+
+    /**
+     * Returns the number of published slots not yet handled
+     */
+    int size()
+    {
+        return (int) (tail.get() - head.get());
+    }
+
+    @SuppressWarnings("unchecked")
+    private T slot(long position)
+    {
+        return (T) slots[(int) position & mask];
+    }
+
+    /**
+     * Waits once according to the wait strategy. A parked consumer is woken up by the producer;
+     * a producer waiting for a free slot only occurs if a later stage is overloaded and just sleeps
+     */
+    private int idle(int idle, boolean consumer)
+    {
+        if (waitStrategy == WaitStrategy.SPIN || idle < SPIN_TRIES)
+        {
+            return idle + 1;
+        }
+        if (waitStrategy == WaitStrategy.YIELD)
+        {
+            Thread.yield();
+        }
+        else if (consumer)
+        {
+            // the producer reads the parked thread after publishing and the consumer reads the
+            // tail after announcing itself, so that a wake-up can not be missed
+            parkedConsumer = Thread.currentThread();
+            if (size() == 0)
+            {
+                LockSupport.parkNanos(this, CONSUMER_PARK_TIME);
+            }
+            parkedConsumer = null;
+        }
+        else
+        {
+            LockSupport.parkNanos(this, PRODUCER_PARK_TIME);
+        }
+        return idle + 1;
+    }
+}
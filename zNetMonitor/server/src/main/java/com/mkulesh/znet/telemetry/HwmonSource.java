@@ -0,0 +1,222 @@
+/*
+ * stm32WindowSensor: RF window sensors: STM32L + RFM69 + Android
+ *
+ * Copyright (C) 2019. Mikhail Kulesh
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details. You should have received a copy of the GNU General
+ * Public License along with this program.
+ */
+
+package com.mkulesh.znet.telemetry;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Temperatures, fan speeds and voltages of the kernel hardware monitoring drivers, read from
+ * /sys/class/hwmon. The sensor id is the driver name followed by the sensor label, for example
+ * "coretemp Core 0" or "nct6775 fan2". All sensor files are found and opened once.
+ */
+public class HwmonSource implements TelemetrySource
+{
+    public final static String DEFAULT_ROOT = "/sys/class/hwmon";
+
+    private final static Pattern INPUT_PATTERN = Pattern.compile("(temp|fan|in)(\\d+)_input");
+    private final static int BUFFER_SIZE = 32;
+
+    private enum Kind
+    {
+        TEMPERATURE,
+        FAN,
+        VOLTAGE
+    }
+
+    private static class Sensor
+    {
+        final String id;
+        final Kind kind;
+        final SysfsFile file;
+        long lastValue = Long.MIN_VALUE;
+        String lastText = null;
+
+        Sensor(String id, Kind kind, SysfsFile file)
+        {
+            this.id = id;
+            this.kind = kind;
+            this.file = file;
+        }
+    }
+
+    private final Logger logger;
+    private final ArrayList<Sensor> sensors = new ArrayList<>();
+
+    public HwmonSource(Logger logger, String root)
+    {
+        this.logger = logger;
+        final ArrayList<Path> devices = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(root)))
+        {
+            for (Path p : stream)
+            {
+                devices.add(p);
+            }
+        }
+        catch (IOException e)
+        {
+            logger.info("hwmon: " + root + " is not available");
+            return;
+        }
+        Collections.sort(devices);
+        for (Path device : devices)
+        {
+            // older drivers provide the attributes in the device directory
+            openSensors(device, readName(device));
+            openSensors(device.resolve("device"), readName(device));
+        }
+        final StringBuilder ids = new StringBuilder();
+        for (Sensor s : sensors)
+        {
+            ids.append(ids.length() == 0 ? "" : " | ").append(s.id);
+        }
+        logger.info("hwmon: " + sensors.size() + " sensor(s): " + ids.toString());
+    }
+
+    @Override
+    public String getName()
+    {
+        return "hwmon";
+    }
+
+    public int getSensorNumber()
+    {
+        return sensors.size();
+    }
+
+    private static String readName(Path device)
+    {
+        try
+        {
+            return new String(Files.readAllBytes(device.resolve("name")), StandardCharsets.US_ASCII).trim();
+        }
+        catch (IOException e)
+        {
+            return device.getFileName().toString();
+        }
+    }
+
+    private void openSensors(Path dir, String deviceName)
+    {
+        if (!Files.isDirectory(dir))
+        {
+            return;
+        }
+        final List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*_input"))
+        {
+            for (Path p : stream)
+            {
+                files.add(p);
+            }
+        }
+        catch (IOException e)
+        {
+            return;
+        }
+        Collections.sort(files);
+        for (Path p : files)
+        {
+            final Matcher m = INPUT_PATTERN.matcher(p.getFileName().toString());
+            if (!m.matches())
+            {
+                continue;
+            }
+            final Kind kind = "temp".equals(m.group(1)) ? Kind.TEMPERATURE :
+                    "fan".equals(m.group(1)) ? Kind.FAN : Kind.VOLTAGE;
+            String label = m.group(1) + m.group(2);
+            final Path labelFile = dir.resolve(label + "_label");
+            if (Files.isReadable(labelFile))
+            {
+                try
+                {
+                    label = new String(Files.readAllBytes(labelFile), StandardCharsets.US_ASCII).trim();
+                }
+                catch (IOException e)
+                {
+                    // use the attribute name
+                }
+            }
+            try
+            {
+                sensors.add(new Sensor(deviceName + " " + label, kind, new SysfsFile(p, BUFFER_SIZE)));
+            }
+            catch (IOException e)
+            {
+                logger.fine("hwmon: can not open " + p + ": " + e.getLocalizedMessage());
+            }
+        }
+    }
+
+    @Override
+    public boolean read(Map<String, String> values)
+    {
+        if (sensors.isEmpty())
+        {
+            return false;
+        }
+        for (Sensor s : sensors)
+        {
+            if (values.containsKey(s.id))
+            {
+                continue;
+            }
+            try
+            {
+                final long value = s.file.readLong();
+                if (value != s.lastValue || s.lastText == null)
+                {
+                    s.lastValue = value;
+                    s.lastText = format(s.kind, value);
+                }
+                values.put(s.id, s.lastText);
+            }
+            catch (IOException e)
+            {
+                // the sensor is currently not readable, for example a disconnected fan
+            }
+        }
+        return true;
+    }
+
+    private static String format(Kind kind, long value)
+    {
+        switch (kind)
+        {
+        case TEMPERATURE:
+            // millidegree Celsius
+            return Math.round(value / 1000.0) + "°C";
+        case FAN:
+            return value + "RPM";
+        default:
+            // millivolt
+            return String.format(Locale.US, "%.2fV", value / 1000.0);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * stm32WindowSensor: RF window sensors: STM32L + RFM69 + Android
+ *
+ * Copyright (C) 2019. Mikhail Kulesh
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details. You should have received a copy of the GNU General
+ * Public License along with this program.
+ */
+
+package com.mkulesh.znet.telemetry;
+
+import com.mkulesh.znet.Config;
+import com.mkulesh.znet.metrics.Metrics;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sensors of the baseboard management controller, read by running "ipmitool sensor". Since each
+ * reading starts a process and takes up to some hundred milliseconds, the result is kept for
+ * the given minimum interval and the command is only started again after it has elapsed.
+ */
+public class IpmiToolSource implements TelemetrySource
+{
+    private final long minInterval;
+    private HashMap<String, String> sensorData = null;
+    private long readTime = 0;
+
+    /**
+     * @param minInterval minimum time between two command runs in milliseconds
+     */
+    public IpmiToolSource(long minInterval)
+    {
+        this.minInterval = TimeUnit.MILLISECONDS.toNanos(minInterval);
+    }
+
+    @Override
+    public String getName()
+    {
+        return "ipmitool";
+    }
+
+    @Override
+    public boolean read(Map<String, String> values)
+    {
+        if (sensorData == null || System.nanoTime() - readTime >= minInterval)
+        {
+            readTime = System.nanoTime();
+            sensorData = readSensors();
+        }
+        if (sensorData == null)
+        {
+            return false;
+        }
+        for (Map.Entry<String, String> e : sensorData.entrySet())
+        {
+            if (!values.containsKey(e.getKey()))
+            {
+                values.put(e.getKey(), e.getValue());
+            }
+        }
+        return true;
+    }
+
+    private HashMap<String, String> readSensors()
+    {
+        HashMap<String, String> sensorData = new HashMap<>();
+        Runtime rt = java.lang.Runtime.getRuntime();
+        final long start = System.nanoTime();
+        try
+        {
+            Process p = rt.exec(Config.SENSOR_READING_CMD);
+            p.waitFor();
+            Metrics.SENSOR_COMMAND_TIME.recordSince(start);
+            InputStream is = p.getInputStream();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(is));
+            String s;
+            while ((s = reader.readLine()) != null)
+            {
+                String[] tockens = s.split(Config.SENSOR_DATA_SEPARATOR);
+                if (tockens.length > 2)
+                {
+                    try
+                    {
+                        final int val = (int) Float.parseFloat(tockens[1].trim());
+                        String dim = tockens[2].trim();
+                        if ("degrees C".equals(dim))
+                        {
+                            dim = "°C";
+                        }
+                        sensorData.put(tockens[0].trim(), Integer.toString(val) + dim);
+                    }
+                    catch (Exception e)
+                    {
+                        sensorData.put(tockens[0].trim(), tockens[1].trim());
+                    }
+                }
+            }
+            is.close();
+            return sensorData;
+        }
+        catch (Exception e)
+        {
+            return null;
+        }
+    }
+}
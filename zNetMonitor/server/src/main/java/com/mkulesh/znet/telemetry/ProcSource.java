@@ -0,0 +1,126 @@
+/*
+ * stm32WindowSensor: RF window sensors: STM32L + RFM69 + Android
+ *
+ * Copyright (C) 2019. Mikhail Kulesh
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details. You should have received a copy of the GNU General
+ * Public License along with this program.
+ */
+
+package com.mkulesh.znet.telemetry;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * System load and memory usage read from /proc: the sensor "CPU load" is the load average of the
+ * last minute, the sensor "Memory used" the percentage of memory that is not available.
+ */
+public class ProcSource implements TelemetrySource
+{
+    public final static String LOAD_ID = "CPU load";
+    public final static String MEMORY_ID = "Memory used";
+
+    private final static byte[] MEM_TOTAL = "MemTotal:".getBytes(StandardCharsets.US_ASCII);
+    private final static byte[] MEM_AVAILABLE = "MemAvailable:".getBytes(StandardCharsets.US_ASCII);
+
+    private SysfsFile loadAvg = null;
+    private SysfsFile memInfo = null;
+    private long lastLoad = Long.MIN_VALUE;
+    private String lastLoadText = null;
+    private long lastMemory = Long.MIN_VALUE;
+    private String lastMemoryText = null;
+
+    public ProcSource(Logger logger)
+    {
+        try
+        {
+            loadAvg = new SysfsFile(Paths.get("/proc/loadavg"), 128);
+            memInfo = new SysfsFile(Paths.get("/proc/meminfo"), 8192);
+        }
+        catch (IOException e)
+        {
+            logger.info("proc: " + e.getLocalizedMessage() + " is not available");
+        }
+    }
+
+    @Override
+    public String getName()
+    {
+        return "proc";
+    }
+
+    @Override
+    public boolean read(Map<String, String> values)
+    {
+        if (loadAvg == null || memInfo == null)
+        {
+            return false;
+        }
+        try
+        {
+            final long load = SysfsFile.parseHundredths(loadAvg.read(), 0);
+            if (load != lastLoad || lastLoadText == null)
+            {
+                lastLoad = load;
+                lastLoadText = String.format(Locale.US, "%d.%02d", load / 100, load % 100);
+            }
+            if (!values.containsKey(LOAD_ID))
+            {
+                values.put(LOAD_ID, lastLoadText);
+            }
+
+            final ByteBuffer b = memInfo.read();
+            final long total = getField(b, MEM_TOTAL);
+            final long available = getField(b, MEM_AVAILABLE);
+            final long memory = total > 0 && available >= 0 ? 100 * (total - available) / total : -1;
+            if (memory != lastMemory || lastMemoryText == null)
+            {
+                lastMemory = memory;
+                lastMemoryText = memory < 0 ? "N/A" : memory + "%";
+            }
+            if (!values.containsKey(MEMORY_ID))
+            {
+                values.put(MEMORY_ID, lastMemoryText);
+            }
+            return true;
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the number of the /proc/meminfo line starting with the given name, or -1
+     */
+    private static long getField(ByteBuffer b, byte[] name) throws IOException
+    {
+        int line = 0;
+        while (line < b.limit())
+        {
+            boolean match = line + name.length <= b.limit();
+            for (int i = 0; match && i < name.length; i++)
+            {
+                match = b.get(line + i) == name[i];
+            }
+            if (match)
+            {
+                return SysfsFile.parseLong(b, SysfsFile.skipSpaces(b, line + name.length));
+            }
+            line = SysfsFile.indexOf(b, line, '\n') + 1;
+        }
+        return -1;
+    }
+}
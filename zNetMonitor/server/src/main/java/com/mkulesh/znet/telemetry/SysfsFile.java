@@ -0,0 +1,156 @@
+/*
+ * stm32WindowSensor: RF window sensors: STM32L + RFM69 + Android
+ *
+ * Copyright (C) 2019. Mikhail Kulesh
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details. You should have received a copy of the GNU General
+ * Public License along with this program.
+ */
+
+package com.mkulesh.znet.telemetry;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Pre-opened file of the sysfs or procfs. The kernel generates the content anew for each read
+ * from offset 0, so the file is opened once and read repeatedly into the same buffer; parsing
+ * works directly on the buffer without building strings.
+ */
+final class SysfsFile
+{
+    private final Path path;
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+
+    SysfsFile(Path path, int size) throws IOException
+    {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.buffer = ByteBuffer.allocateDirect(size);
+    }
+
+    Path getPath()
+    {
+        return path;
+    }
+
+    /**
+     * Reads the file content from offset 0
+     *
+     * @return the buffer containing the content from position 0 up to the limit
+     */
+    ByteBuffer read() throws IOException
+    {
+        buffer.clear();
+        long position = 0;
+        int n;
+        while (buffer.hasRemaining() && (n = channel.read(buffer, position)) > 0)
+        {
+            position += n;
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Reads the file and returns the integer number at its start, for example a sysfs attribute
+     */
+    long readLong() throws IOException
+    {
+        final ByteBuffer b = read();
+        return parseLong(b, skipSpaces(b, 0));
+    }
+
+    void close()
+    {
+        try
+        {
+            channel.close();
+        }
+        catch (IOException e)
+        {
+            // nothing to do
+        }
+    }
+
+    static int skipSpaces(ByteBuffer b, int index)
+    {
+        int i = index;
+        while (i < b.limit() && (b.get(i) == ' ' || b.get(i) == '\t'))
+        {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Returns the index of the next occurrence of the given character or the limit
+     */
+    static int indexOf(ByteBuffer b, int index, char c)
+    {
+        int i = index;
+        while (i < b.limit() && b.get(i) != c)
+        {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Parses an integer number with an optional sign starting at the given index
+     */
+    static long parseLong(ByteBuffer b, int index) throws IOException
+    {
+        int i = index;
+        final boolean negative = i < b.limit() && b.get(i) == '-';
+        if (negative)
+        {
+            i++;
+        }
+        final int start = i;
+        long value = 0;
+        while (i < b.limit() && b.get(i) >= '0' && b.get(i) <= '9')
+        {
+            value = 10 * value + (b.get(i) - '0');
+            i++;
+        }
+        if (i == start)
+        {
+            throw new IOException("no number at position " + index);
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parses a decimal number like "0.52" starting at the given index into hundredths
+     */
+    static long parseHundredths(ByteBuffer b, int index) throws IOException
+    {
+        final long integer = parseLong(b, index);
+        int i = index;
+        while (i < b.limit() && b.get(i) != '.' && b.get(i) != ' ')
+        {
+            i++;
+        }
+        long fraction = 0;
+        if (i < b.limit() && b.get(i) == '.')
+        {
+            for (int d = 0; d < 2; d++)
+            {
+                i++;
+                fraction = 10 * fraction + (i < b.limit() && b.get(i) >= '0' && b.get(i) <= '9' ? b.get(i) - '0' : 0);
+            }
+        }
+        return 100 * integer + (integer < 0 ? -fraction : fraction);
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * stm32WindowSensor: RF window sensors: STM32L + RFM69 + Android
+ *
+ * Copyright (C) 2019. Mikhail Kulesh
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details. You should have received a copy of the GNU General
+ * Public License along with this program.
+ */
+
+package com.mkulesh.znet.telemetry;
+
+import java.util.Map;
+
+/**
+ * Source of server telemetry values, for example temperatures, fan speeds or the system load.
+ * A value is identified by its sensor id as used in the serverSensorID configuration and given
+ * as text including the unit. Sources are only called from the server state sampler.
+ */
+public interface TelemetrySource
+{
+    String getName();
+
+    /**
+     * Adds the current values of this source to the given map; values already contained in the
+     * map are kept, so that an earlier source has priority
+     *
+     * @return false if the source could not be read
+     */
+    boolean read(Map<String, String> values);
+}
@@ -0,0 +1,188 @@
+/*
+ * stm32WindowSensor: RF window sensors: STM32L + RFM69 + Android
+ *
+ * Copyright (C) 2019. Mikhail Kulesh
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details. You should have received a copy of the GNU General
+ * Public License along with this program.
+ */
+
+package com.mkulesh.znet;
+
+import com.mkulesh.znet.common.DeviceConfig;
+import com.mkulesh.znet.common.DeviceState;
+import com.mkulesh.znet.common.DeviceState.Warning;
+import com.mkulesh.znet.common.Message;
+import com.mkulesh.znet.common.Snapshot;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StateManagerRelayTest
+{
+    private StateManager stateManager;
+
+    @Before
+    public void setUp()
+    {
+        stateManager = new StateManager(Logger.getLogger("test"));
+        stateManager.setRelayMode();
+    }
+
+    private static Message session(String configVersion, long stateVersion)
+    {
+        final Message m = new Message(Message.Type.SESSION);
+        m.addParameter("token");
+        m.addParameter(configVersion);
+        m.addParameter(Long.toString(stateVersion));
+        m.addParameter(Message.SESSION_MODE_FULL);
+        return m;
+    }
+
+    private static Message config(int id) throws Exception
+    {
+        return new DeviceConfig(id + " | Window sensor | KMA-WS-1.1 | 1 | room" + id + " | " + id)
+                .getDeviceConfigMsg();
+    }
+
+    private static Message number(int n)
+    {
+        final Message m = new Message(Message.Type.DEVICE_NUMBER);
+        m.addParameter(n);
+        return m;
+    }
+
+    private static Message state(int id, boolean alarm, long version)
+    {
+        final Message m = new Message(Message.Type.DEVICE_STATE);
+        m.addParameter(id);
+        m.addParameter(alarm);
+        m.addParameter("");
+        m.addParameter("3.3 V");
+        m.addParameter("[]");
+        m.addParameter(version);
+        return m;
+    }
+
+    private void textDump(String configVersion, long stateVersion, int devices) throws Exception
+    {
+        stateManager.handleUpstreamMessage(session(configVersion, stateVersion));
+        for (int id = 1; id <= devices; id++)
+        {
+            stateManager.handleUpstreamMessage(config(id));
+        }
+        stateManager.handleUpstreamMessage(number(devices));
+    }
+
+    @Test
+    public void textDumpMirrorsConfiguration() throws Exception
+    {
+        textDump("abc", 10, 3);
+        assertEquals(3, stateManager.getDevices().size());
+        assertEquals("abc.1", stateManager.getConfigVersion());
+        assertEquals(10, stateManager.getStateVersion());
+
+        // the following changes take over the upstream versions
+        stateManager.handleUpstreamMessage(state(2, true, 12));
+        assertTrue(stateManager.getDevices().get(2).isAlarm());
+        assertEquals(12, stateManager.getDeviceVersion(2));
+        assertEquals(12, stateManager.getStateVersion());
+
+        // an older version does not decrease the state version
+        stateManager.handleUpstreamMessage(state(3, true, 11));
+        assertEquals(11, stateManager.getDeviceVersion(3));
+        assertEquals(12, stateManager.getStateVersion());
+    }
+
+    @Test
+    public void snapshotMirrorsConfigurationAndState() throws Exception
+    {
+        final ArrayList<Message> dump = new ArrayList<>();
+        dump.add(config(1));
+        dump.add(config(2));
+        dump.add(number(2));
+        dump.add(state(1, false, 20));
+        dump.add(state(2, true, 25));
+        stateManager.handleUpstreamMessage(session("abc", 22));
+        stateManager.handleUpstreamMessage(Snapshot.createMessage(dump));
+
+        assertEquals(2, stateManager.getDevices().size());
+        assertTrue(stateManager.getDevices().get(2).isAlarm());
+        assertEquals(20, stateManager.getDeviceVersion(1));
+        assertEquals(25, stateManager.getDeviceVersion(2));
+        assertEquals(25, stateManager.getStateVersion());
+    }
+
+    @Test
+    public void devicesAreKeptUntilDumpIsComplete() throws Exception
+    {
+        textDump("abc", 10, 3);
+        stateManager.handleUpstreamMessage(session("def", 0));
+        stateManager.handleUpstreamMessage(config(1));
+        assertEquals(3, stateManager.getDevices().size());
+        assertEquals("abc.1", stateManager.getConfigVersion());
+
+        stateManager.handleUpstreamMessage(number(1));
+        assertEquals(1, stateManager.getDevices().size());
+        assertEquals("def.2", stateManager.getConfigVersion());
+    }
+
+    @Test
+    public void reconnectionChangesConfigVersion() throws Exception
+    {
+        textDump("abc", 10, 2);
+        final String first = stateManager.getConfigVersion();
+        textDump("abc", 10, 2);
+        assertNotEquals(first, stateManager.getConfigVersion());
+    }
+
+    @Test
+    public void unknownDeviceIsIgnored() throws Exception
+    {
+        textDump("abc", 10, 2);
+        stateManager.handleUpstreamMessage(state(5, true, 11));
+        assertEquals(2, stateManager.getDevices().size());
+        assertEquals(0, stateManager.getDeviceVersion(5));
+        assertEquals(10, stateManager.getStateVersion());
+    }
+
+    @Test
+    public void disconnectionMarksDevicesNotReady() throws Exception
+    {
+        textDump("abc", 10, 2);
+        stateManager.handleUpstreamMessage(state(1, false, 11));
+        for (DeviceState d : stateManager.getDevices().values())
+        {
+            assertFalse(d.getWarnings().contains(Warning.NOT_READY));
+        }
+        stateManager.onUpstreamDisconnected();
+        for (DeviceState d : stateManager.getDevices().values())
+        {
+            assertTrue(d.getWarnings().contains(Warning.NOT_READY));
+        }
+    }
+
+    @Test
+    public void upstreamServerStateIsRelayed() throws Exception
+    {
+        final Message m = new Message(Message.Type.SERVER_STATE);
+        m.addParameter("Server");
+        m.addParameter("up");
+        stateManager.handleUpstreamMessage(m);
+        assertEquals(m.encode(), stateManager.getServerStateMsg().encode());
+    }
+}
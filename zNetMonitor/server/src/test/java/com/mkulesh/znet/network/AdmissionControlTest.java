@@ -0,0 +1,110 @@
+/*
+ * stm32WindowSensor: RF window sensors: STM32L + RFM69 + Android
+ *
+ * Copyright (C) 2019. Mikhail Kulesh
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details. You should have received a copy of the GNU General
+ * Public License along with this program.
+ */
+
+package com.mkulesh.znet.network;
+
+import com.mkulesh.znet.network.AdmissionControl.Result;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AdmissionControlTest
+{
+    private final static long BACKOFF = 200;
+
+    private static InetAddress address(int n) throws Exception
+    {
+        return InetAddress.getByAddress(new byte[]{ 10, 0, 0, (byte) n });
+    }
+
+    @Test
+    public void connectionsPerAddressAreLimited() throws Exception
+    {
+        final AdmissionControl ac = new AdmissionControl(2, 10, BACKOFF, 10 * BACKOFF);
+        assertEquals(Result.ACCEPTED, ac.admit(address(1)));
+        assertEquals(Result.ACCEPTED, ac.admit(address(1)));
+        assertEquals(Result.REJECTED_ADDRESS_LIMIT, ac.admit(address(1)));
+        assertEquals(Result.ACCEPTED, ac.admit(address(2)));
+
+        // a closed connection frees its place
+        ac.onLoginSucceeded(address(1));
+        ac.onConnectionClosed(address(1));
+        assertEquals(Result.ACCEPTED, ac.admit(address(1)));
+    }
+
+    @Test
+    public void pendingLoginsAreLimited() throws Exception
+    {
+        final AdmissionControl ac = new AdmissionControl(10, 2, BACKOFF, 10 * BACKOFF);
+        assertEquals(Result.ACCEPTED, ac.admit(address(1)));
+        assertEquals(Result.ACCEPTED, ac.admit(address(2)));
+        assertEquals(Result.REJECTED_PENDING_LIMIT, ac.admit(address(3)));
+        assertEquals(2, ac.getPendingLogins());
+
+        ac.onLoginSucceeded(address(1));
+        ac.onLoginAborted(address(2));
+        assertEquals(0, ac.getPendingLogins());
+        assertEquals(Result.ACCEPTED, ac.admit(address(3)));
+    }
+
+    @Test
+    public void failedLoginBlocksAddress() throws Exception
+    {
+        final AdmissionControl ac = new AdmissionControl(10, 10, BACKOFF, 10 * BACKOFF);
+        ac.admit(address(1));
+        ac.onLoginFailed(address(1), false);
+        assertEquals(Result.REJECTED_BACKOFF, ac.admit(address(1)));
+        assertEquals(Result.ACCEPTED, ac.admit(address(2)));
+
+        Thread.sleep(BACKOFF + 50);
+        assertEquals(Result.ACCEPTED, ac.admit(address(1)));
+
+        // the second failure doubles the backoff time
+        ac.onLoginFailed(address(1), true);
+        Thread.sleep(BACKOFF + 50);
+        assertEquals(Result.REJECTED_BACKOFF, ac.admit(address(1)));
+        Thread.sleep(BACKOFF);
+        assertEquals(Result.ACCEPTED, ac.admit(address(1)));
+
+        // a successful login resets the failures
+        ac.onLoginSucceeded(address(1));
+        ac.onConnectionClosed(address(1));
+        assertEquals(Result.ACCEPTED, ac.admit(address(1)));
+        ac.onLoginFailed(address(1), false);
+        Thread.sleep(BACKOFF + 50);
+        assertEquals(Result.ACCEPTED, ac.admit(address(1)));
+    }
+
+    @Test
+    public void expiredAddressesAreRemoved() throws Exception
+    {
+        final AdmissionControl ac = new AdmissionControl(10, 10, BACKOFF, BACKOFF);
+        ac.admit(address(1));
+        ac.admit(address(2));
+        ac.onLoginFailed(address(1), false);
+        ac.onLoginSucceeded(address(2));
+        ac.removeExpired();
+        assertTrue(ac.toString().endsWith("addresses=2"));
+
+        Thread.sleep(2 * BACKOFF + 50);
+        ac.removeExpired();
+        // the address with an open connection is kept
+        assertTrue(ac.toString().endsWith("addresses=1"));
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * stm32WindowSensor: RF window sensors: STM32L + RFM69 + Android
+ *
+ * Copyright (C) 2019. Mikhail Kulesh
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details. You should have received a copy of the GNU General
+ * Public License along with this program.
+ */
+
+package com.mkulesh.znet.network;
+
+import com.mkulesh.znet.common.Message;
+import com.mkulesh.znet.network.OutboundQueue.Priority;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class OutboundQueueTest
+{
+    private static Message state(int id, long version)
+    {
+        final Message m = new Message(Message.Type.DEVICE_STATE);
+        m.addParameter(id);
+        m.addParameter(false);
+        m.addParameter("");
+        m.addParameter("3.3 V");
+        m.addParameter("[]");
+        m.addParameter(version);
+        return m;
+    }
+
+    private static Message number(int n)
+    {
+        final Message m = new Message(Message.Type.DEVICE_NUMBER);
+        m.addParameter(n);
+        return m;
+    }
+
+    private static OutboundQueue.Entry poll(OutboundQueue q, Message expected)
+    {
+        final OutboundQueue.Entry e = q.poll();
+        assertSame(expected, e.message);
+        return e;
+    }
+
+    @Test
+    public void higherLevelIsServedFirst()
+    {
+        final OutboundQueue q = new OutboundQueue(16);
+        final Message heartbit = new Message(Message.Type.HEARTBIT);
+        final Message bulk = number(1);
+        final Message state = state(2, 1);
+        final Message alarm = state(3, 2);
+        assertTrue(q.offer(heartbit, Priority.HEARTBIT));
+        assertTrue(q.offer(bulk, Priority.BULK));
+        assertTrue(q.offer(state, Priority.STATE));
+        assertTrue(q.offer(alarm, Priority.ALARM));
+        assertEquals(4, q.size());
+
+        assertEquals(Priority.ALARM, poll(q, alarm).priority);
+        poll(q, state);
+        poll(q, bulk);
+        poll(q, heartbit);
+        assertNull(q.poll());
+        assertTrue(q.isEmpty());
+    }
+
+    @Test
+    public void levelKeepsItsOrder()
+    {
+        final OutboundQueue q = new OutboundQueue(16);
+        final Message[] dump = new Message[5];
+        for (int i = 0; i < dump.length; i++)
+        {
+            dump[i] = number(i);
+            q.offer(dump[i], Priority.BULK);
+        }
+        for (Message m : dump)
+        {
+            poll(q, m);
+        }
+    }
+
+    @Test
+    public void lowerLevelIsNotStarved()
+    {
+        final OutboundQueue q = new OutboundQueue(64);
+        final Message bulk = number(1);
+        q.offer(bulk, Priority.BULK);
+        for (int i = 0; i < 20; i++)
+        {
+            q.offer(state(100 + i, i), Priority.ALARM);
+        }
+        // the ALARM level yields one message after its weight of 16 messages in a row
+        for (int i = 0; i < 16; i++)
+        {
+            assertEquals(Priority.ALARM, q.poll().priority);
+        }
+        poll(q, bulk);
+        assertEquals(Priority.ALARM, q.poll().priority);
+    }
+
+    @Test
+    public void liveStateReplacesStateOfSameLevel()
+    {
+        final OutboundQueue q = new OutboundQueue(16);
+        final Message first = state(5, 1);
+        final Message second = state(5, 2);
+        q.offer(first, Priority.STATE);
+        q.offer(second, Priority.STATE);
+        assertEquals(1, q.size());
+        poll(q, second);
+    }
+
+    @Test
+    public void alarmRemovesQueuedStateOfLowerLevel()
+    {
+        final OutboundQueue q = new OutboundQueue(16);
+        final Message other = state(6, 1);
+        q.offer(state(5, 2), Priority.STATE);
+        q.offer(other, Priority.STATE);
+        final Message alarm = state(5, 3);
+        q.offer(alarm, Priority.ALARM);
+        assertEquals(2, q.size());
+        assertEquals(Priority.ALARM, poll(q, alarm).priority);
+        poll(q, other);
+    }
+
+    @Test
+    public void stateKeepsHigherLevelOfQueuedAlarm()
+    {
+        final OutboundQueue q = new OutboundQueue(16);
+        q.offer(state(5, 1), Priority.ALARM);
+        final Message state = state(5, 2);
+        q.offer(state, Priority.STATE);
+        assertEquals(1, q.size());
+        assertEquals(Priority.ALARM, poll(q, state).priority);
+    }
+
+    @Test
+    public void liveStateOvertakesDump()
+    {
+        final OutboundQueue q = new OutboundQueue(16);
+        final Message dumpNumber = number(5);
+        q.offer(dumpNumber, Priority.BULK);
+        q.offer(state(5, 1), Priority.BULK);
+        final Message alarm = state(5, 2);
+        q.offer(alarm, Priority.ALARM);
+
+        // the alarm is sent at once; the dump keeps its order and its state entry is refreshed
+        assertEquals(3, q.size());
+        assertEquals(Priority.ALARM, poll(q, alarm).priority);
+        poll(q, dumpNumber);
+        assertEquals(Priority.BULK, poll(q, alarm).priority);
+    }
+
+    @Test
+    public void liveStateIsNotQueuedBehindSnapshot()
+    {
+        final OutboundQueue q = new OutboundQueue(16);
+        final Message snapshot = new Message(Message.Type.SNAPSHOT);
+        snapshot.addParameter("0");
+        q.offer(snapshot, Priority.BULK);
+        final Message alarm = state(5, 2);
+        q.offer(alarm, Priority.ALARM);
+        poll(q, alarm);
+        poll(q, snapshot);
+    }
+
+    @Test
+    public void fullQueueRejectsMessage()
+    {
+        final OutboundQueue q = new OutboundQueue(2);
+        assertTrue(q.offer(number(1), Priority.BULK));
+        assertTrue(q.offer(state(2, 1), Priority.STATE));
+        assertFalse(q.offer(number(3), Priority.BULK));
+        // a replacement needs no room
+        assertTrue(q.offer(state(2, 2), Priority.STATE));
+        assertEquals(2, q.size());
+    }
+
+    @Test
+    public void oldestTimeIsOfTheFirstQueuedMessage()
+    {
+        final OutboundQueue q = new OutboundQueue(4);
+        assertEquals(0, q.getOldestTime());
+        q.offer(number(1), Priority.BULK);
+        final long bulkTime = q.getOldestTime();
+        q.offer(state(2, 1), Priority.ALARM);
+        assertEquals(bulkTime, q.getOldestTime());
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * stm32WindowSensor: RF window sensors: STM32L + RFM69 + Android
+ *
+ * Copyright (C) 2019. Mikhail Kulesh
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details. You should have received a copy of the GNU General
+ * Public License along with this program.
+ */
+
+package com.mkulesh.znet.serial;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FlapDetectorTest
+{
+    private final static long WINDOW = 1000;
+    private final static long QUIET = 5000;
+
+    @Test
+    public void slowTransitionsDoNotFlap()
+    {
+        final FlapDetector d = new FlapDetector(3);
+        for (int i = 0; i < 10; i++)
+        {
+            assertFalse(d.onTransition(i * 600, WINDOW));
+        }
+        assertFalse(d.isFlapping());
+    }
+
+    @Test
+    public void thresholdWithinWindowStartsFlapping()
+    {
+        final FlapDetector d = new FlapDetector(3);
+        assertFalse(d.onTransition(0, WINDOW));
+        assertFalse(d.onTransition(400, WINDOW));
+        assertTrue(d.onTransition(800, WINDOW));
+        assertTrue(d.isFlapping());
+        assertEquals(3, d.getFlapCount());
+
+        // further transitions are only counted
+        assertFalse(d.onTransition(900, WINDOW));
+        assertEquals(4, d.getFlapCount());
+    }
+
+    @Test
+    public void flappingStatePublishedOncePerWindow()
+    {
+        final FlapDetector d = new FlapDetector(2);
+        assertFalse(d.isPublishDue(0, WINDOW));
+        d.onTransition(0, WINDOW);
+        d.onTransition(100, WINDOW);
+        assertFalse(d.isPublishDue(500, WINDOW));
+        assertTrue(d.isPublishDue(1100, WINDOW));
+        assertFalse(d.isPublishDue(1500, WINDOW));
+        assertTrue(d.isPublishDue(2100, WINDOW));
+    }
+
+    @Test
+    public void quietPeriodStopsFlapping()
+    {
+        final FlapDetector d = new FlapDetector(2);
+        assertFalse(d.checkQuiet(0, QUIET));
+        d.onTransition(0, WINDOW);
+        d.onTransition(100, WINDOW);
+        d.onTransition(3000, WINDOW);
+        assertFalse(d.checkQuiet(7000, QUIET));
+        assertTrue(d.checkQuiet(8000, QUIET));
+        assertFalse(d.isFlapping());
+        assertEquals(0, d.getFlapCount());
+
+        // the transitions before the quiet period are forgotten
+        assertFalse(d.onTransition(9000, WINDOW));
+        assertTrue(d.onTransition(9100, WINDOW));
+    }
+}
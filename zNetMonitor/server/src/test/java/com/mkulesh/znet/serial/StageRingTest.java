@@ -0,0 +1,114 @@
+/*
+ * stm32WindowSensor: RF window sensors: STM32L + RFM69 + Android
+ *
+ * Copyright (C) 2019. Mikhail Kulesh
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details. You should have received a copy of the GNU General
+ * Public License along with this program.
+ */
+
+package com.mkulesh.znet.serial;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class StageRingTest
+{
+    private static class Value extends StageRing.Slot
+    {
+        long value;
+    }
+
+    private static StageRing<Value> createRing(int capacity, StageRing.WaitStrategy waitStrategy)
+    {
+        return new StageRing<>("test", capacity, Value::new, waitStrategy);
+    }
+
+    private static void publish(StageRing<Value> ring, long value)
+    {
+        final Value v = ring.awaitClaim();
+        v.value = value;
+        v.receiveTime = System.nanoTime();
+        ring.publish();
+    }
+
+    @Test
+    public void capacityIsRoundedUpAndBounded()
+    {
+        final StageRing<Value> ring = createRing(3, StageRing.WaitStrategy.SPIN);
+        for (int i = 0; i < 4; i++)
+        {
+            assertNotNull(ring.claim());
+            ring.publish();
+        }
+        assertNull(ring.claim());
+        assertEquals(4, ring.size());
+
+        final long[] sum = new long[1];
+        assertEquals(2, ring.drain(v -> sum[0]++, 2));
+        assertNotNull(ring.claim());
+        assertEquals(2, ring.size());
+    }
+
+    @Test
+    public void slotsAreReused()
+    {
+        final StageRing<Value> ring = createRing(2, StageRing.WaitStrategy.SPIN);
+        final Value first = ring.claim();
+        ring.publish();
+        ring.drain(v -> { }, 1);
+        ring.claim();
+        ring.publish();
+        ring.drain(v -> { }, 1);
+        assertTrue(first == ring.claim());
+    }
+
+    @Test
+    public void drainReturnsAfterTimeout()
+    {
+        final StageRing<Value> ring = createRing(4, StageRing.WaitStrategy.PARK);
+        final long start = System.nanoTime();
+        assertEquals(0, ring.drain(v -> { }, 4, TimeUnit.MILLISECONDS.toNanos(20)));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+    }
+
+    @Test(timeout = 10000)
+    public void consumerSeesAllValuesInOrder() throws Exception
+    {
+        // SPIN is left out: it needs a core per thread
+        for (StageRing.WaitStrategy waitStrategy : new StageRing.WaitStrategy[]{
+                StageRing.WaitStrategy.YIELD, StageRing.WaitStrategy.PARK })
+        {
+            final int count = 20000;
+            final StageRing<Value> ring = createRing(64, waitStrategy);
+            final Thread producer = new Thread(() ->
+            {
+                for (int i = 0; i < count; i++)
+                {
+                    publish(ring, i);
+                }
+            });
+            producer.start();
+
+            final long[] expected = new long[1];
+            while (expected[0] < count)
+            {
+                ring.drain(v -> assertEquals(expected[0]++, v.value), 16);
+            }
+            producer.join();
+            assertEquals(0, ring.size());
+        }
+    }
+}